@@ -0,0 +1,309 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.GeoCellCodec;
+
+/**
+ * Immutable GeoXPShape kept in the compact encoding of GeoCellCodec.
+ * 
+ * Cells are split in blocks of 'blockSize' cells, each block is encoded independently
+ * and the first cell of each block is kept in a skip index. Membership checks binary
+ * search the skip index and only decode the single block which may contain the cell.
+ */
+public final class CompressedGeoXPShape {
+  
+  public static final int VERSION = 1;
+  
+  public static final int DEFAULT_BLOCK_SIZE = 32;
+  
+  private static final long CELL_MASK = 0x0fffffffffffffffL;
+  
+  private final int count;
+  
+  private final int blockSize;
+  
+  /**
+   * First cell of each block
+   */
+  private final long[] skip;
+  
+  /**
+   * Offset of each block in 'data', with an extra trailing entry for the end of the last block
+   */
+  private final int[] offsets;
+  
+  private final byte[] data;
+  
+  /**
+   * Bit r is set if the shape has cells at internal resolution r (1-15)
+   */
+  private final int resolutions;
+  
+  public CompressedGeoXPShape(GeoXPShape shape) {
+    this(shape, DEFAULT_BLOCK_SIZE);
+  }
+  
+  public CompressedGeoXPShape(GeoXPShape shape, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be strictly positive.");
+    }
+    
+    long[] geocells = Arrays.copyOf(shape.geocells, shape.geocells.length);
+    Arrays.sort(geocells);
+    
+    this.count = geocells.length;
+    this.blockSize = blockSize;
+    
+    int nblocks = (this.count + blockSize - 1) / blockSize;
+    
+    this.skip = new long[nblocks];
+    this.offsets = new int[nblocks + 1];
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream(this.count * 2);
+    
+    try {
+      for (int b = 0; b < nblocks; b++) {
+        int from = b * blockSize;
+        this.skip[b] = geocells[from];
+        this.offsets[b] = out.size();
+        GeoCellCodec.encodeCells(geocells, from, Math.min(from + blockSize, this.count), out);
+      }
+    } catch (IOException ioe) {
+      // Can't happen with a ByteArrayOutputStream
+      throw new RuntimeException(ioe);
+    }
+    
+    this.offsets[nblocks] = out.size();
+    this.data = out.toByteArray();
+    this.resolutions = getResolutions(geocells);
+  }
+  
+  private CompressedGeoXPShape(int count, int blockSize, long[] skip, int[] offsets, byte[] data, int resolutions) {
+    this.count = count;
+    this.blockSize = blockSize;
+    this.skip = skip;
+    this.offsets = offsets;
+    this.data = data;
+    this.resolutions = resolutions;
+  }
+  
+  /**
+   * Return the number of cells of the shape.
+   */
+  public int size() {
+    return this.count;
+  }
+  
+  /**
+   * Return the number of bytes used by the encoded cells and the skip index.
+   */
+  public int getEncodedSize() {
+    return this.data.length + this.skip.length * 8 + this.offsets.length * 4;
+  }
+  
+  /**
+   * Check whether a GeoXPPoint lies in one of the cells of the shape.
+   * This is the compressed equivalent of GeoXPLib.isGeoXPPointInGeoXPShape
+   */
+  public boolean contains(long geoxppoint) {
+    long hhcode = (geoxppoint >>> 4) & CELL_MASK;
+    
+    for (int r = 1; r <= 15; r++) {
+      if (0 == (this.resolutions & (1 << r))) {
+        continue;
+      }
+      if (containsCell(((long) r) << 60 | (hhcode & (CELL_MASK << (60 - (r << 2)))))) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Check whether the shape contains a given geocell (not one of its ancestors).
+   */
+  public boolean containsCell(long geocell) {
+    //
+    // Find the last block whose first cell is <= geocell
+    //
+    
+    int idx = Arrays.binarySearch(this.skip, geocell);
+    
+    if (idx >= 0) {
+      return true;
+    }
+    
+    int block = -2 - idx;
+    
+    if (block < 0) {
+      return false;
+    }
+    
+    int n = Math.min(this.blockSize, this.count - block * this.blockSize);
+    
+    return GeoCellCodec.contains(this.data, this.offsets[block], n, geocell);
+  }
+  
+  /**
+   * Decode the whole shape.
+   */
+  public GeoXPShape toGeoXPShape() {
+    long[] geocells = new long[this.count];
+    int idx = 0;
+    
+    try {
+      for (int b = 0; b < this.skip.length; b++) {
+        int n = Math.min(this.blockSize, this.count - idx);
+        GeoCellCodec.Decoder decoder = new GeoCellCodec.Decoder(this.data, this.offsets[b], this.offsets[b + 1] - this.offsets[b], n);
+        while (decoder.hasNext()) {
+          geocells[idx++] = decoder.next();
+        }
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    
+    return GeoXPLib.fromCells(geocells, false);
+  }
+  
+  /**
+   * Serialize the shape. The skip index is not stored, it is rebuilt by 'deserialize'.
+   */
+  public byte[] serialize() {
+    byte[] header = new byte[1 + 10 * (3 + this.skip.length)];
+    
+    header[0] = VERSION;
+    int pos = 1;
+    pos = GeoCellCodec.putVarLong(header, pos, this.count);
+    pos = GeoCellCodec.putVarLong(header, pos, this.blockSize);
+    for (int b = 0; b < this.skip.length; b++) {
+      pos = GeoCellCodec.putVarLong(header, pos, this.offsets[b + 1] - this.offsets[b]);
+    }
+    
+    byte[] serialized = Arrays.copyOf(header, pos + this.data.length);
+    System.arraycopy(this.data, 0, serialized, pos, this.data.length);
+    
+    return serialized;
+  }
+  
+  public static CompressedGeoXPShape deserialize(byte[] serialized) throws IOException {
+    if (0 == serialized.length || VERSION != serialized[0]) {
+      throw new IOException("Invalid compressed GeoXPShape.");
+    }
+    
+    int[] pos = new int[] { 1 };
+    
+    long count = getVarLong(serialized, pos);
+    long blockSize = getVarLong(serialized, pos);
+    
+    if (count < 0 || count > Integer.MAX_VALUE || blockSize < 1 || blockSize > Integer.MAX_VALUE) {
+      throw new IOException("Invalid compressed GeoXPShape.");
+    }
+    
+    //
+    // Each cell takes at least one byte and each block a length and a data byte,
+    // reject corrupt headers before allocating the block index
+    //
+    
+    if (count > serialized.length || (count + blockSize - 1) / blockSize > serialized.length - pos[0]) {
+      throw new IOException("Invalid compressed GeoXPShape.");
+    }
+    
+    int nblocks = (int) ((count + blockSize - 1) / blockSize);
+    
+    int[] offsets = new int[nblocks + 1];
+    
+    for (int b = 0; b < nblocks; b++) {
+      long len = getVarLong(serialized, pos);
+      if (len < 1 || offsets[b] + len > serialized.length) {
+        throw new IOException("Invalid compressed GeoXPShape.");
+      }
+      offsets[b + 1] = offsets[b] + (int) len;
+    }
+    
+    if (pos[0] + offsets[nblocks] != serialized.length) {
+      throw new IOException("Invalid compressed GeoXPShape.");
+    }
+    
+    byte[] data = Arrays.copyOfRange(serialized, pos[0], serialized.length);
+    
+    //
+    // Rebuild the skip index and check that all blocks decode properly
+    //
+    
+    long[] skip = new long[nblocks];
+    int resolutions = 0;
+    
+    for (int b = 0; b < nblocks; b++) {
+      int n = (int) Math.min(blockSize, count - b * blockSize);
+      GeoCellCodec.Decoder decoder = new GeoCellCodec.Decoder(data, offsets[b], offsets[b + 1] - offsets[b], n);
+      skip[b] = decoder.next();
+      resolutions |= 1 << (int) ((skip[b] >>> 60) & 0xfL);
+      long last = skip[b];
+      while (decoder.hasNext()) {
+        long cell = decoder.next();
+        if (cell < last) {
+          throw new IOException("Invalid compressed GeoXPShape, cells are not sorted.");
+        }
+        resolutions |= 1 << (int) ((cell >>> 60) & 0xfL);
+        last = cell;
+      }
+      if (b > 0 && skip[b] < skip[b - 1]) {
+        throw new IOException("Invalid compressed GeoXPShape, cells are not sorted.");
+      }
+    }
+    
+    return new CompressedGeoXPShape((int) count, (int) blockSize, skip, offsets, data, resolutions);
+  }
+  
+  private static int getResolutions(long[] geocells) {
+    int resolutions = 0;
+    for (long geocell: geocells) {
+      resolutions |= 1 << (int) ((geocell >>> 60) & 0xfL);
+    }
+    return resolutions;
+  }
+  
+  private static long getVarLong(byte[] buf, int[] pos) throws IOException {
+    long value = 0L;
+    int shift = 0;
+    
+    while (shift < 64 && pos[0] < buf.length) {
+      int b = buf[pos[0]++] & 0xff;
+      value |= ((long) (b & 0x7f)) << shift;
+      if (0 == (b & 0x80)) {
+        return value;
+      }
+      shift += 7;
+    }
+    
+    throw new IOException("Malformed varint.");
+  }
+}
@@ -21,6 +21,7 @@
 
 package com.geoxp;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -29,6 +30,7 @@ import java.util.Arrays;
 
 import com.geoxp.geo.Coverage;
 import com.geoxp.geo.CoverageHelper;
+import com.geoxp.geo.GeoCellCodec;
 import com.geoxp.geo.HHCodeHelper;
 import com.geoxp.geo.JTSHelper;
 import com.vividsolutions.jts.geom.Geometry;
@@ -360,6 +362,29 @@ public final class GeoXPLib {
 	  return buf;
 	}
 	
+	/**
+	 * Rebuild a GeoXPShape from the output of serializeGeoXPShape
+	 */
+	public static GeoXPShape deserializeGeoXPShape(byte[] serialized) {
+	  ByteBuffer bb = ByteBuffer.wrap(serialized);
+	  bb.order(ByteOrder.BIG_ENDIAN);
+	  long[] geocells = new long[serialized.length / 8];
+	  bb.asLongBuffer().get(geocells);
+	  return fromCells(geocells, false);
+	}
+	
+	/**
+	 * Serialize a GeoXPShape using the compact encoding of GeoCellCodec.
+	 * Cells of the deserialized shape will be sorted.
+	 */
+	public static byte[] compressGeoXPShape(GeoXPShape geoxpshape) {
+	  return GeoCellCodec.encode(geoxpshape.geocells);
+	}
+	
+	public static GeoXPShape decompressGeoXPShape(byte[] compressed) throws IOException {
+	  return fromCells(GeoCellCodec.decode(compressed), false);
+	}
+	
 	public static byte[] bytesFromGeoXPPoint(long geoxppoint, int resolution) {
 	  // Ignore odd resolutions or resolution below 2 and above 32
 	  if (resolution < 2 || resolution > 32 || 0 != (resolution & 0x1)) {
@@ -396,6 +421,18 @@ public final class GeoXPLib {
 	  return HHCodeHelper.geocellsToRegexp(shape.geocells);
 	}
 	
+	/**
+	 * Return the ranges of GeoXPPoints covered by 'shape', as [startKey,endKey[ pairs in increasing
+	 * unsigned order, for range scans in stores sorting keys as bytesFromGeoXPPoint(point, 32).
+	 * 
+	 * @param shape
+	 * @param maxRanges Maximum number of ranges, ranges separated by the smallest gaps are merged to fit
+	 * @return
+	 */
+	public static long[] toRanges(GeoXPShape shape, int maxRanges) {
+	  return HHCodeHelper.geocellsToRanges(shape.geocells, maxRanges);
+	}
+	
 	public static long[] getCells(GeoXPShape shape) {
 	  return shape.geocells;
 	}
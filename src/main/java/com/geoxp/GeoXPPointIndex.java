@@ -0,0 +1,432 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.HHCodeHelper;
+
+/**
+ * In memory index of GeoXPPoints answering "all points inside GeoXPShape S" queries.
+ * 
+ * Points are stored in a sorted long[], optionally with a parallel array of payload ids.
+ * The points inside a cell form a contiguous slice of the array, so a query turns the
+ * geocells of the shape into HHCode ranges (HHCodeHelper.geocellsToRanges) and locates
+ * each of them with two binary searches. The cost of a query depends on the number of
+ * ranges and matching points, not on the size of the index.
+ * 
+ * Instances are immutable and thread safe once built.
+ */
+public final class GeoXPPointIndex {
+  
+  /**
+   * Ranges shorter than this are sorted sequentially when building the index
+   */
+  private static final int PARALLEL_SORT_THRESHOLD = 1 << 13;
+  
+  private final long[] points;
+  private final long[] payloads;
+  
+  /**
+   * Iterator over the points (and payloads) of the slices matching a query.
+   */
+  public final class Cursor {
+    private final int[] slices;
+    private int slice = 0;
+    private int idx;
+    private int current = -1;
+    
+    private Cursor(int[] slices) {
+      this.slices = slices;
+      this.idx = slices.length > 0 ? slices[0] : 0;
+      skipEmpty();
+    }
+    
+    private void skipEmpty() {
+      while (slice < slices.length && idx >= slices[slice + 1]) {
+        slice += 2;
+        if (slice < slices.length) {
+          idx = slices[slice];
+        }
+      }
+    }
+    
+    public boolean hasNext() {
+      return slice < slices.length;
+    }
+    
+    /**
+     * Return the next matching point.
+     */
+    public long next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      
+      current = idx++;
+      skipEmpty();
+      
+      return points[current];
+    }
+    
+    /**
+     * Return the payload of the point last returned by 'next'.
+     */
+    public long payload() {
+      return payloads[current];
+    }
+    
+    /**
+     * Return the index in the index of the point last returned by 'next'.
+     */
+    public int index() {
+      return current;
+    }
+  }
+  
+  /**
+   * Build an index of 'points'. The array is not copied, it is sorted in place.
+   */
+  public GeoXPPointIndex(long[] points) {
+    this(points, null);
+  }
+  
+  /**
+   * Build an index of 'points' with their 'payloads' (ids of the points, payloads[i] is that of points[i]).
+   * The arrays are not copied, they are sorted in place, in parallel for large arrays.
+   * 
+   * @param points GeoXPPoints to index
+   * @param payloads Payloads of the points, may be null
+   */
+  public GeoXPPointIndex(long[] points, long[] payloads) {
+    if (null != payloads && payloads.length != points.length) {
+      throw new IllegalArgumentException("Points and payloads must have the same length.");
+    }
+    
+    if (!isSorted(points)) {
+      if (null == payloads) {
+        Arrays.parallelSort(points);
+      } else {
+        ForkJoinPool.commonPool().invoke(new SortTask(points, payloads, 0, points.length));
+      }
+    }
+    
+    this.points = points;
+    this.payloads = payloads;
+  }
+  
+  public int size() {
+    return points.length;
+  }
+  
+  public boolean hasPayloads() {
+    return null != payloads;
+  }
+  
+  /**
+   * Return the idx'th point of the index (in sorted order).
+   */
+  public long getPoint(int idx) {
+    return points[idx];
+  }
+  
+  public long getPayload(int idx) {
+    return payloads[idx];
+  }
+  
+  /**
+   * Return the sorted points, for merging indices. The array must not be modified.
+   */
+  long[] getPoints() {
+    return points;
+  }
+  
+  long[] getPayloads() {
+    return payloads;
+  }
+  
+  /**
+   * Return the slices of the index containing the points inside 'shape', as pairs
+   * of indices (from inclusive, to exclusive). Slices do not overlap.
+   */
+  public int[] slices(GeoXPShape shape) {
+    return slices(HHCodeHelper.geocellsToRanges(GeoXPLib.getCells(shape), Integer.MAX_VALUE));
+  }
+  
+  /**
+   * Return the slices of the index containing the points inside 'ranges' (as returned by
+   * HHCodeHelper.geocellsToRanges).
+   */
+  int[] slices(long[] ranges) {
+    int[] slices = new int[ranges.length + 2];
+    int n = 0;
+    
+    for (int i = 0; i < ranges.length; i += 2) {
+      long start = ranges[i];
+      long last = ranges[i + 1] - 1;
+      
+      //
+      // Ranges are in unsigned order, points are in signed order. A range
+      // crossing the sign boundary is split in two slices.
+      //
+      
+      if (start >= 0L && last < 0L) {
+        n = addSlice(slices, n, start, Long.MAX_VALUE);
+        n = addSlice(slices, n, Long.MIN_VALUE, last);
+      } else {
+        n = addSlice(slices, n, start, last);
+      }
+    }
+    
+    return Arrays.copyOf(slices, n);
+  }
+  
+  /**
+   * Return the number of points inside 'shape'.
+   */
+  public long count(GeoXPShape shape) {
+    int[] slices = slices(shape);
+    
+    long count = 0L;
+    
+    for (int i = 0; i < slices.length; i += 2) {
+      count += slices[i + 1] - slices[i];
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Return the points inside 'shape'.
+   */
+  public long[] points(GeoXPShape shape) {
+    return copy(points, slices(shape));
+  }
+  
+  /**
+   * Return the payloads of the points inside 'shape', in the order of 'points(shape)'.
+   */
+  public long[] payloads(GeoXPShape shape) {
+    return copy(payloads, slices(shape));
+  }
+  
+  /**
+   * Return a Cursor over the points inside 'shape'.
+   */
+  public Cursor cursor(GeoXPShape shape) {
+    return new Cursor(slices(shape));
+  }
+  
+  private int addSlice(int[] slices, int n, long first, long last) {
+    int from = lowerBound(first);
+    int to = upperBound(last);
+    
+    if (from < to) {
+      slices[n++] = from;
+      slices[n++] = to;
+    }
+    
+    return n;
+  }
+  
+  private static long[] copy(long[] values, int[] slices) {
+    int count = 0;
+    
+    for (int i = 0; i < slices.length; i += 2) {
+      count += slices[i + 1] - slices[i];
+    }
+    
+    long[] result = new long[count];
+    int n = 0;
+    
+    for (int i = 0; i < slices.length; i += 2) {
+      System.arraycopy(values, slices[i], result, n, slices[i + 1] - slices[i]);
+      n += slices[i + 1] - slices[i];
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Return the index of the first point greater than or equal to 'value'
+   */
+  private int lowerBound(long value) {
+    int lo = 0;
+    int hi = points.length;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (points[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  /**
+   * Return the index of the first point greater than 'value'
+   */
+  private int upperBound(long value) {
+    int lo = 0;
+    int hi = points.length;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (points[mid] <= value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  private static boolean isSorted(long[] values) {
+    for (int i = 1; i < values.length; i++) {
+      if (values[i - 1] > values[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Parallel quicksort of points and their payloads.
+   */
+  private static final class SortTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private final long[] points;
+    private final long[] payloads;
+    private final int from;
+    private final int to;
+    
+    private SortTask(long[] points, long[] payloads, int from, int to) {
+      this.points = points;
+      this.payloads = payloads;
+      this.from = from;
+      this.to = to;
+    }
+    
+    @Override
+    protected void compute() {
+      if (to - from < PARALLEL_SORT_THRESHOLD) {
+        sort(points, payloads, from, to);
+        return;
+      }
+      
+      int split = partition(points, payloads, from, to);
+      
+      invokeAll(new SortTask(points, payloads, from, split), new SortTask(points, payloads, split, to));
+    }
+  }
+  
+  /**
+   * Sequential quicksort of points and their payloads in [from,to[
+   */
+  private static void sort(long[] points, long[] payloads, int from, int to) {
+    while (to - from > 16) {
+      int split = partition(points, payloads, from, to);
+      
+      // Recurse on the smallest part and loop on the other one
+      if (split - from < to - split) {
+        sort(points, payloads, from, split);
+        from = split;
+      } else {
+        sort(points, payloads, split, to);
+        to = split;
+      }
+    }
+    
+    //
+    // Insertion sort of small ranges
+    //
+    
+    for (int i = from + 1; i < to; i++) {
+      long point = points[i];
+      long payload = payloads[i];
+      int j = i - 1;
+      while (j >= from && points[j] > point) {
+        points[j + 1] = points[j];
+        payloads[j + 1] = payloads[j];
+        j--;
+      }
+      points[j + 1] = point;
+      payloads[j + 1] = payload;
+    }
+  }
+  
+  /**
+   * Partition [from,to[ (at least 3 elements) around the median of its first, middle and last points.
+   * 
+   * @return The index 'split' such that points in [from,split[ are <= those in [split,to[, from < split < to
+   */
+  private static int partition(long[] points, long[] payloads, int from, int to) {
+    int mid = (from + to) >>> 1;
+    
+    if (points[mid] < points[from]) {
+      swap(points, payloads, mid, from);
+    }
+    if (points[to - 1] < points[from]) {
+      swap(points, payloads, to - 1, from);
+    }
+    if (points[to - 1] < points[mid]) {
+      swap(points, payloads, to - 1, mid);
+    }
+    
+    long pivot = points[mid];
+    
+    int i = from - 1;
+    int j = to;
+    
+    while (true) {
+      do {
+        i++;
+      } while (points[i] < pivot);
+      do {
+        j--;
+      } while (points[j] > pivot);
+      if (i >= j) {
+        return j + 1;
+      }
+      swap(points, payloads, i, j);
+    }
+  }
+  
+  private static void swap(long[] points, long[] payloads, int i, int j) {
+    long point = points[i];
+    points[i] = points[j];
+    points[j] = point;
+    
+    long payload = payloads[i];
+    payloads[i] = payloads[j];
+    payloads[j] = payload;
+  }
+}
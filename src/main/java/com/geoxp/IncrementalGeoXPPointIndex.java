@@ -0,0 +1,630 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.HHCodeHelper;
+
+/**
+ * Log structured index of GeoXPPoints supporting concurrent inserts and shape queries.
+ * 
+ * Points (with a payload id) are appended to an in memory buffer. Full buffers are sealed
+ * and flushed in the background to immutable sorted segments (GeoXPPointIndex), segments
+ * are then merged (compacted) in parallel so their number stays below 'mergeFactor'.
+ * Maintenance (flushes and merges) runs periodically on a caller provided scheduler, or
+ * when 'maintain' is called.
+ * 
+ * Inserts never take a lock, they reserve a slot of the active buffer with an atomic increment
+ * and publish it with an ordered store. Only the insert which finds the buffer full installs
+ * a new one with a CAS. Readers take a consistent snapshot of the buffers and segments and
+ * search the segments with the ranges of the shape's cells (HHCodeHelper.geocellsToRanges),
+ * buffers are scanned.
+ */
+public class IncrementalGeoXPPointIndex {
+  
+  public static final int DEFAULT_BUFFER_CAPACITY = 1 << 16;
+  public static final int DEFAULT_MERGE_FACTOR = 4;
+  
+  /**
+   * Number of partitions of a merge, per available processor
+   */
+  private static final int MERGE_PARTITIONS_PER_CPU = 4;
+  
+  /**
+   * Merges with fewer points are done in a single partition
+   */
+  private static final int MIN_PARTITION_SIZE = 1 << 16;
+  
+  /**
+   * Receiver of the points found by 'visit'
+   */
+  public static interface Visitor {
+    public void visit(long point, long payload);
+  }
+  
+  /**
+   * Append only buffer of points. Slots are reserved by incrementing 'next' and published
+   * by setting their 'ready' flag once the point and payload are written.
+   * 
+   * A buffer is closed when it is sealed, 'next' is then raised to CLOSED so later appends fail
+   * and the number of reserved slots at that moment is frozen in 'frozen'.
+   */
+  private static final class Buffer {
+    
+    /**
+     * Value of 'next' once the buffer is closed, failed appends increment it further
+     */
+    private static final int CLOSED = Integer.MAX_VALUE >> 1;
+    
+    private final long[] points;
+    private final long[] payloads;
+    private final AtomicIntegerArray ready;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private volatile int frozen = -1;
+    
+    private Buffer(int capacity) {
+      this.points = new long[capacity];
+      this.payloads = new long[capacity];
+      this.ready = new AtomicIntegerArray(capacity);
+    }
+    
+    /**
+     * Append a point, return false if the buffer is full or closed
+     */
+    private boolean append(long point, long payload) {
+      int slot = next.getAndIncrement();
+      
+      if (slot >= points.length) {
+        return false;
+      }
+      
+      points[slot] = point;
+      payloads[slot] = payload;
+      ready.lazySet(slot, 1);
+      
+      return true;
+    }
+    
+    /**
+     * Close the buffer to further appends. A full buffer is already closed.
+     */
+    private void close() {
+      while (true) {
+        int n = next.get();
+        
+        if (n >= points.length) {
+          return;
+        }
+        
+        if (next.compareAndSet(n, CLOSED)) {
+          frozen = n;
+          return;
+        }
+      }
+    }
+    
+    /**
+     * Number of slots which may be published
+     */
+    private int limit() {
+      int n = next.get();
+      
+      if (n < CLOSED) {
+        return Math.min(n, points.length);
+      }
+      
+      //
+      // Wait for the thread which closed the buffer to record the limit
+      //
+      
+      int limit;
+      
+      while (-1 == (limit = frozen)) {
+        Thread.yield();
+      }
+      
+      return limit;
+    }
+  }
+  
+  /**
+   * Immutable state of the index, replaced atomically
+   */
+  private static final class Snapshot {
+    private final Buffer active;
+    private final Buffer[] sealed;
+    private final GeoXPPointIndex[] segments;
+    
+    private Snapshot(Buffer active, Buffer[] sealed, GeoXPPointIndex[] segments) {
+      this.active = active;
+      this.sealed = sealed;
+      this.segments = segments;
+    }
+  }
+  
+  private final int bufferCapacity;
+  private final int mergeFactor;
+  
+  private final AtomicReference<Snapshot> snapshot;
+  
+  /**
+   * Lock serializing maintenance
+   */
+  private final Object maintenanceLock = new Object();
+  
+  private final ScheduledFuture<?> maintenance;
+  
+  public IncrementalGeoXPPointIndex() {
+    this(DEFAULT_BUFFER_CAPACITY, DEFAULT_MERGE_FACTOR, null, 0L);
+  }
+  
+  /**
+   * @param bufferCapacity Number of points of the in memory buffers
+   * @param mergeFactor Segments are merged when there are this many of them (at least 2)
+   * @param scheduler Scheduler on which to run maintenance, if null 'maintain' must be called explicitly
+   * @param periodMs Delay in ms between maintenance runs
+   */
+  public IncrementalGeoXPPointIndex(int bufferCapacity, int mergeFactor, ScheduledExecutorService scheduler, long periodMs) {
+    if (bufferCapacity <= 0) {
+      throw new IllegalArgumentException("Buffer capacity must be strictly positive.");
+    }
+    
+    if (mergeFactor < 2) {
+      throw new IllegalArgumentException("Merge factor must be at least 2.");
+    }
+    
+    this.bufferCapacity = bufferCapacity;
+    this.mergeFactor = mergeFactor;
+    this.snapshot = new AtomicReference<Snapshot>(new Snapshot(new Buffer(bufferCapacity), new Buffer[0], new GeoXPPointIndex[0]));
+    
+    if (null != scheduler) {
+      this.maintenance = scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          maintain();
+        }
+      }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.maintenance = null;
+    }
+  }
+  
+  /**
+   * Insert a point with its payload id.
+   */
+  public void insert(long point, long payload) {
+    while (true) {
+      Snapshot current = snapshot.get();
+      
+      if (current.active.append(point, payload)) {
+        return;
+      }
+      
+      //
+      // The buffer is full, seal it and install a new one. If the CAS fails
+      // another thread did it, retry with its buffer.
+      //
+      
+      seal(current);
+    }
+  }
+  
+  public void insert(long point) {
+    insert(point, 0L);
+  }
+  
+  /**
+   * Replace the active buffer of 'current' by an empty one
+   */
+  private boolean seal(Snapshot current) {
+    //
+    // Close the buffer first so no insert can land in it once it is sealed. If the CAS
+    // fails the closed buffer may still be active, inserts will then fail and seal it.
+    //
+    
+    current.active.close();
+    
+    Buffer[] sealed = Arrays.copyOf(current.sealed, current.sealed.length + 1);
+    sealed[sealed.length - 1] = current.active;
+    
+    return snapshot.compareAndSet(current, new Snapshot(new Buffer(bufferCapacity), sealed, current.segments));
+  }
+  
+  /**
+   * Stop the periodic maintenance. The index remains usable.
+   */
+  public void close() {
+    if (null != maintenance) {
+      maintenance.cancel(false);
+    }
+  }
+  
+  /**
+   * Seal the active buffer then flush and merge synchronously, so all the points inserted
+   * before the call are in segments.
+   */
+  public void flush() {
+    synchronized (maintenanceLock) {
+      while (true) {
+        Snapshot current = snapshot.get();
+        
+        if (0 == current.active.limit() || seal(current)) {
+          break;
+        }
+      }
+      
+      maintain();
+    }
+  }
+  
+  /**
+   * Flush the sealed buffers to segments and merge segments.
+   */
+  public void maintain() {
+    synchronized (maintenanceLock) {
+      //
+      // Flush sealed buffers, oldest first
+      //
+      
+      while (true) {
+        Snapshot current = snapshot.get();
+        
+        if (0 == current.sealed.length) {
+          break;
+        }
+        
+        Buffer buffer = current.sealed[0];
+        
+        GeoXPPointIndex segment = toSegment(buffer);
+        
+        // Only inserts can race with us, they only change the active and sealed buffers
+        while (true) {
+          current = snapshot.get();
+          
+          GeoXPPointIndex[] segments = current.segments;
+          
+          if (segment.size() > 0) {
+            segments = Arrays.copyOf(segments, segments.length + 1);
+            segments[segments.length - 1] = segment;
+          }
+          
+          if (snapshot.compareAndSet(current, new Snapshot(current.active, Arrays.copyOfRange(current.sealed, 1, current.sealed.length), segments))) {
+            break;
+          }
+        }
+      }
+      
+      //
+      // Merge the smallest segments while there are too many
+      //
+      
+      while (snapshot.get().segments.length >= mergeFactor) {
+        GeoXPPointIndex[] segments = snapshot.get().segments.clone();
+        
+        Arrays.sort(segments, new Comparator<GeoXPPointIndex>() {
+          @Override
+          public int compare(GeoXPPointIndex a, GeoXPPointIndex b) {
+            return a.size() < b.size() ? -1 : (a.size() > b.size() ? 1 : 0);
+          }
+        });
+        
+        GeoXPPointIndex[] inputs = Arrays.copyOf(segments, mergeFactor);
+        GeoXPPointIndex merged = merge(inputs);
+        
+        segments = Arrays.copyOfRange(segments, mergeFactor - 1, segments.length);
+        segments[0] = merged;
+        
+        while (true) {
+          Snapshot current = snapshot.get();
+          
+          if (snapshot.compareAndSet(current, new Snapshot(current.active, current.sealed, segments))) {
+            break;
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Build a segment from a sealed buffer
+   */
+  private static GeoXPPointIndex toSegment(Buffer buffer) {
+    int limit = buffer.limit();
+    
+    //
+    // Wait for the inserts which reserved a slot before the buffer was sealed
+    //
+    
+    for (int i = 0; i < limit; i++) {
+      while (0 == buffer.ready.get(i)) {
+        Thread.yield();
+      }
+    }
+    
+    // Copy the buffer as readers may still be scanning it
+    return new GeoXPPointIndex(Arrays.copyOf(buffer.points, limit), Arrays.copyOf(buffer.payloads, limit));
+  }
+  
+  /**
+   * Merge sorted segments. The output is split in partitions of disjoint key ranges
+   * which are merged in parallel.
+   */
+  static GeoXPPointIndex merge(GeoXPPointIndex[] segments) {
+    int total = 0;
+    GeoXPPointIndex largest = segments[0];
+    
+    for (GeoXPPointIndex segment: segments) {
+      total += segment.size();
+      if (segment.size() > largest.size()) {
+        largest = segment;
+      }
+    }
+    
+    long[] points = new long[total];
+    long[] payloads = new long[total];
+    
+    int partitions = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * MERGE_PARTITIONS_PER_CPU, total / MIN_PARTITION_SIZE));
+    
+    //
+    // Bounds of each partition in each segment, the split keys are taken from the largest segment
+    //
+    
+    int[][] bounds = new int[partitions + 1][segments.length];
+    
+    for (int p = 1; p < partitions; p++) {
+      long split = largest.getPoint((int) ((long) largest.size() * p / partitions));
+      for (int s = 0; s < segments.length; s++) {
+        bounds[p][s] = lowerBound(segments[s].getPoints(), split);
+      }
+    }
+    
+    for (int s = 0; s < segments.length; s++) {
+      bounds[partitions][s] = segments[s].size();
+    }
+    
+    final MergeTask[] tasks = new MergeTask[partitions];
+    int offset = 0;
+    
+    for (int p = 0; p < partitions; p++) {
+      tasks[p] = new MergeTask(segments, bounds[p], bounds[p + 1], points, payloads, offset);
+      for (int s = 0; s < segments.length; s++) {
+        offset += bounds[p + 1][s] - bounds[p][s];
+      }
+    }
+    
+    ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+      
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    
+    return new GeoXPPointIndex(points, payloads);
+  }
+  
+  /**
+   * k-way merge of one partition of the segments
+   */
+  private static final class MergeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private final GeoXPPointIndex[] segments;
+    private final int[] from;
+    private final int[] to;
+    private final long[] points;
+    private final long[] payloads;
+    private final int offset;
+    
+    private MergeTask(GeoXPPointIndex[] segments, int[] from, int[] to, long[] points, long[] payloads, int offset) {
+      this.segments = segments;
+      this.from = from;
+      this.to = to;
+      this.points = points;
+      this.payloads = payloads;
+      this.offset = offset;
+    }
+    
+    @Override
+    protected void compute() {
+      int[] idx = from.clone();
+      int out = offset;
+      
+      while (true) {
+        int best = -1;
+        long min = 0L;
+        
+        for (int s = 0; s < segments.length; s++) {
+          if (idx[s] < to[s] && (-1 == best || segments[s].getPoint(idx[s]) < min)) {
+            best = s;
+            min = segments[s].getPoint(idx[s]);
+          }
+        }
+        
+        if (-1 == best) {
+          break;
+        }
+        
+        points[out] = min;
+        payloads[out] = segments[best].getPayload(idx[best]);
+        out++;
+        idx[best]++;
+      }
+    }
+  }
+  
+  private static int lowerBound(long[] values, long value) {
+    int lo = 0;
+    int hi = values.length;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  /**
+   * Call 'visitor' for each point inside 'shape' (and its payload).
+   */
+  public void visit(GeoXPShape shape, Visitor visitor) {
+    Snapshot current = snapshot.get();
+    
+    long[] ranges = HHCodeHelper.geocellsToRanges(GeoXPLib.getCells(shape), Integer.MAX_VALUE);
+    
+    for (GeoXPPointIndex segment: current.segments) {
+      int[] slices = segment.slices(ranges);
+      for (int i = 0; i < slices.length; i += 2) {
+        for (int j = slices[i]; j < slices[i + 1]; j++) {
+          visitor.visit(segment.getPoint(j), segment.getPayload(j));
+        }
+      }
+    }
+    
+    for (Buffer buffer: current.sealed) {
+      scan(buffer, ranges, visitor);
+    }
+    
+    scan(current.active, ranges, visitor);
+  }
+  
+  /**
+   * Return the number of points inside 'shape'.
+   */
+  public long count(GeoXPShape shape) {
+    final long[] count = new long[1];
+    
+    Snapshot current = snapshot.get();
+    
+    long[] ranges = HHCodeHelper.geocellsToRanges(GeoXPLib.getCells(shape), Integer.MAX_VALUE);
+    
+    for (GeoXPPointIndex segment: current.segments) {
+      int[] slices = segment.slices(ranges);
+      for (int i = 0; i < slices.length; i += 2) {
+        count[0] += slices[i + 1] - slices[i];
+      }
+    }
+    
+    Visitor counter = new Visitor() {
+      @Override
+      public void visit(long point, long payload) {
+        count[0]++;
+      }
+    };
+    
+    for (Buffer buffer: current.sealed) {
+      scan(buffer, ranges, counter);
+    }
+    
+    scan(current.active, ranges, counter);
+    
+    return count[0];
+  }
+  
+  /**
+   * Return the number of points in the index (some concurrent inserts may not be counted).
+   */
+  public long size() {
+    Snapshot current = snapshot.get();
+    
+    long size = current.active.limit();
+    
+    for (Buffer buffer: current.sealed) {
+      size += buffer.limit();
+    }
+    
+    for (GeoXPPointIndex segment: current.segments) {
+      size += segment.size();
+    }
+    
+    return size;
+  }
+  
+  /**
+   * Return the number of segments
+   */
+  public int getSegmentCount() {
+    return snapshot.get().segments.length;
+  }
+  
+  /**
+   * Visit the published points of 'buffer' which are inside 'ranges'
+   */
+  private static void scan(Buffer buffer, long[] ranges, Visitor visitor) {
+    int limit = buffer.limit();
+    
+    for (int i = 0; i < limit; i++) {
+      if (0 == buffer.ready.get(i)) {
+        continue;
+      }
+      
+      if (inRanges(ranges, buffer.points[i])) {
+        visitor.visit(buffer.points[i], buffer.payloads[i]);
+      }
+    }
+  }
+  
+  /**
+   * Check if 'point' is in one of the sorted [start,end[ 'ranges' (in unsigned order)
+   */
+  private static boolean inRanges(long[] ranges, long point) {
+    long key = point ^ Long.MIN_VALUE;
+    
+    // Index of the last range starting at or before 'key'
+    int lo = 0;
+    int hi = ranges.length / 2;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if ((ranges[2 * mid] ^ Long.MIN_VALUE) <= key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    if (0 == lo) {
+      return false;
+    }
+    
+    long end = ranges[2 * (lo - 1) + 1];
+    
+    return 0L == end || key < (end ^ Long.MIN_VALUE);
+  }
+}
@@ -0,0 +1,279 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+
+/**
+ * Read only GeoXPShape backed by a memory mapped file.
+ * 
+ * The file starts with a 16 bytes header (magic 'GXPS', version, cell count) followed
+ * by the sorted geocells as big endian longs. Lookups are binary searches performed
+ * directly on the mapped buffer, so mapping a shape does not copy its cells to the heap
+ * and the page cache is shared among all the JVMs mapping the same file.
+ */
+public final class MappedGeoXPShape {
+  
+  public static final int MAGIC = 0x47585053; // 'GXPS'
+  public static final int VERSION = 1;
+  
+  public static final int HEADER_SIZE = 16;
+  
+  /**
+   * Mask of the hhcode bits of a geocell
+   */
+  private static final long CELL_MASK = 0x0fffffffffffffffL;
+  
+  private final LongBuffer cells;
+  
+  private final int size;
+  
+  private MappedGeoXPShape(LongBuffer cells) {
+    this.cells = cells;
+    this.size = cells.limit();
+  }
+  
+  /**
+   * Write a GeoXPShape to a file in the format expected by 'map'.
+   * 
+   * @param shape Shape to write
+   * @param file File to write to, will be overwritten
+   * @throws IOException
+   */
+  public static void write(GeoXPShape shape, File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    
+    try {
+      write(shape, out);
+    } finally {
+      out.close();
+    }
+  }
+  
+  /**
+   * Write a GeoXPShape to an OutputStream in the format expected by 'map'.
+   * The stream is not closed.
+   */
+  public static void write(GeoXPShape shape, OutputStream out) throws IOException {
+    //
+    // Cells are sorted so lookups can use binary search, we sort a copy
+    // as GeoXPShapes built via 'fromCells' may not be sorted
+    //
+    
+    long[] geocells = Arrays.copyOf(shape.geocells, shape.geocells.length);
+    Arrays.sort(geocells);
+    
+    ByteBuffer bb = ByteBuffer.allocate(1 << 16);
+    bb.order(ByteOrder.BIG_ENDIAN);
+    
+    bb.putInt(MAGIC);
+    bb.putInt(VERSION);
+    bb.putLong(geocells.length);
+    
+    for (int i = 0; i < geocells.length; i++) {
+      if (bb.remaining() < 8) {
+        out.write(bb.array(), 0, bb.position());
+        bb.clear();
+      }
+      bb.putLong(geocells[i]);
+    }
+    
+    out.write(bb.array(), 0, bb.position());
+  }
+  
+  /**
+   * Map a file produced by 'write'.
+   * 
+   * The mapping stays valid after the underlying channel is closed, it is
+   * released when the returned instance is garbage collected.
+   * 
+   * @param file File to map
+   * @return
+   * @throws IOException If the file is not a valid GeoXPShape file
+   */
+  public static MappedGeoXPShape map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    
+    try {
+      FileChannel channel = raf.getChannel();
+      
+      long length = channel.size();
+      
+      if (length < HEADER_SIZE) {
+        throw new IOException("Invalid GeoXPShape file, truncated header.");
+      }
+      
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("GeoXPShape file too large, at most " + Integer.MAX_VALUE + " bytes can be mapped.");
+      }
+      
+      MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      mbb.order(ByteOrder.BIG_ENDIAN);
+      
+      if (MAGIC != mbb.getInt(0)) {
+        throw new IOException("Invalid GeoXPShape file, bad magic.");
+      }
+      
+      if (VERSION != mbb.getInt(4)) {
+        throw new IOException("Unsupported GeoXPShape file version " + mbb.getInt(4) + ".");
+      }
+      
+      long count = mbb.getLong(8);
+      
+      if (count < 0 || HEADER_SIZE + count * 8 != length) {
+        throw new IOException("Invalid GeoXPShape file, cell count " + count + " does not match file size " + length + ".");
+      }
+      
+      mbb.position(HEADER_SIZE);
+      
+      return new MappedGeoXPShape(mbb.slice().order(ByteOrder.BIG_ENDIAN).asLongBuffer());
+    } finally {
+      raf.close();
+    }
+  }
+  
+  /**
+   * Return the number of cells of the shape.
+   */
+  public int size() {
+    return this.size;
+  }
+  
+  /**
+   * Return the idx'th geocell of the shape (in sorted order).
+   */
+  public long getCell(int idx) {
+    return this.cells.get(idx);
+  }
+  
+  /**
+   * Copy the mapped cells into a heap GeoXPShape.
+   */
+  public GeoXPShape toGeoXPShape() {
+    long[] geocells = new long[this.size];
+    // Use a duplicate so concurrent relative reads are not an issue
+    this.cells.duplicate().get(geocells);
+    return GeoXPLib.fromCells(geocells, false);
+  }
+  
+  /**
+   * Check whether a GeoXPPoint lies in one of the cells of the shape.
+   * This is the mapped equivalent of GeoXPLib.isGeoXPPointInGeoXPShape
+   */
+  public boolean contains(long geoxppoint) {
+    long hhcode = (geoxppoint >>> 4) & CELL_MASK;
+    
+    for (int r = 1; r <= 15; r++) {
+      if (has(((long) r) << 60 | (hhcode & (CELL_MASK << (60 - (r << 2)))))) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Check whether a geocell intersects the shape, i.e. if the shape contains
+   * the cell itself, one of its ancestors or one of its descendants.
+   */
+  public boolean intersects(long geocell) {
+    int res = (int) ((geocell >>> 60) & 0xfL);
+    long hhcode = geocell & CELL_MASK;
+    
+    //
+    // Check the cell and its ancestors
+    //
+    
+    for (int r = 1; r <= res; r++) {
+      if (has(((long) r) << 60 | (hhcode & (CELL_MASK << (60 - (r << 2)))))) {
+        return true;
+      }
+    }
+    
+    //
+    // Check for descendants, they all lie in the range
+    // [prefix, prefix | lowbits] at each finer resolution
+    //
+    
+    long lowbits = CELL_MASK >>> (res << 2);
+    
+    for (int r = res + 1; r <= 15; r++) {
+      long lo = ((long) r) << 60 | hhcode;
+      int idx = lowerBound(lo);
+      if (idx < this.size && this.cells.get(idx) <= (lo | lowbits)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Check whether any cell of 'shape' intersects this shape.
+   */
+  public boolean intersects(GeoXPShape shape) {
+    for (long geocell: shape.geocells) {
+      if (intersects(geocell)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private boolean has(long geocell) {
+    int idx = lowerBound(geocell);
+    return idx < this.size && this.cells.get(idx) == geocell;
+  }
+  
+  /**
+   * Return the index of the first cell greater than or equal to 'key'
+   * (in signed order, which is the one used by Arrays.sort).
+   */
+  private int lowerBound(long key) {
+    int lo = 0;
+    int hi = this.size;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.cells.get(mid) < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+}
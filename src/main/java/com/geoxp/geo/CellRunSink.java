@@ -0,0 +1,42 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+/**
+ * CellSink which can receive runs of adjacent cells of a row at once.
+ * 
+ * Rasterizers emit the rows of cells they cover as runs to such sinks (unless geocells
+ * filtering is requested), consumers which only need the extent of each row (area
+ * computation, range planning, bitmaps) can then handle a whole row in O(1).
+ */
+public interface CellRunSink extends CellSink {
+  /**
+   * Accept the cells at 'resolution' of the row at 'lat', from 'fromLon' to 'toLon' (inclusive).
+   * 
+   * @param resolution Resolution of the cells (even in [2,32])
+   * @param lat Latitude of the bottom of the row, in the 0->2**32-1 range
+   * @param fromLon Longitude of the left edge of the first cell, in the 0->2**32-1 range
+   * @param toLon Longitude of the left edge of the last cell, fromLon <= toLon < 2**32.
+   *              Runs may overlap cells already emitted.
+   */
+  public void acceptRun(int resolution, long lat, long fromLon, long toLon);
+}
@@ -0,0 +1,40 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+/**
+ * Receiver of the cells produced by the rasterizers of HHCodeHelper (coverPolygon,
+ * coverPolyline, coverLine, coverSegment, coverCorridor, coverRectangle).
+ * 
+ * Implementing this interface allows cells to be counted, streamed or probed against
+ * an index without materializing a Coverage.
+ */
+public interface CellSink {
+  /**
+   * Accept a cell.
+   * 
+   * @param resolution Resolution of the cell (even in [2,32])
+   * @param hhcode HHCode of the cell, bits finer than 'resolution' are set to 0.
+   *               The same cell may be emitted several times by a rasterizer.
+   */
+  public void accept(int resolution, long hhcode);
+}
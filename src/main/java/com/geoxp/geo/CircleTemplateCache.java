@@ -0,0 +1,296 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of circle covering templates for radius queries at fixed resolutions.
+ * 
+ * A template is computed for a (resolution, radius, latitude band) triplet, it stores for each row
+ * of cells around the cell of the center the number of cells the circle spans on each side. It is
+ * valid for any center within the latitude band, so covering a circle amounts to masking the center
+ * to its cell and emitting the rows of the template translated to it, no trigonometry involved.
+ * 
+ * The covers are conservative, they contain all the cells intersecting the circle (as computed by
+ * HHCodeHelper.coverCircle) plus at most a few cells at the end of each row, as the template covers
+ * the circle for all positions of the center within its cell and band.
+ * 
+ * Templates are kept in an LRU map, instances are thread safe.
+ */
+public class CircleTemplateCache {
+  
+  /**
+   * Templates are computed for latitude bands which are rows at this resolution (or
+   * at the covering resolution if coarser). Bands are 0.7 degrees high.
+   */
+  public static final int BAND_RESOLUTION = 8;
+  
+  /**
+   * Default maximum number of templates kept in the cache
+   */
+  public static final int DEFAULT_MAX_TEMPLATES = 1024;
+  
+  private static final double RADIANS_PER_LAT_UNIT = Math.PI / (1L << HHCodeHelper.MAX_RESOLUTION);
+  private static final double RADIANS_PER_LON_UNIT = (Math.PI + Math.PI) / (1L << HHCodeHelper.MAX_RESOLUTION);
+  
+  /**
+   * Widths of rows which are complete or which do not intersect the circle
+   */
+  private static final long FULL_ROW = -1L;
+  private static final long EMPTY_ROW = -2L;
+  
+  /**
+   * Cells spanned on each side of the center cell by the rows of a circle. Row 0 is that
+   * of the center cell.
+   */
+  private static final class Template {
+    private final int firstRow;
+    private final long[] widths;
+    
+    private Template(int firstRow, long[] widths) {
+      this.firstRow = firstRow;
+      this.widths = widths;
+    }
+  }
+  
+  private static final class Key {
+    private final int resolution;
+    private final long band;
+    private final double radius;
+    
+    private Key(int resolution, long band, double radius) {
+      this.resolution = resolution;
+      this.band = band;
+      this.radius = radius;
+    }
+    
+    @Override
+    public int hashCode() {
+      long bits = Double.doubleToLongBits(radius);
+      return (int) (bits ^ (bits >>> 32)) * 31 * 31 + (int) (band ^ (band >>> 32)) * 31 + resolution;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return resolution == k.resolution && band == k.band && Double.doubleToLongBits(radius) == Double.doubleToLongBits(k.radius);
+    }
+  }
+  
+  private final Map<Key,Template> templates;
+  
+  private long hits = 0L;
+  private long misses = 0L;
+  
+  public CircleTemplateCache() {
+    this(DEFAULT_MAX_TEMPLATES);
+  }
+  
+  /**
+   * @param maxTemplates Maximum number of templates to keep, the least recently used ones are evicted.
+   */
+  public CircleTemplateCache(final int maxTemplates) {
+    this.templates = new LinkedHashMap<Key,Template>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key,Template> eldest) {
+        return size() > maxTemplates;
+      }
+    };
+  }
+  
+  /**
+   * Emit to 'coverage' the cells at 'resolution' covering the circle of 'radius' meters around lat/lon.
+   * 
+   * @param lat HH latitude of the center
+   * @param lon HH longitude of the center
+   * @param radius Radius of the circle in meters
+   * @param resolution Resolution of the cells (even in [2,32])
+   * @param coverage Emit the covered cells to this sink
+   * @return 'coverage'
+   */
+  public <T extends CellSink> T cover(long lat, long lon, double radius, int resolution, T coverage) {
+    if (radius < 0.0D || Double.isNaN(radius) || 0 != (((resolution >> 1) - 1) & 0xfffffff0)) {
+      return coverage;
+    }
+    
+    int shift = HHCodeHelper.MAX_RESOLUTION - resolution;
+    long cellsize = 1L << shift;
+    long world = 1L << HHCodeHelper.MAX_RESOLUTION;
+    
+    lat = Math.max(0L, Math.min(world - 1, lat));
+    
+    int bandShift = HHCodeHelper.MAX_RESOLUTION - Math.min(resolution, BAND_RESOLUTION);
+    long band = lat >> bandShift;
+    
+    Template template = getTemplate(resolution, band, bandShift, radius);
+    
+    //
+    // Translate the rows of the template to the cell of the center
+    //
+    
+    long mask = 0xffffffffffffffffL ^ (cellsize - 1);
+    
+    long centerLat = lat & mask;
+    long centerLon = lon & mask;
+    
+    for (int i = 0; i < template.widths.length; i++) {
+      long rowLat = centerLat + (template.firstRow + i) * cellsize;
+      
+      if (rowLat < 0L || rowLat >= world) {
+        continue;
+      }
+      
+      long width = template.widths[i];
+      
+      if (EMPTY_ROW == width) {
+        continue;
+      } else if (FULL_ROW == width) {
+        HHCodeHelper.addCells(coverage, resolution, rowLat, 0L, world - 1, null, false);
+      } else {
+        HHCodeHelper.addCells(coverage, resolution, rowLat, centerLon - width * cellsize, centerLon + width * cellsize, null, false);
+      }
+    }
+    
+    return coverage;
+  }
+  
+  /**
+   * Return a Coverage of the circle of 'radius' meters around lat/lon at 'resolution'.
+   */
+  public Coverage cover(double lat, double lon, double radius, int resolution) {
+    return cover(HHCodeHelper.toLongLat(lat), HHCodeHelper.toLongLon(lon), radius, resolution, new Coverage());
+  }
+  
+  public synchronized int size() {
+    return templates.size();
+  }
+  
+  public synchronized long getHits() {
+    return hits;
+  }
+  
+  public synchronized long getMisses() {
+    return misses;
+  }
+  
+  public synchronized void clear() {
+    templates.clear();
+  }
+  
+  private Template getTemplate(int resolution, long band, int bandShift, double radius) {
+    Key key = new Key(resolution, band, radius);
+    
+    synchronized (this) {
+      Template template = templates.get(key);
+      
+      if (null != template) {
+        hits++;
+        return template;
+      }
+      
+      misses++;
+    }
+    
+    //
+    // Build the template outside of the lock, concurrent misses on the same key compute
+    // the same template
+    //
+    
+    Template template = buildTemplate(resolution, band << bandShift, ((band + 1) << bandShift) - 1, radius);
+    
+    synchronized (this) {
+      templates.put(key, template);
+    }
+    
+    return template;
+  }
+  
+  /**
+   * Build the template of the circle of 'radius' meters at 'resolution' for centers whose
+   * latitude is within bandLo/bandHi (HH units).
+   * 
+   * A point at latitude phi of row k (relative to the row of the center) is in the circle if
+   * hav(dlon) <= (hav(delta) - hav(phi - phi0)) / (cos(phi) * cos(phi0)). The half width of
+   * row k is bounded using the smallest |phi - phi0| and the smallest cosines over all the
+   * positions of the center within the band.
+   */
+  private static Template buildTemplate(int resolution, long bandLo, long bandHi, double radius) {
+    int shift = HHCodeHelper.MAX_RESOLUTION - resolution;
+    long cellsize = 1L << shift;
+    long columns = 1L << resolution;
+    
+    double delta = Math.min(Math.PI, Math.toRadians(radius / (1852.0D * 60.0D)));
+    double havd = Math.pow(Math.sin(delta / 2.0D), 2.0D);
+    
+    // Number of rows on each side of the center row
+    int rows = (int) Math.min(columns, (long) Math.floor(delta / (cellsize * RADIANS_PER_LAT_UNIT)) + 1L);
+    
+    double cos0 = minCos(bandLo, bandHi);
+    
+    long[] widths = new long[2 * rows + 1];
+    
+    for (int k = -rows; k <= rows; k++) {
+      double dphi = Math.max(0, Math.abs(k) - 1) * cellsize * RADIANS_PER_LAT_UNIT;
+      
+      double num = havd - Math.pow(Math.sin(Math.min(Math.PI, dphi) / 2.0D), 2.0D);
+      double den = minCos(bandLo + k * cellsize, bandHi + (k + 1) * cellsize) * cos0;
+      
+      long width;
+      
+      if (num >= den) {
+        width = FULL_ROW;
+      } else if (num <= 0.0D) {
+        width = EMPTY_ROW;
+      } else {
+        double halfwidth = 2.0D * Math.asin(Math.sqrt(num / den));
+        width = (long) Math.ceil(halfwidth / RADIANS_PER_LON_UNIT / cellsize);
+        
+        if (2 * width + 1 >= columns) {
+          width = FULL_ROW;
+        }
+      }
+      
+      widths[k + rows] = width;
+    }
+    
+    return new Template(-rows, widths);
+  }
+  
+  /**
+   * Return the smallest cosine of the latitudes between 'lo' and 'hi' (HH units, clamped to the poles).
+   */
+  private static double minCos(long lo, long hi) {
+    double philo = Math.max(0L, lo) * RADIANS_PER_LAT_UNIT - Math.PI / 2.0D;
+    double phihi = Math.min(1L << HHCodeHelper.MAX_RESOLUTION, hi) * RADIANS_PER_LAT_UNIT - Math.PI / 2.0D;
+    
+    if (philo > phihi) {
+      return 0.0D;
+    }
+    
+    return Math.max(0.0D, Math.min(Math.cos(philo), Math.cos(phihi)));
+  }
+}
@@ -24,13 +24,14 @@ package com.geoxp.geo;
 import gnu.trove.decorator.TLongSetDecorator;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -69,7 +70,7 @@ import java.util.Set;
  *   
  */
 
-public class Coverage {  
+public class Coverage implements CellSink {  
   
   /**
    * HHCode prefix extraction masks for various resolutions
@@ -84,6 +85,11 @@ public class Coverage {
    */
   public static long[] CELL_SIZE_BY_RES = new long[16];
   
+  /**
+   * Area of a cell at each internal resolution, in the unit used by 'area'
+   */
+  private static final long[] CELL_AREA = new long[16];
+  
   private static final String HEXDIGITS = "0123456789abcdef";
   
   /**
@@ -92,6 +98,12 @@ public class Coverage {
    */
   public static final int MAX_RES_DIFF = 4;
   
+  /**
+   * Order in which to emit the internal resolutions so GeoCells are sorted. GeoCells at R >= 16
+   * have their sign bit set so they come first.
+   */
+  private static final int[] GEOCELL_ORDER = { 7, 8, 9, 10, 11, 12, 13, 14, 0, 1, 2, 3, 4, 5, 6 };
+  
   static {
     for (int i = 0; i < 16; i++) {
       PREFIX_MASK[i] = 0xffffffffffffffffL << (60 - i * 4);
@@ -105,6 +117,7 @@ public class Coverage {
     
     for (int i = 0; i < 16; i++) {
       CELL_SIZE_BY_RES[i] = 1L << (32 - ((i + 1) << 1));
+      CELL_AREA[i] = 1L << (60 - 4 * i);
     }
   }
 
@@ -146,12 +159,69 @@ public class Coverage {
    * @param geocells
    */
   public Coverage(long[] geocells) {
-    for (int i = 0; i < geocells.length; i++) {
-      int r = (int) ((geocells[i] >>> 60) & 0xf) - 1;
-      if (null == coverage[r]) {
-        coverage[r] = allocateCellHashSet();
+    this(geocells, false);
+  }
+  
+  /**
+   * Build a Coverage from a list of geocells in bulk. The geocells are partitioned
+   * by resolution and each set is allocated with its final size.
+   * 
+   * @param geocells
+   * @param useTrove Whether to store the cells in Trove sets
+   */
+  public Coverage(long[] geocells, boolean useTrove) {
+    this.useTrove = useTrove;
+    
+    //
+    // Count the cells of each resolution, geocells with a resolution of 0 are ignored
+    //
+    
+    int[] counts = new int[16];
+    
+    for (long geocell: geocells) {
+      counts[(int) (geocell >>> 60)]++;
+    }
+    
+    if (useTrove) {
+      //
+      // Partition the cells by resolution then add them in bulk without boxing
+      //
+      
+      long[][] cells = new long[16][];
+      
+      for (int r = 0; r < 15; r++) {
+        cells[r] = new long[counts[r + 1]];
+        counts[r + 1] = 0;
+      }
+      
+      for (long geocell: geocells) {
+        int r = (int) (geocell >>> 60) - 1;
+        if (r >= 0) {
+          cells[r][counts[r + 1]++] = (geocell << 4) & PREFIX_MASK[r];
+        }
+      }
+      
+      for (int r = 0; r < 15; r++) {
+        if (0 != cells[r].length) {
+          TLongHashSet set = new TLongHashSet(cells[r].length);
+          set.addAll(cells[r]);
+          coverage[r] = new TLongSetDecorator(set);
+        }
+      }
+    } else {
+      for (int r = 0; r < 15; r++) {
+        if (0 != counts[r + 1]) {
+          // Size the set so it is never rehashed
+          coverage[r] = new HashSet<Long>((int) (counts[r + 1] / 0.75F) + 1);
+        }
+      }
+      
+      for (long geocell: geocells) {
+        int r = (int) (geocell >>> 60) - 1;
+        if (r >= 0) {
+          coverage[r].add((geocell << 4) & PREFIX_MASK[r]);
+        }
       }
-      coverage[r].add(geocells[i] << 4);
     }
   }
   
@@ -193,7 +263,7 @@ public class Coverage {
     Map<Integer,Integer> cardinalities = new HashMap<Integer, Integer>();
     
     for (int r = 0; r < 16; r++) {
-      if (null != coverage[r] && coverage[r].isEmpty()) {
+      if (null != coverage[r] && !coverage[r].isEmpty()) {
         cardinalities.put((r + 1) << 1, coverage[r].size());
       }
     }
@@ -215,7 +285,12 @@ public class Coverage {
       return 0;
     }
     
-    return internalGetCells(r).size();    
+    // Do not allocate the set of an empty resolution, this is called in loops by reduce
+    if (null == coverage[r]) {
+      return 0;
+    }
+    
+    return coverage[r].size();    
   }
   
   /**
@@ -475,6 +550,14 @@ public class Coverage {
     addCell((int) (((geocell & 0xF000000000000000L) >>> 60) << 1), geocell << 4);
   }
   
+  /**
+   * Add a cell emitted by a rasterizer, @see CellSink
+   */
+  @Override
+  public void accept(int resolution, long hhcode) {
+    addCell(resolution, hhcode);
+  }
+  
   public boolean contains(int resolution, long hhcode) {
     int r = (resolution >> 1) - 1;
     
@@ -614,71 +697,82 @@ public class Coverage {
     
     long[] geocells = new long[count];
     
-    // Generate geocells
-    int idx = 0;
-    
-    for (int i = 0; i < finestresolution >> 1; i++) {
-      if (null != coverage[i] && !coverage[i].isEmpty()) {
-        for (Long hhcode: coverage[i]) {
-          // INFO(hbs): we do not AND the lowest bits because they have already been cleared
-          //            when building the Coverage.
-          geocells[idx] = ((long) (i + 1)) << 60;
-          geocells[idx] |= (hhcode >> 4) & 0x0fffffffffffffffL;
-          idx++;
-        }
-      }            
-    }
- 
-    Arrays.sort(geocells);
+    toGeoCells(finestresolution, geocells, 0);
     
     return geocells;
+  }
+  
+  /**
+   * Write the sorted GeoCells of the Coverage in a caller provided buffer.
+   * 
+   * @param finestresolution The finest resolution (even, 2 -> 30) to include.
+   * @param geocells Buffer to write the GeoCells to, it must have room for all of them.
+   * @param offset Offset at which to write the first GeoCell.
+   * @return The number of GeoCells written.
+   */
+  public int toGeoCells(int finestresolution, long[] geocells, int offset) {
+    int idx = offset;
     
-    /*
-    //    
-    // We scan the resolutions from 8 to 14 (which lead to negative longs)
-    // then from 0 to 7
-    //
-
-    for (int i = 7; i < finestresolution >> 1; i++) {
-      if (null != coverage[i] && !coverage[i].isEmpty()) {
-        int startidx = idx;
-        for (Long hhcode: coverage[i]) {
-          // INFO(hbs): we do not AND the lowest bits because they have already been cleared
-          //            when building the Coverage.
-          geocells[idx] = ((long) (i + 1)) << 60;
-          geocells[idx] |= (hhcode >> 4) & 0x0fffffffffffffffL;
-          idx++;
-        }
-        //
-        // Sort the cells at the current resolution
-        //
-        Arrays.sort(geocells, startidx, idx);
-      }      
+    for (int r: GEOCELL_ORDER) {
+      if (r >= finestresolution >> 1) {
+        continue;
+      }
+      
+      long[] cells = sortedGeoCells(r);
+      System.arraycopy(cells, 0, geocells, idx, cells.length);
+      idx += cells.length;
     }
     
-    for (int i = 0; i < 7; i++) {
-      if (i >= finestresolution >> 1) {
-        break;
-      }
-      if (null != coverage[i] && !coverage[i].isEmpty()) {
-        int startidx = idx;
-        for (Long hhcode: coverage[i]) {
-          // INFO(hbs): we do not AND the lowest bits because they have already been cleared
-          //            when building the Coverage.
-          geocells[idx] = ((long) (i + 1)) << 60;
-          geocells[idx] |= (hhcode >> 4) & 0x0fffffffffffffffL;
-          idx++;
-        }
-        //
-        // Sort the cells at the current resolution
-        //
-        Arrays.sort(geocells, startidx, idx);
+    return idx - offset;
+  }
+
+  /**
+   * Write the sorted GeoCells of the Coverage in a LongBuffer, starting at its current position.
+   * 
+   * @param finestresolution The finest resolution (even, 2 -> 30) to include.
+   * @param buffer Buffer to write the GeoCells to, it must have room for all of them.
+   * @return The number of GeoCells written.
+   */
+  public int toGeoCells(int finestresolution, LongBuffer buffer) {
+    int count = 0;
+    
+    for (int r: GEOCELL_ORDER) {
+      if (r >= finestresolution >> 1) {
+        continue;
       }
+      
+      long[] cells = sortedGeoCells(r);
+      buffer.put(cells);
+      count += cells.length;
     }
-
-    return geocells;
-    */
+    
+    return count;
+  }
+  
+  /**
+   * Return the GeoCells of internal resolution 'r', sorted.
+   */
+  private long[] sortedGeoCells(int r) {
+    long[] cells = snapshot(r);
+    
+    long resolution = ((long) (r + 1)) << 60;
+    
+    for (int i = 0; i < cells.length; i++) {
+      // INFO(hbs): we do not AND the lowest bits because they have already been cleared
+      //            when building the Coverage.
+      cells[i] = resolution | (cells[i] >>> 4);
+    }
+    
+    //
+    // The resolution nibble is constant, so only the 4 * (r + 2) upper bits of the
+    // GeoCells are significant
+    //
+    
+    radixSort(cells, r + 1);
+    
+    return cells;
   }
+
     
   /**
    * Checks whether a given hhcode is present in a GeoCell coverage
@@ -798,87 +892,33 @@ public class Coverage {
       long threshold = (thresholds >> (4 * (15 - r))) & 0xfL;
       
       // Sort the cells at resolution 'r'
-      List<Long> sortedCells = new ArrayList<Long>();
-      sortedCells.addAll(coverage[r]);
-      Collections.sort(sortedCells);
-      
-      // Flag indicating the first cell
-      boolean first = true;
+      long[] sortedCells = sortedSnapshot(r);
       
-      // Parent cell at R-2
-      long parentCell = 0L;
-      long lastParent = 0L;
+      Set<Long> s = coverage[r];
+      int shift = 4 * (15 - r);
       
-      // Number of child cells of 'parentCell'
-      int children = 0;
+      int idx = 0;
       
-      // Loop over the cells
-      int count = sortedCells.size();
-
-      for (long hhcode: sortedCells) {
-        
-        count--;
+      while (idx < sortedCells.length) {
         // Compute parent cell at r-1
-        parentCell = hhcode & PREFIX_MASK[r - 1];
-
-        if (first) {
-          lastParent = parentCell;
-          // We need to have children set to 1 so we can handle the case when there is only 1 cell left
-          children = 0;
-        }
+        long parentCell = sortedCells[idx] & PREFIX_MASK[r - 1];
         
-        first = false;
+        //
+        // Build the bitmask of the children of 'parentCell', they are contiguous in 'sortedCells'
+        //
         
-        // The parent cell just changed or we reached the end of the cells, decide if we should include the current
-        // parent or not.
+        int childmask = 0;
         
-        if (lastParent != parentCell || 0 == count) {
-          if (0 == count) {
-            children++;
-          }
-          if ((threshold > 0 && children >= threshold) || children == 16) {
-            // Add parent cell at r - 1
-            internalGetCells(r - 1).add(lastParent);
-            totalcells++;
-
-            //
-            // We remove all found children.
-            // Intuitively you could think we could remove each child one after the other and stop when the
-            // desired cell count is reached without adding the parent cell, but that's
-            // not the case, because doing so would lead to a coverage which does not include the
-            // original one. So counter intuitively we remove all children.
-            // If this is not the last cell, we need to prevent an off by one error.
-            //
-            totalcells -= (0 == threshold ? 16 : (0 == count ? children : children - 1));
-            
-            Set<Long> s = internalGetCells(r);
-            int cardinality = s.size();
-            
-            // Remove child cells at r
-            for (long offset = 0L; offset < 16L; offset++) {              
-              s.remove(lastParent | (offset << (4 * (15 -r))));
-            }
-            // Exit if we reached the desired number of cells
-            if (cellcount > 0 && totalcells <= cellcount) {
-              break;
-            }
-          }
-          if (0 != count) {
-            lastParent = parentCell;
-          }
-          children = 1;        
-        } else {
-          children++;
+        while (idx < sortedCells.length && parentCell == (sortedCells[idx] & PREFIX_MASK[r - 1])) {
+          childmask |= 1 << ((int) (sortedCells[idx] >>> shift) & 0xf);
+          idx++;
         }
-      }
-
-      // If we reached the last cell and its parent is different from the
-      // parent of the previous cell we encountered, handle it
-      if ((lastParent != parentCell) && ((0 == cellcount) || (cellcount > 0 && totalcells <= cellcount))) {
+        
+        int children = Integer.bitCount(childmask);
+        
         if ((threshold > 0 && children >= threshold) || children == 16) {
           // Add parent cell at r - 1
           internalGetCells(r - 1).add(parentCell);
-          totalcells++;
 
           //
           // We remove all found children.
@@ -886,19 +926,23 @@ public class Coverage {
           // desired cell count is reached without adding the parent cell, but that's
           // not the case, because doing so would lead to a coverage which does not include the
           // original one. So counter intuitively we remove all children.
-          // If this is not the last cell, we need to prevent an off by one error.
           //
-          totalcells -= (0 == threshold ? 16 : (0 == count ? children : children - 1));
-          
-          Set<Long> s = internalGetCells(r);
-          int cardinality = s.size();
+          totalcells += 1 - children;
           
           // Remove child cells at r
-          for (long offset = 0L; offset < 16L; offset++) {              
-            s.remove(parentCell | (offset << (4 * (15 -r))));
+          for (int offset = 0; offset < 16; offset++) {
+            if (0 != (childmask & (1 << offset))) {
+              s.remove(parentCell | (((long) offset) << shift));
+            }
           }
-        }        
+          
+          // Exit if we reached the desired number of cells
+          if (cellcount > 0 && totalcells <= cellcount) {
+            break;
+          }
+        }
       }
+      
       if (cellcount > 0 && totalcells <= cellcount) {
         break;
       }
@@ -926,7 +970,7 @@ public class Coverage {
         continue;
       }
       
-      Long[] cells = sr2.toArray(new Long[0]);
+      long[] cells = snapshot(r+2);
       
       for (long hhcode: cells) {
         if (sr.contains(hhcode & PREFIX_MASK[r])) {
@@ -948,20 +992,72 @@ public class Coverage {
 
   /**
    * Remove cells which already have a parent part of the coverage
+   * 
+   * Cells of all resolutions are merged into a single stream sorted by prefix (hhcode in unsigned
+   * order, coarser cells first), in which the descendants of a cell immediately follow it. A cell
+   * is therefore covered if and only if it lies within the last retained cell, so a single sweep
+   * without any hash lookup is enough.
    */
   public void dedup() {
-    for (int r = 15; r >= 0; r--) {
-      List<Long> cells = new ArrayList<Long>();
-      cells.addAll(internalGetCells(r));
+    
+    //
+    // Snapshot and sort each resolution. Cells have their sign bit flipped so
+    // the signed order of the snapshots is the unsigned order of the cells.
+    //
+    
+    long[][] cells = new long[16][];
+    int[] idx = new int[16];
+    
+    // Resolutions which have cells
+    int[] resolutions = new int[16];
+    int nres = 0;
+    
+    for (int r = 0; r < 16; r++) {
+      cells[r] = snapshot(r);
+      if (0 == cells[r].length) {
+        continue;
+      }
+      for (int i = 0; i < cells[r].length; i++) {
+        cells[r][i] ^= Long.MIN_VALUE;
+      }
+      radixSort(cells[r], r);
+      resolutions[nres++] = r;
+    }
+    
+    // Last retained cell and its resolution
+    int openR = -1;
+    long openCell = 0L;
+    
+    while (true) {
+      //
+      // Extract the next cell in prefix order, on ties the coarsest resolution wins
+      //
       
-      for (long cell:cells) {
-        for (int rr = 0; rr < r; rr++) {
-          if (internalGetCells(rr).contains(cell & PREFIX_MASK[rr])) {
-            internalGetCells(r).remove(cell);
-            break;
-          }            
+      int minR = -1;
+      long min = 0L;
+      
+      for (int i = 0; i < nres; i++) {
+        int r = resolutions[i];
+        if (idx[r] < cells[r].length && (-1 == minR || cells[r][idx[r]] < min)) {
+          minR = r;
+          min = cells[r][idx[r]];
         }
       }
+      
+      if (-1 == minR) {
+        break;
+      }
+      
+      idx[minR]++;
+      
+      long hhcode = min ^ Long.MIN_VALUE;
+      
+      if (-1 != openR && openR < minR && openCell == (hhcode & PREFIX_MASK[openR])) {
+        coverage[minR].remove(hhcode);
+      } else {
+        openR = minR;
+        openCell = hhcode;
+      }
     }
   }
   
@@ -996,66 +1092,47 @@ public class Coverage {
       long threshold = (thresholds >> (4 * (15 - r))) & 0xfL;
       
       // Sort the cells at resolution 'r'
-      List<Long> sortedCells = new ArrayList<Long>();
-      sortedCells.addAll(coverage[r]);
-      Collections.sort(sortedCells);
-      
-      // Flag indicating the first cell
-      boolean first = true;
+      long[] sortedCells = sortedSnapshot(r);
       
-      // Parent cell at R-2
-      long parentCell = 0L;
-      long lastParent = 0L;
+      Set<Long> s = coverage[r];
+      int shift = 4 * (15 - r);
       
-      // Number of child cells of 'parentCell'
-      int children = 0;
+      int idx = 0;
       
-      // Loop over the cells
-      int count = sortedCells.size();
-
-      for (long hhcode: sortedCells) {
-        
-        count--;
+      while (idx < sortedCells.length) {
         // Compute parent cell at r-1
-        parentCell = hhcode & PREFIX_MASK[r - 1];
-
-        if (first) {
-          lastParent = parentCell;
-          // We need to have children set to 1 so we can handle the case when there is only 1 cell left
-          children = 0;
-        }
+        long parentCell = sortedCells[idx] & PREFIX_MASK[r - 1];
         
-        first = false;
+        //
+        // Build the bitmask of the children of 'parentCell', they are contiguous in 'sortedCells'
+        //
         
-        // The parent cell just changed or we reached the end of the cells, decide if we should keep the
-        // current children or not.
+        int childmask = 0;
         
-        if (lastParent != parentCell || 0 == count) {
-          if (0 == count) {
-            children++;
-          }
-          if (children <= threshold) {
-            //
-            // We remove all found children since there are not enough of them
-            //
-            totalcells -= children;
-            
-            Set<Long> s = internalGetCells(r);
-            int cardinality = s.size();
-            
-            // Remove child cells at r
-            for (long offset = 0L; offset < 16L; offset++) {              
-              s.remove(lastParent | (offset << (4 * (15 -r))));
-            }
-            // Exit if we reached the desired number of cells
-            if (cellcount > 0 && totalcells <= cellcount) {
-              break;
+        while (idx < sortedCells.length && parentCell == (sortedCells[idx] & PREFIX_MASK[r - 1])) {
+          childmask |= 1 << ((int) (sortedCells[idx] >>> shift) & 0xf);
+          idx++;
+        }
+        
+        int children = Integer.bitCount(childmask);
+        
+        if (children <= threshold) {
+          //
+          // We remove all found children since there are not enough of them
+          //
+          totalcells -= children;
+          
+          // Remove child cells at r
+          for (int offset = 0; offset < 16; offset++) {
+            if (0 != (childmask & (1 << offset))) {
+              s.remove(parentCell | (((long) offset) << shift));
             }
           }
-          lastParent = parentCell;
-          children = 1;        
-        } else {
-          children++;
+          
+          // Exit if we reached the desired number of cells
+          if (cellcount > 0 && totalcells <= cellcount) {
+            break;
+          }
         }
       }
 
@@ -1067,6 +1144,119 @@ public class Coverage {
     return this;
   }
 
+  /**
+   * Return an immutable snapshot of this coverage which can be shared between threads
+   * without locking. Later changes to this coverage are not reflected in the snapshot.
+   */
+  public FrozenCoverage freeze() {
+    return new FrozenCoverage(sortedCells());
+  }
+  
+  /**
+   * Return sorted copies of the cells at each internal resolution.
+   */
+  long[][] sortedCells() {
+    long[][] cells = new long[16][];
+    
+    for (int r = 0; r < 16; r++) {
+      cells[r] = sortedSnapshot(r);
+    }
+    
+    return cells;
+  }
+  
+  /**
+   * Copy the cells at internal resolution 'r' into a long[]
+   */
+  private long[] snapshot(int r) {
+    Set<Long> cells = coverage[r];
+    
+    if (null == cells) {
+      return new long[0];
+    }
+    
+    // Avoid boxing when the cells are in a Trove set
+    if (cells instanceof TLongSetDecorator) {
+      return ((TLongSetDecorator) cells).getSet().toArray();
+    }
+    
+    long[] snapshot = new long[cells.size()];
+    int idx = 0;
+    
+    for (long cell: cells) {
+      snapshot[idx++] = cell;
+    }
+    
+    return snapshot;
+  }
+  
+  /**
+   * Copy the cells at internal resolution 'r' into a long[] sorted in
+   * natural (signed) order.
+   */
+  private long[] sortedSnapshot(int r) {
+    long[] cells = snapshot(r);
+    radixSort(cells, r);
+    return cells;
+  }
+  
+  /**
+   * Sort cells at internal resolution 'r' in natural (signed) order.
+   * 
+   * Only the 4 * (r + 1) upper bits of the cells are significant so the LSD radix sort
+   * only needs to process the upper (r + 2) / 2 bytes.
+   */
+  static void radixSort(long[] cells, int r) {
+    if (cells.length < 256) {
+      Arrays.sort(cells);
+      return;
+    }
+    
+    long[] src = cells;
+    long[] dst = new long[cells.length];
+    int[] counts = new int[256];
+    
+    int nbytes = (r + 2) >> 1;
+    
+    for (int b = 8 - nbytes; b < 8; b++) {
+      int shift = b << 3;
+      
+      Arrays.fill(counts, 0);
+      
+      //
+      // Flip the sign bit so signed order is the unsigned order of the digits
+      //
+      
+      for (long cell: src) {
+        counts[(int) (((cell ^ Long.MIN_VALUE) >>> shift) & 0xffL)]++;
+      }
+      
+      // Skip the pass if all cells have the same digit
+      if (src.length == counts[(int) (((src[0] ^ Long.MIN_VALUE) >>> shift) & 0xffL)]) {
+        continue;
+      }
+      
+      int offset = 0;
+      for (int i = 0; i < 256; i++) {
+        int c = counts[i];
+        counts[i] = offset;
+        offset += c;
+      }
+      
+      for (long cell: src) {
+        dst[counts[(int) (((cell ^ Long.MIN_VALUE) >>> shift) & 0xffL)]++] = cell;
+      }
+      
+      long[] tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+    
+    if (src != cells) {
+      System.arraycopy(src, 0, cells, 0, cells.length);
+    }
+  }
+  
   /**
    * Merge another coverage with this one.
    * No deduplication is taken place
@@ -1310,39 +1500,109 @@ public class Coverage {
     return a;
   }
 
+  /**
+   * Compute A\B (A-B, A minus B).
+   * 
+   * Cells of A which are covered by a cell of B (or one of its ancestors) are dropped.
+   * Cells of A which contain finer cells of B are split, but only along the path leading
+   * to the cells of B, so the number of created cells is proportional to the output.
+   * 
+   * @param a
+   * @param b
+   * @param deepCopy Ignored, A and B are always left untouched.
+   * @return The difference A-B
+   */
   public static Coverage minus(Coverage a, Coverage b, boolean deepCopy) {
-
-    //
-    // Clone coverages.
-    //
     
-    if (deepCopy) {
-      a = a.deepCopy();
-      b = b.deepCopy();
-    }
+    Coverage c = new Coverage();
     
     //
-    // Optimize clones
+    // Index the prefixes of all the cells of B at the coarser resolutions,
+    // prefixes[r] contains the cells at resolution r which contain finer cells of B
     //
     
-    a.optimize(0L);
-    b.optimize(0L);
-    
-    //
-    // Normalize them
-    //
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    Set<Long>[] prefixes = new Set[16];
     
-    Coverage.normalize(a, b);
+    for (int r = 1; r < 16; r++) {
+      if (null == b.coverage[r]) {
+        continue;
+      }
+      
+      for (long hhcode: b.coverage[r]) {
+        for (int rr = r - 1; rr >= 0; rr--) {
+          if (null == prefixes[rr]) {
+            prefixes[rr] = c.allocateCellHashSet();
+          }
+          
+          //
+          // If the prefix was already known, so are its own prefixes
+          //
+          
+          if (!prefixes[rr].add(hhcode & PREFIX_MASK[rr])) {
+            break;
+          }
+        }
+      }
+    }
 
-    for (int r = 2; r <= 32; r+=2) {
-      for (long hhcode: b.getCells(r)) {
-        a.removeCell(r, hhcode);
+    for (int r = 0; r < 16; r++) {
+      if (null == a.coverage[r]) {
+        continue;
+      }
+      
+      for (long hhcode: a.coverage[r]) {
+        if (b.coversCell(r, hhcode)) {
+          continue;
+        }
+        c.addMinus(r, hhcode, b, prefixes);
       }
     }
     
-    return a;
+    return c;
   }
 
+  /**
+   * Add the part of cell 'hhcode' at internal resolution 'r' which is not
+   * covered by 'b'. The cell is assumed not to be covered by a cell of 'b' at
+   * resolution 'r' or coarser.
+   */
+  private void addMinus(int r, long hhcode, Coverage b, Set<Long>[] prefixes) {
+    if (null == prefixes[r] || !prefixes[r].contains(hhcode)) {
+      internalGetCells(r).add(hhcode);
+      return;
+    }
+    
+    //
+    // 'b' contains finer cells within 'hhcode', split it
+    //
+    
+    for (int i = 0; i < 16; i++) {
+      long subcell = hhcode | (((long) i) << (60 - 4 * (r + 1)));
+      
+      if (null != b.coverage[r + 1] && b.coverage[r + 1].contains(subcell)) {
+        continue;
+      }
+      
+      addMinus(r + 1, subcell, b, prefixes);
+    }
+  }
+  
+  /**
+   * Check whether a cell or one of its ancestors is in the coverage.
+   * 
+   * @param r Internal resolution (0-15) of the cell
+   * @param hhcode Cell to check
+   */
+  private boolean coversCell(int r, long hhcode) {
+    for (int rr = 0; rr <= r; rr++) {
+      if (null != coverage[rr] && coverage[rr].contains(hhcode & PREFIX_MASK[rr])) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
   public static Coverage minus(Coverage a, Coverage b) {
     return minus(a,b,true);
   }
@@ -1420,11 +1680,16 @@ public class Coverage {
   /**
    * Compute the intersection of two coverages.
    * 
+   * The intersection of two cells is the finer of the two when one contains the other, so
+   * the intersection is made of the cells of A which are covered by B and the cells of B which
+   * are covered by A. Containment is checked by looking up the ancestors of each cell, no
+   * cell is split.
+   * 
    * @param a
    * @param b
-   * @param deepCopy
+   * @param deepCopy Ignored, A and B are always left untouched.
    * 
-   * @return A new coverage that is the intersection of A and B. A and B left untouched if deepCopy is true
+   * @return A new coverage that is the intersection of A and B.
    */
   public static Coverage intersection(Coverage a, Coverage b, boolean deepCopy) {
     
@@ -1436,57 +1701,31 @@ public class Coverage {
       return new Coverage();
     }
     
-    //
-    // Clone coverages.
-    //
-    
-    if (deepCopy) {
-      a = a.deepCopy();
-      b = b.deepCopy();
-    }
-    
-    //
-    // Optimize
-    //
-    
-    a.optimize(0L);
-    b.optimize(0L);
-    
-    //
-    // Normalize
-    //
-    
-    Coverage.normalize(a, b);
-    
-     //
-    // Now loop over cells in the coverage with the least
-    // and only keep the ones that are in both.
-    //
- 
     Coverage c = new Coverage();
     
-    for (int r = 2; r <= 32; r += 2) {
-      Set<Long> cellsA = a.getCells(r);
-      Set<Long> cellsB = b.getCells(r);
+    c.addCovered(a, b);
+    c.addCovered(b, a);
     
-      if (cellsA.size() < cellsB.size()) {
-        for (long hhcode: cellsA) {
-          if (cellsB.contains(hhcode)) {
-            c.addCell(r, hhcode);
-          }
+    return c;
+  }
+
+  /**
+   * Add the cells of 'a' which are covered by 'b'
+   */
+  private void addCovered(Coverage a, Coverage b) {
+    for (int r = 0; r < 16; r++) {
+      if (null == a.coverage[r]) {
+        continue;
+      }
+      
+      for (long hhcode: a.coverage[r]) {
+        if (b.coversCell(r, hhcode)) {
+          internalGetCells(r).add(hhcode);
         }
-      } else {
-        for (long hhcode: cellsB) {
-          if (cellsA.contains(hhcode)) {
-            c.addCell(r, hhcode);
-          }
-        }      
       }
     }
-    
-    return c;
   }
-
+  
   public static Coverage intersection(Coverage a, Coverage b) {
     return intersection(a,b,true);
   }
@@ -1496,11 +1735,12 @@ public class Coverage {
    * is less or equal to 'count'. This is useful when performing a
    * search as the less cells the better.
    * 
+   * Cells are merged greedily into ancestor cells, cheapest merges first, the cost of
+   * a merge being the area it adds to the coverage divided by the number of cells it saves.
+   * 
    * @param count Maximum number of cells the coverage can contain.
    */
   public void reduce(int count) {
-
-    long thresholds = 0L;
       
     //
     // Optimize the coverage as a starter.
@@ -1514,42 +1754,202 @@ public class Coverage {
     if (getCellCount() <= count) {
       return;
     }
-        
+    
     //
-    // Loop while there are too many cells and while there are cells
-    // at finer resolutions than 2 (because we can't reduce a coverage that
-    // only has cells at resolution 2).
+    // Make sure no cell contains another one, so each cell is counted once below
     //
     
+    dedup();
+    
+    int total = getCellCount();
+    
+    if (total <= count) {
+      return;
+    }
+    
+    long[][] cells = sortedCells();
+    
+    //
+    // Build the tree of merge candidates, i.e. all the strict ancestors of the cells.
+    // nodes[r] contains the sorted ancestors at internal resolution r, parents[r] the index
+    // of the parent of each of them in nodes[r - 1].
+    //
+    
+    long[][] nodes = new long[15][];
+    int[][] parents = new int[15][];
+    
+    // Number of cells below each node and area they cover
+    int[][] counts = new int[15][];
+    long[][] areas = new long[15][];
+    
+    for (int r = 14; r >= 0; r--) {
+      nodes[r] = ancestors(cells[r + 1], r < 14 ? nodes[r + 1] : null, PREFIX_MASK[r]);
+      counts[r] = new int[nodes[r].length];
+      areas[r] = new long[nodes[r].length];
+      
+      // Aggregate the cells at r + 1
+      int p = 0;
+      for (long cell: cells[r + 1]) {
+        while (nodes[r][p] != (cell & PREFIX_MASK[r])) {
+          p++;
+        }
+        counts[r][p]++;
+        areas[r][p] += CELL_AREA[r + 1];
+      }
+      
+      // Aggregate the nodes at r + 1
+      if (r < 14) {
+        parents[r + 1] = new int[nodes[r + 1].length];
+        p = 0;
+        for (int i = 0; i < nodes[r + 1].length; i++) {
+          while (nodes[r][p] != (nodes[r + 1][i] & PREFIX_MASK[r])) {
+            p++;
+          }
+          parents[r + 1][i] = p;
+          counts[r][p] += counts[r + 1][i];
+          areas[r][p] += areas[r + 1][i];
+        }
+      }
+    }
+    
+    //
+    // Queue all the candidates which save at least one cell
+    //
+    
+    PriorityQueue<Long> queue = new PriorityQueue<Long>();
+    
+    for (int r = 0; r < 15; r++) {
+      for (int i = 0; i < nodes[r].length; i++) {
+        if (counts[r][i] > 1) {
+          queue.add(mergeKey(r, i, counts[r][i], areas[r][i]));
+        }
+      }
+    }
+    
     //
-    // Start by optimizing at the finest resolution
+    // Pop the cheapest merges until the budget is met. Merging a node updates its ancestors
+    // which are queued again, entries whose key no longer matches their node are stale.
     //
     
-    int resolution = getFinestResolution();
+    boolean[][] merged = new boolean[15][];
+    
+    for (int r = 0; r < 15; r++) {
+      merged[r] = new boolean[nodes[r].length];
+    }
+    
+    while (total > count && !queue.isEmpty()) {
+      long key = queue.poll();
+      int r = (int) ((key >>> 28) & 0xfL);
+      int i = (int) (key & 0x0fffffffL);
+      
+      if (merged[r][i] || counts[r][i] < 2 || key != mergeKey(r, i, counts[r][i], areas[r][i])) {
+        continue;
+      }
+      
+      // Ignore the node if one of its ancestors was merged
+      boolean covered = false;
+      
+      for (int rr = r, p = i; rr > 0 && !covered; rr--) {
+        p = parents[rr][p];
+        covered = merged[rr - 1][p];
+      }
+      
+      if (covered) {
+        continue;
+      }
+      
+      merged[r][i] = true;
+      
+      int saved = counts[r][i] - 1;
+      long added = CELL_AREA[r] - areas[r][i];
+      
+      total -= saved;
+      counts[r][i] = 1;
+      areas[r][i] = CELL_AREA[r];
+      
+      for (int rr = r, p = i; rr > 0; rr--) {
+        p = parents[rr][p];
+        counts[rr - 1][p] -= saved;
+        areas[rr - 1][p] += added;
+        if (counts[rr - 1][p] > 1) {
+          queue.add(mergeKey(rr - 1, p, counts[rr - 1][p], areas[rr - 1][p]));
+        }
+      }
+    }
     
     //
-    // Start with a threshold of 15 (we already optimized with a threshold of 16)
-    // We will optimize by decreasing the threshold at each resolution and walking
-    // our way to the coarsest resolution.
+    // Flag the nodes below merged nodes, then remove the cells they contain and
+    // add the outermost merged nodes.
     //
     
-    long resthreshold = 15;
+    for (int r = 1; r < 15; r++) {
+      for (int i = 0; i < nodes[r].length; i++) {
+        if (merged[r - 1][parents[r][i]]) {
+          merged[r][i] = true;
+        }
+      }
+    }
+    
+    for (int r = 1; r < 16; r++) {
+      int p = 0;
+      for (long cell: cells[r]) {
+        while (nodes[r - 1][p] != (cell & PREFIX_MASK[r - 1])) {
+          p++;
+        }
+        if (merged[r - 1][p]) {
+          coverage[r].remove(cell);
+        }
+      }
+    }
+    
+    for (int r = 0; r < 15; r++) {
+      for (int i = 0; i < nodes[r].length; i++) {
+        if (merged[r][i] && (0 == r || !merged[r - 1][parents[r][i]])) {
+          internalGetCells(r).add(nodes[r][i]);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Return the sorted distinct prefixes (using 'mask') of two sorted arrays of cells.
+   */
+  private static long[] ancestors(long[] a, long[] b, long mask) {
+    if (null == b) {
+      b = new long[0];
+    }
+    
+    long[] prefixes = new long[a.length + b.length];
+    
+    int n = 0;
+    int i = 0;
+    int j = 0;
     
-    while (getCellCount() > count || getCellCount(2) == getCellCount()) {
-      thresholds = resthreshold << (64 - 2 * resolution);
-      optimize(thresholds, resolution - 2, HHCodeHelper.MAX_RESOLUTION, count);
+    while (i < a.length || j < b.length) {
+      long prefix;
       
-      // Decrease threshold for the current resolution
-      resthreshold--;
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        prefix = a[i++] & mask;
+      } else {
+        prefix = b[j++] & mask;
+      }
       
-      // If we reached 0, decrease resolution.
-      if (0 == resthreshold) {
-        resthreshold = 15;
-        do {
-          resolution -= 2;
-        } while (0 == getCellCount(resolution) && resolution > 0);
-      }
-    }      
+      if (0 == n || prefixes[n - 1] != prefix) {
+        prefixes[n++] = prefix;
+      }
+    }
+    
+    return Arrays.copyOf(prefixes, n);
+  }
+  
+  /**
+   * Compute the queue key of a merge candidate, the cost of the merge (area added per
+   * saved cell) as a float in the upper 32 bits followed by the resolution and the
+   * index of the node.
+   */
+  private static long mergeKey(int r, int i, int count, long area) {
+    float cost = (float) ((CELL_AREA[r] - area) / (double) (count - 1));
+    return (((long) Float.floatToIntBits(cost)) << 32) | (((long) r) << 28) | i;
   }
   
   /**
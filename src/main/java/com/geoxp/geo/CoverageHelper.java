@@ -21,35 +21,31 @@
 
 package com.geoxp.geo;
 
+import gnu.trove.set.hash.TLongHashSet;
+
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Set;
 
 public class CoverageHelper {
   private static final int MIN_LOD = 256;
   private static final int MAX_LOD = -1;
+  
+  /**
+   * Odd multiplier used to scramble corners in toEnvelope and its inverse modulo 2**64
+   */
+  private static final long CORNER_SCRAMBLE = 0x9E3779B97F4A7C15L;
+  private static final long CORNER_UNSCRAMBLE = 0xF1DE83E19937733DL;
 
   public static Coverage fromGeoCells(long[] geocells) {
     return fromGeoCells(geocells, true);
   }
   
   public static Coverage fromGeoCells(long[] geocells, boolean optimize) {
-    Coverage c = new Coverage();
-    
-    for (long geocell: geocells) {
-      int resolution = ((int) (((geocell & 0xf000000000000000L) >> 60) & 0xf)) << 1;
-      long hhcode = geocell << 4;
-      c.addCell(resolution, hhcode);
-    }
+    Coverage c = new Coverage(geocells);
   
     if (optimize) {
       c.optimize(0L);
@@ -63,105 +59,16 @@ public class CoverageHelper {
     return sw.toString();
   }
   
+  /**
+   * Export a coverage as a KML document, see CoverageRectangleExporter. Cells are written as rectangles,
+   * some adjacent ones being batched into larger rectangles, and the coverage is read in place so memory
+   * use does not grow with its size.
+   */
   public static void toKML(Coverage coverage, Writer writer, boolean outline) throws IOException {
-    
-    //
-    // Extract cells to render
-    //
-    
-    // FIXME(hbs): obfuscate cells so the use of HHCodes is not obvious
-    //String[] cells = coverage.toString("#").split("#");
-
-    writer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-    writer.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
-    writer.append("<Document>\n");
-    writer.append("  <name>GeoXP Coverage</name>\n");
-    writer.append("  <ScreenOverlay>\n");
-    writer.append("    <overlayXY x=\"0\" y=\"0\" xunits=\"pixels\" yunits=\"pixels\"/>\n");
-    writer.append("    <screenXY x=\"20\" y=\"50\" xunits=\"pixels\" yunits=\"pixels\"/>\n");
-    writer.append("    <size>-1</size>\n");
-    writer.append("    <Icon>\n");
-    // FIXME(hbs): replace image URL
-    writer.append("      <href>http://farm5.static.flickr.com/4056/4477523262_bfd831c564_o.png</href>\n");
-    writer.append("    </Icon>\n");
-    writer.append("  </ScreenOverlay>\n");
-
-    boolean showpins = false;
-    
-    for (int res: coverage.getResolutions()) {
-      for (long cell: coverage.getCells(res)) {
-        double[] bbox = HHCodeHelper.getHHCodeBBox(cell, res);
-        
-        writer.append("  <Placemark>\n");
-        writer.append("  <Style>\n");
-        writer.append("    <LineStyle>\n");
-        writer.append("      <color>c0008000</color>\n");        
-        writer.append("      <width>1</width>\n");
-        writer.append("    </LineStyle>\n");
-        writer.append("    <PolyStyle>\n");
-        writer.append("      <color>c0f0f0f0</color>\n");
-        writer.append("      <fill>1</fill>\n");
-        if (outline) {
-          writer.append("      <outline>1</outline>\n");
-        } else {
-          writer.append("      <outline>0</outline>\n");
-        }
-        writer.append("    </PolyStyle>\n");    
-        writer.append("  </Style>\n");        
-        writer.append("    <name>");
-        writer.append(HHCodeHelper.toString(cell, res));
-        writer.append("</name>\n");
-        writer.append("    <MultiGeometry>\n");
-
-        writer.append("      <tessellate>1</tessellate>\n");
-        writer.append("      <Polygon><outerBoundaryIs><LinearRing>\n");
-        writer.append("        <coordinates>\n");
-        writer.append("          ");
-        writer.append(Double.toString(bbox[1]));
-        writer.append(",");
-        writer.append(Double.toString(bbox[0]));
-        writer.append(",0\n");
-        writer.append("          ");
-        writer.append(Double.toString(bbox[1]));
-        writer.append(",");
-        writer.append(Double.toString(bbox[2]));
-        writer.append(",0\n");
-        writer.append("          ");
-        writer.append(Double.toString(bbox[3]));
-        writer.append(",");
-        writer.append(Double.toString(bbox[2]));
-        writer.append(",0\n");
-        writer.append("          ");
-        writer.append(Double.toString(bbox[3]));
-        writer.append(",");
-        writer.append(Double.toString(bbox[0]));
-        writer.append(",0\n");
-        writer.append("          ");
-        writer.append(Double.toString(bbox[1]));
-        writer.append(",");
-        writer.append(Double.toString(bbox[0]));
-        writer.append(",0\n");
-        
-        writer.append("        </coordinates>\n");      
-        writer.append("      </LinearRing></outerBoundaryIs></Polygon>\n");   
-        
-        if (showpins) {
-          writer.append("      <Point>\n");
-          writer.append("        <coordinates>\n");
-          writer.append(Double.toString((bbox[3]+bbox[1])/2.0));
-          writer.append(",");
-          writer.append(Double.toString((bbox[2]+bbox[0])/2.0));
-          writer.append(",0");
-          writer.append("        </coordinates>\n");      
-          writer.append("      </Point>\n");
-        }
-        writer.append("    </MultiGeometry>\n");
-        writer.append("  </Placemark>\n");
-      }
-    }
-
-    writer.append("</Document>\n");
-    writer.append("</kml>\n");    
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(writer, CoverageRectangleExporter.FORMAT_KML);
+    exporter.setOutline(outline);
+    exporter.addCoverage(coverage);
+    exporter.finish();
   }
   
   /**
@@ -180,378 +87,175 @@ public class CoverageHelper {
   }
     
   public static float[] toEnvelope(long[] cells) {
-    Map<Long,Set<Long>> segmentsByX = getSegments(cells, false);
-    Map<Long,Set<Long>> segmentsByY = getSegments(cells, true);
-
     //
-    // Index all segments by their end points
+    // Toggle the four corners of each cell (encoded as a long <LAT><LON>). Corners shared by
+    // an even number of cells are either inside the coverage or along a straight boundary, so
+    // only the vertices of the outlines remain, the set never grows past the boundary length
+    // of the cells scanned so far.
+    // Points where cells only touch diagonally are toggled twice too, the outlines will
+    // cross at those points.
     //
     
-    Map<Long,List<Long>> sortedSegments = new HashMap<Long, List<Long>>();
-
-    int nsegments = 0;
+    TLongHashSet corners = new TLongHashSet();
+    
+    long[] latlon = new long[2];
     
-    // The first set of segments is indexed by lon
-    for (long x: segmentsByX.keySet()) {
-      x = x & 0xFFFFFFFFL;
+    for (long cell: cells) {
+      // Extract resolution
+      int res = (int) ((cell >>> 60) & 0xFL);
       
-      Set<Long> ycoords = segmentsByX.get(x);
+      HHCodeHelper.stableSplitHHCode(cell << 4, res * 2, latlon);
       
-      for (long coords: ycoords) {
-        long start = coords >>> 32;
-        long end = coords & 0xFFFFFFFFL;
-        
-        long from = (start << 32) | x;
-
-        List<Long> ends = sortedSegments.get(from);
+      long lowerLat = latlon[0];
+      long lowerLon = latlon[1];
+      long upperLat = lowerLat + Coverage.CELL_SIZE_BY_RES[res - 1];
+      long upperLon = lowerLon + Coverage.CELL_SIZE_BY_RES[res - 1];
       
-        if (null == ends) {
-          ends = new ArrayList<Long>();
-          sortedSegments.put(from, ends);
-        }
-
-        long to = (end << 32) | x;
-            
-        ends.add(to);
-        
-        ends = sortedSegments.get(to);
-        
-        if (null == ends) {
-          ends = new ArrayList<Long>();
-          sortedSegments.put(to, ends);
-        }
-        
-        ends.add(from);
-        
-        nsegments++;
+      // Adjust the max limits
+      if (0x100000000L == upperLat) {
+        upperLat--;
       }
-    }
-
-    // Second set is indexed by lat
-    for (long y: segmentsByY.keySet()) {
-      Set<Long> xcoords = segmentsByY.get(y);
-      y = y << 32;
-      for (long coords: xcoords) {
-        long start = coords >>> 32;
-        long end = coords & 0xFFFFFFFFL;
-        
-        long from = y | start;
-
-        List<Long> ends = sortedSegments.get(from);
-        
-        if (null == ends) {
-          ends = new ArrayList<Long>();
-          sortedSegments.put(from, ends);
-        }
-
-        long to = y | end;
-
-        ends.add(to);
-        
-        ends = sortedSegments.get(to);
-
-        if (null == ends) {
-          ends = new ArrayList<Long>();
-          sortedSegments.put(to, ends);
-        }
-        
-        ends.add(from);
-
-        nsegments++;
+      if (0x100000000L == upperLon) {
+        upperLon--;
       }
+      
+      toggle(corners, (lowerLat << 32) | lowerLon);
+      toggle(corners, (lowerLat << 32) | upperLon);
+      toggle(corners, (upperLat << 32) | lowerLon);
+      toggle(corners, (upperLat << 32) | upperLon);
     }
-
+    
+    long[] vertices = corners.toArray();
+    corners = null;
+    
+    for (int i = 0; i < vertices.length; i++) {
+      vertices[i] *= CORNER_UNSCRAMBLE;
+    }
+    
+    //
+    // Sort the vertices along parallels (<LAT><LON>) and along meridians (<LON><LAT>).
+    // Vertices on a given line alternately start and end an edge of the outline, so
+    // the vertex at index i is linked to the one at index i ^ 1 in both arrays.
+    //
+    
+    sortUnsigned(vertices);
+    
+    long[] swapped = new long[vertices.length];
+    
+    for (int i = 0; i < vertices.length; i++) {
+      swapped[i] = (vertices[i] << 32) | (vertices[i] >>> 32);
+    }
+    
+    sortUnsigned(swapped);
+    
     //
-    // Now we have segments sorted by origins, attempt to build as many polygons as possible
-    // The 'polygons' array contains lat,lon coordinates (encoded as a Long <LAT><LON>) of all polygons.
-    // A null indicates the beginning of a new polygon.
+    // Walk the outlines, alternating horizontal and vertical edges until we
+    // come back to the origin of the polygon.
     //
     
-    List<Long> polygons = new ArrayList<Long>();
+    boolean[] visited = new boolean[vertices.length];
     
-    Long lastcoords = null;
-    Long lastPolygonOrigin = null;
+    long[] polygons = new long[vertices.length];
+    int[] starts = new int[vertices.length / 4 + 1];
     
+    int n = 0;
     int npoly = 0;
     
-    while (!sortedSegments.isEmpty()) {
-      //
-      // If we don't have a 'lastcoords' value, extract a segment at random
-      //
-      
-      if (null == lastcoords) {
-        polygons.add(null);
-        npoly++;        
-        lastcoords = sortedSegments.keySet().iterator().next();
-        polygons.add(lastcoords);
-        lastPolygonOrigin = lastcoords;
-      }
-      
-      //
-      // Extract one segment end (check lastcoords and lastcoords shifted by 1 in x/y
-      //
-      
-      if (!sortedSegments.containsKey(lastcoords)) {
-        lastcoords = null;
-        continue;        
-      }
-      
-      long end = sortedSegments.get(lastcoords).remove(sortedSegments.get(lastcoords).size() - 1);
-      
-      sortedSegments.get(end).remove(lastcoords);
-      if (sortedSegments.get(end).isEmpty()) {
-        sortedSegments.remove(end);
-      }
-      
-      // Clean sortedSegments if we removed the last element at 'lastcoords'
-      if (sortedSegments.get(lastcoords).isEmpty()) {
-        sortedSegments.remove(lastcoords);
+    for (int origin = 0; origin < vertices.length; origin++) {
+      if (visited[origin]) {
+        continue;
       }
       
-      polygons.add(end);
+      starts[npoly++] = n;
       
-      //
-      // If we reached the origin of the polygon, change polygon
-      //
+      int current = origin;
       
-      if (end == lastPolygonOrigin) {
-        lastcoords = null;
-      } else {
-        lastcoords = end;
-      }
+      do {
+        // Horizontal edge
+        visited[current] = true;
+        polygons[n++] = vertices[current];
+        current = current ^ 1;
+        visited[current] = true;
+        polygons[n++] = vertices[current];
+        
+        // Vertical edge
+        long vertex = vertices[current];
+        int index = binarySearchUnsigned(swapped, (vertex << 32) | (vertex >>> 32)) ^ 1;
+        vertex = (swapped[index] << 32) | (swapped[index] >>> 32);
+        current = binarySearchUnsigned(vertices, vertex);
+      } while (current != origin);
     }
     
+    starts[npoly] = n;
+    
     //
-    // Now convert the Long list into an array of floats
+    // Now convert the vertices into an array of floats, each polygon is preceded by a NaN
+    // and closed by repeating its origin
     //
     
-    float[] coords = new float[polygons.size() * 2 - npoly];
+    float[] coords = new float[n * 2 + npoly * 3];
     
     int idx = 0;
     
-    for (Long l: polygons) {
-      if (null == l) {
-        coords[idx++] = Float.NaN;
-      } else {
-        float lat = (float) HHCodeHelper.toLat(l >>> 32);
-        float lon = (float) HHCodeHelper.toLon(l & 0xFFFFFFFFL);
-        coords[idx++] = lat;
-        coords[idx++] = lon;
+    for (int p = 0; p < npoly; p++) {
+      coords[idx++] = Float.NaN;
+      for (int i = starts[p]; i <= starts[p + 1]; i++) {
+        long l = i < starts[p + 1] ? polygons[i] : polygons[starts[p]];
+        coords[idx++] = (float) HHCodeHelper.toLat(l >>> 32);
+        coords[idx++] = (float) HHCodeHelper.toLon(l & 0xFFFFFFFFL);
       }
     }
     
     return coords;
   }
   
-  private static Map<Long,Set<Long>> getSegments(long[] cells, boolean xyswap) {        
-    //
-    // For each lower/upper X coordinate, store the lower/upper Y coordinates of the cell (as a 64 bit long using upper/lower 32 bits)
-    //
-    
-    Comparator<Long> YBOUNDS_COMPARATOR = new Comparator<Long>() {
-      public int compare(Long o1, Long o2) {
-        long l1 = o1 >>> 32;
-        long l2 = o2 >>> 32;
-      
-        if (l1 < l2) {
-          return -1;
-        } else if (l1 > l2) {
-          return 1;
-        } else {
-          l1 = o1 & 0xFFFFFFFFL;
-          l2 = o2 & 0xFFFFFFFFL;
-          
-          // The longest segment appears first
-          if (l1 > l2) {
-            return -1;
-          } else if (l1 < l2) {
-            return 1;
-          } else {
-            return 0;
-          }
-        }
-      }
-    };
+  /**
+   * Add 'value' to 'set' if it is absent, remove it otherwise.
+   */
+  private static void toggle(TLongHashSet set, long value) {
+    // Scramble the corner, Trove hashes longs by xoring their halves which makes
+    // lots of grid points collide
+    value *= CORNER_SCRAMBLE;
     
-    Map<Long,PriorityQueue<Long>> cellsX = new HashMap<Long, PriorityQueue<Long>>();
-      
-    for (long cell: cells) {
-      // Extract resolution
-      int res = (int) ((cell >>> 60) &0xFL);
-      // Extract hhcode and lat/long
-      long hhcode = cell << 4;
-      long[] latlon = HHCodeHelper.splitHHCode(hhcode, res * 2);
-      
-      if (xyswap) {
-        long tmp = latlon[0];
-        latlon[0] = latlon[1];
-        latlon[1] = tmp;
-      }
-      
-      res = res - 1;
-      
-      long lowerX = latlon[1];
-      long upperX = latlon[1] + Coverage.CELL_SIZE_BY_RES[res]; // We don't substract 1 as we want an overlap with the following cell
-      
-      // Adjust the max limit
-      if (0x100000000L == upperX) {
-        upperX--;
-      }
-      
-      // Encode bounds as <LOWER><UPPER>
-      // We don't subtract 1 as we want overlap with the next celle
-      long up = latlon[0] + Coverage.CELL_SIZE_BY_RES[res];
-      if (0x100000000L == up) {
-        up--;
-      }
-      long Ybounds = (latlon[0] << 32) | up;
-      
-      PriorityQueue<Long> queue = cellsX.get(lowerX);
-      
-      if (null == queue) {
-        queue = new PriorityQueue<Long>(YBOUNDS_COMPARATOR);
-        cellsX.put(lowerX, queue);
-      }
-      
-      queue.add(Ybounds);
-      
-      queue = cellsX.get(upperX);
-      
-      if (null == queue) {
-        queue = new PriorityQueue<Long>(YBOUNDS_COMPARATOR);
-        cellsX.put(upperX, queue);
-      }
-      
-      queue.add(Ybounds);      
+    if (!set.add(value)) {
+      set.remove(value);
+    }
+  }
+  
+  /**
+   * Sort an array of longs as unsigned values.
+   */
+  private static void sortUnsigned(long[] values) {
+    for (int i = 0; i < values.length; i++) {
+      values[i] ^= Long.MIN_VALUE;
     }
     
-    //
-    // Now for each X coordinate, inspect the Y coordinates and retain only the segments which appear a single time
-    //
+    Arrays.sort(values);
     
-    Map<Long,Set<Long>> segments = new HashMap<Long, Set<Long>>();
+    for (int i = 0; i < values.length; i++) {
+      values[i] ^= Long.MIN_VALUE;
+    }
+  }
+  
+  /**
+   * Return the index of 'value' in an array sorted as unsigned values, 'value' must be present.
+   */
+  private static int binarySearchUnsigned(long[] values, long value) {
+    int low = 0;
+    int high = values.length - 1;
     
-    for (long x: cellsX.keySet()) {
-      PriorityQueue<Long> allSegments = cellsX.get(x);
-      
-      // Final segments
-      PriorityQueue<Long> xSegments = new PriorityQueue<Long>(YBOUNDS_COMPARATOR);
-      
-      Long lowerY = null;
-      Long upperY = null;
-
-      while(!allSegments.isEmpty()) {
-        long segment = allSegments.poll();
-        long segStart = segment >>> 32;
-        long segEnd = segment & 0xFFFFFFFFL;
-        
-        if (null == lowerY && null == upperY) {
-          lowerY = segStart;
-          upperY = segEnd;
-          continue;
-        }
-        
-        //
-        // If the current segment is identical to the previous one, reset the current segment
-        //
-        
-        if (segStart == lowerY && segEnd == upperY) {
-          lowerY = null;
-          upperY = null;
-          continue;
-        }
-        
-        //
-        // If the current segment is contained in [lowerY,upperY], split [lowerY,upperY] by throwing away the intersection
-        // as we won't retain it. Make sure the bounds overlap
-        //
-        
-        if (segStart >= lowerY && segEnd <= upperY) {
-          if (segStart > lowerY) {
-            allSegments.add(lowerY << 32 | segStart);
-          }
-          
-          if (segEnd < upperY) {
-            allSegments.add(segEnd << 32 | upperY);
-          }
-          
-          lowerY = null;
-          upperY = null;
-          continue;
-        }
-        
-        //
-        // If the current segment intersects [lowerY,upperY], cut it at upperY
-        //
-        
-        if (segStart < upperY && segEnd > upperY) {
-          if (segStart > lowerY) {
-            allSegments.add(lowerY << 32 | segStart);
-          }
-          allSegments.add(upperY << 32 | segEnd);
-          
-          lowerY = null;
-          upperY = null;          
-          continue;
-        }
-        
-        //
-        // If the current segment is adjacent or passed upperY, emit [lowerY,upperY] and
-        // change lowerY,upperY
-        //
-        
-        if (segStart >= upperY) {
-          xSegments.add((lowerY << 32) | upperY);
-          lowerY = segStart;
-          upperY = segEnd;
-          continue;
-        }
-      }
-      
-      if (null != lowerY && null != upperY) {
-        xSegments.add((lowerY << 32) | upperY);
-      }
-      
-      //
-      // Now merge adjacent segments
-      //
-      
-      Long current = null;
-      
-      Set<Long> merged = new HashSet<Long>();
-      
-      while(!xSegments.isEmpty()) {
-        if (null == current) {
-          current = xSegments.poll();
-          continue;
-        }
-                
-        long next = xSegments.poll();
-
-        //
-        // If next starts where current ends, merge them.
-        // Otherwise, add 'current' and set it to 'next'
-        //
-        
-        if ((current & 0xFFFFFFFFL) == next >>> 32) {
-          current = (current & 0xFFFFFFFF00000000L) | (next & 0xFFFFFFFFL);
-        } else {
-          merged.add(current);
-          current = next;
-        }                
-      }
-      
-      if (null != current) {
-        merged.add(current);
-      }
-        
-
-      if (!merged.isEmpty()) {
-        segments.put(x, merged);
+    value ^= Long.MIN_VALUE;
+    
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if ((values[mid] ^ Long.MIN_VALUE) < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
       }
     }
-        
-    return segments;
+    
+    return low;
   }
   
   public static void kmlEnvelope(Writer writer, long[] cells) throws IOException {
@@ -641,7 +345,11 @@ public class CoverageHelper {
   }
 
   /**
-   * Extract clusters of cells from a Coverage
+   * Extract clusters of cells from a Coverage.
+   * 
+   * Cells are grouped using a union-find over N/S/E/W adjacency, neighbors
+   * being located by binary search in the sorted geocell array.
+   * 
    * @param coverage
    * @return
    */
@@ -652,175 +360,183 @@ public class CoverageHelper {
     // Sort the cell array
     Arrays.sort(cells);
     
-    // Cluster id for each element
-    int[] clusterid = new int[cells.length];
+    //
+    // Union-find forest, 'parent' holds the index of the parent of each cell,
+    // 'size' the number of cells of each tree (only meaningful for roots)
+    //
     
-    List<Long> cluster = new ArrayList<Long>();
-    List<Long> window = new ArrayList<Long>();
+    int[] parent = new int[cells.length];
+    int[] size = new int[cells.length];
     
-    // Array for the neighbors, up to 5 (including the cell itself) per resolution
-    long[] neighbors = new long[150];
+    for (int i = 0; i < cells.length; i++) {
+      parent[i] = i;
+      size[i] = 1;
+    }
     
-    //
-    // While we have not scanned all cells
-    //
-        
-    int clustered = 0;
-    int currentcluster = 1;
+    // Array for the neighbors, up to 4 per resolution
+    long[] neighbors = new long[64];
     
-    while(clustered != cells.length) {
+    for (int idx = 0; idx < cells.length; idx++) {
+      long cell = cells[idx];
       
-      //
-      // Clear the scanning window and the current cluster
-      //
-      window.clear();
-      cluster.clear();
-
-      //
-      // Add the first unclustered cell
-      //
-
-      int next = -1;
-      for (int i = 0; i < clusterid.length; i++) {
-        if (0 == clusterid[i]) {
-          next = i;
-          break;
-        }
-      }
-      
-      window.add(cells[next]);
-      clusterid[next] = currentcluster;
-      clustered++;
+      int last = neighbors(cell, neighbors);
       
       //
-      // Iterate over the window to build a cluster
+      // Join the cluster of each neighbor found in the coverage. Neighbors at finer
+      // resolutions are not searched for, the adjacency will be detected when
+      // scanning the finer cell.
       //
       
-      while(!window.isEmpty()) {
-        //
-        // Remove the first cell from the window
-        //
-        
-        long cell = window.remove(0);
-        int resCell = (int) ((cell >>> 60) & 0xFL);
-        
-        //
-        // Add it to the current cluster as it is either the first one
-        // or it was added to the window because it touches another cell of
-        // the cluster
-        //
-        
-        //
-        // Now scan all the non connected cells and find all the 'touching' neighbors (N/S/E/W) for
-        // 'cell'
-        //
-
-        //
-        // Determine the neighbors of 'cell' at all the resolutions
-        //
-        
-        // First store the neighbors N/S/E/W at the resolution of 'cell'
-        // We also store the cell itself
-        long hhcode = cell << 4;
-        neighbors[0] = cell;
-        // We add the resolution from cell
-        neighbors[0] = (cell & 0xF000000000000000L) | (HHCodeHelper.northHHCode(hhcode, resCell << 1) >>> 4);
-        neighbors[1] = (cell & 0xF000000000000000L) | (HHCodeHelper.eastHHCode(hhcode, resCell << 1) >>> 4);
-        neighbors[2] = (cell & 0xF000000000000000L) | (HHCodeHelper.southHHCode(hhcode, resCell << 1) >>> 4);
-        neighbors[3] = (cell & 0xF000000000000000L) | (HHCodeHelper.westHHCode(hhcode, resCell << 1) >>> 4);
-        
-        //
-        // If one of the neighbors wraps around north,east,south or west, clear it
-        //
-        
-        // If north neighbor is in top level cell 0,1,4 or 5 and cell in a, b, e or f, ignore it
+      for (int i = 0; i < last; i++) {
+        long neighbor = neighbors[i];
         
-        long topcell = (neighbors[0] & 0x0F00000000000000L) >>> 56;
-            
-        if ((topcell == 0L || topcell == 1L || topcell == 4L || topcell == 5L)
-            && ((neighbors[0] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
-          neighbors[0] = 0L;
-        }
-        topcell = (neighbors[1] & 0x0F00000000000000L) >>> 56; 
-        if ((topcell == 0xAL || topcell == 8L || topcell == 2L || topcell == 0L)
-            && ((neighbors[1] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
-          neighbors[1] = 0L;
-        }
-        topcell = (neighbors[2] & 0x0F00000000000000L) >>> 56; 
-        if ((topcell == 0xAL || topcell == 0xBL || topcell == 0xEL || topcell == 0xFL)
-            && ((neighbors[2] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
-          neighbors[2] = 0L;
-        }
-        topcell = (neighbors[3] & 0x0F00000000000000L) >>> 56; 
-        if ((topcell == 0xFL || topcell == 0xDL || topcell == 7L || topcell == 5L)
-            && ((neighbors[3] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
-          neighbors[3] = 0L;
-        }
-
-        for (int i = resCell - 1; i >= 1; i--) {
-          long res = (((long) i) << 60) & 0xF000000000000000L;
-
-          // The actual HHCode bits of a cell occupy 4 * resCell bits with the MSB being bit 59
-          int shift = 60 - 4 * i;
-          int offset = i * 4;
-          neighbors[offset] = (((neighbors[0] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res;
-          neighbors[offset + 1] = (((neighbors[1] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res;
-          neighbors[offset + 2] = (((neighbors[2] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res;
-          neighbors[offset + 3] = (((neighbors[3] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res;
-          //neighbors[offset] = (((neighbors[0] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res;          
+        if (0L == neighbor) {
+          continue;
         }
         
-        int last = 4 + (resCell - 1) * 4;
-    
-        //
-        // Now check if we can find some neighbors
-        //
+        int index = Arrays.binarySearch(cells, neighbor);
+          
+        if (index < 0) {
+          continue;
+        }
         
-        // We start at the end so we start with the finest resolution
-        for (int i = last - 1; i >= 0; i--) {
-          long neighbor = neighbors[i];
-          int index = Arrays.binarySearch(cells, neighbor);
+        int r1 = find(parent, idx);
+        int r2 = find(parent, index);
           
-          if (index >= 0) {
-            // If the cell is already a member of a cluster with a different id, change the id of that cluster
-            if (0 != clusterid[index] && clusterid[index] != currentcluster) {
-              int id = clusterid[index];
-              for (int j = 0; j < clusterid.length; j++) {
-                if (clusterid[j] == id) {
-                  clusterid[j] = currentcluster;
-                }
-              }
-            } else if (0 == clusterid[index]) {
-              clusterid[index] = currentcluster;
-              clustered++;
-              window.add(neighbor);
-            }
+        if (r1 == r2) {
+          continue;
+        }
           
-          }
-        }       
+        // Attach the smaller tree under the larger one
+        if (size[r1] < size[r2]) {
+          parent[r1] = r2;
+          size[r2] += size[r1];
+        } else {
+          parent[r2] = r1;
+          size[r1] += size[r2];
+        }
       }
-
-      currentcluster++;
     }
     
-    List<Coverage> clusters = new ArrayList<Coverage>(currentcluster - 1);
+    //
+    // Build the cluster coverages in a single pass, clusters are ordered by their
+    // first cell. 'size' is reused to store the cluster index of each root.
+    //
+    
+    Arrays.fill(size, -1);
     
-    for (int i = 1; i < currentcluster; i++) {
-      Coverage cov = new Coverage();
-      for (int j = 0; j < clusterid.length; j++) {
-        if (i == clusterid[j]) {
-          cov.addCell(cells[j]);
-        }
-      }
-      if (cov.getCellCount() > 0) {
-        clusters.add(cov);
+    List<Coverage> clusters = new ArrayList<Coverage>();
+    
+    for (int i = 0; i < cells.length; i++) {
+      int root = find(parent, i);
+      
+      if (size[root] < 0) {
+        size[root] = clusters.size();
+        clusters.add(new Coverage());
       }
+      
+      clusters.get(size[root]).addCell(cells[i]);
     }
 
     return clusters;
   }
   
+  /**
+   * Return the root of the tree containing 'i', halving the path on the way.
+   */
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+  
+  /**
+   * Fill 'neighbors' with the N/E/S/W neighbors of a geocell at its resolution
+   * and with their enclosing cells at all coarser resolutions. Neighbors which
+   * wrap around the world are set to 0.
+   * 
+   * @return the number of neighbors stored
+   */
+  private static int neighbors(long cell, long[] neighbors) {
+    int resCell = (int) ((cell >>> 60) & 0xFL);
+    long hhcode = cell << 4;
+    
+    neighbors[0] = (cell & 0xF000000000000000L) | (HHCodeHelper.northHHCode(hhcode, resCell << 1) >>> 4);
+    neighbors[1] = (cell & 0xF000000000000000L) | (HHCodeHelper.eastHHCode(hhcode, resCell << 1) >>> 4);
+    neighbors[2] = (cell & 0xF000000000000000L) | (HHCodeHelper.southHHCode(hhcode, resCell << 1) >>> 4);
+    neighbors[3] = (cell & 0xF000000000000000L) | (HHCodeHelper.westHHCode(hhcode, resCell << 1) >>> 4);
+    
+    //
+    // If one of the neighbors wraps around north,east,south or west, clear it
+    //
+    
+    // If north neighbor is in top level cell 0,1,4 or 5 and cell in a, b, e or f, ignore it
+    
+    long topcell = (neighbors[0] & 0x0F00000000000000L) >>> 56;
+        
+    if ((topcell == 0L || topcell == 1L || topcell == 4L || topcell == 5L)
+        && ((neighbors[0] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
+      neighbors[0] = 0L;
+    }
+    topcell = (neighbors[1] & 0x0F00000000000000L) >>> 56; 
+    if ((topcell == 0xAL || topcell == 8L || topcell == 2L || topcell == 0L)
+        && ((neighbors[1] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
+      neighbors[1] = 0L;
+    }
+    topcell = (neighbors[2] & 0x0F00000000000000L) >>> 56; 
+    if ((topcell == 0xAL || topcell == 0xBL || topcell == 0xEL || topcell == 0xFL)
+        && ((neighbors[2] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
+      neighbors[2] = 0L;
+    }
+    topcell = (neighbors[3] & 0x0F00000000000000L) >>> 56; 
+    if ((topcell == 0xFL || topcell == 0xDL || topcell == 7L || topcell == 5L)
+        && ((neighbors[3] & 0x0F00000000000000L) != (cell & 0x0F00000000000000L))) {
+      neighbors[3] = 0L;
+    }
+
+    for (int i = resCell - 1; i >= 1; i--) {
+      long res = (((long) i) << 60) & 0xF000000000000000L;
+
+      // The actual HHCode bits of a cell occupy 4 * resCell bits with the MSB being bit 59
+      int shift = 60 - 4 * i;
+      int offset = i * 4;
+      
+      for (int j = 0; j < 4; j++) {
+        neighbors[offset + j] = 0L == neighbors[j] ? 0L : ((((neighbors[j] >>> shift) << shift) & 0x0FFFFFFFFFFFFFFFL) | res);
+      }
+    }
+    
+    return 4 * resCell;
+  }
+  
+  /**
+   * Return a coverage as a GeoJSON MultiPolygon of the outlines of its clusters.
+   * 
+   * @see #toGeoJSON(Coverage, Writer)
+   */
   public static String toGeoJSON(Coverage c) {
+    StringWriter sw = new StringWriter();
+    try {
+      toGeoJSON(c, sw);
+    } catch (IOException ioe) {
+      // Can't happen with a StringWriter
+      throw new RuntimeException(ioe);
+    }
+    return sw.toString();
+  }
+  
+  /**
+   * Write a coverage as a GeoJSON MultiPolygon, one polygon per cluster of cells whose exterior
+   * ring is the outline of the cluster and whose other rings are its holes. Clusters are written
+   * to 'writer' one at a time. The coverage is left untouched.
+   * 
+   * @see CoverageRectangleExporter for a streaming export of the cells as rectangles
+   */
+  public static void toGeoJSON(Coverage c, Writer writer) throws IOException {
+    // Work on a copy so the caller's coverage is left untouched
+    c = c.deepCopy();
     // Ensure there are no duplicate cells
     c.dedup();
     // Optimize the coverage so we do not have too many cells to scan
@@ -828,20 +544,19 @@ public class CoverageHelper {
     // Extract clusters
     List<Coverage> clusters = clusters(c);
     
-    StringBuilder sb = new StringBuilder();
-    sb.append("{");
-    sb.append("\"type\":\"MultiPolygon\",");
-    sb.append("\"coordinates\":[");
+    writer.append("{");
+    writer.append("\"type\":\"MultiPolygon\",");
+    writer.append("\"coordinates\":[");
     
     // Compute envelope of each cluster
     boolean first = true;
     for(Coverage cluster: clusters) {
       
       if (!first) {
-        sb.append(",");
+        writer.append(",");
       }
       
-      sb.append("[");
+      writer.append("[");
 
       float[] segments = toEnvelope(cluster);
       
@@ -913,10 +628,10 @@ public class CoverageHelper {
         int[] polygon = polygons.get(i);
         
         if (i > 0) {
-          sb.append(",");
+          writer.append(",");
         }
         
-        sb.append("[");
+        writer.append("[");
         
         int offset = 2;
         
@@ -940,13 +655,13 @@ public class CoverageHelper {
         
         while (true) {
           if (j != polygon[0]) {
-            sb.append(",");
+            writer.append(",");
           }
-          sb.append("[");
-          sb.append(segments[j + 1]);
-          sb.append(",");
-          sb.append(segments[j]);
-          sb.append("]");
+          writer.append("[");
+          writer.append(Float.toString(segments[j + 1]));
+          writer.append(",");
+          writer.append(Float.toString(segments[j]));
+          writer.append("]");
           
           if (j == polygon[1]) {
             break;
@@ -954,17 +669,15 @@ public class CoverageHelper {
           j += offset;
         }
         
-        sb.append("]");
+        writer.append("]");
       }
 
-      sb.append("]");
+      writer.append("]");
       
       first = false;
     }
     
-    sb.append("]");
-    sb.append("}");
-    
-    return sb.toString();
+    writer.append("]");
+    writer.append("}");
   }
 }
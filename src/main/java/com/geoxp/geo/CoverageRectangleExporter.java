@@ -0,0 +1,487 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+/**
+ * Streaming KML/GeoJSON exporter writing coverages as batches of rectangles.
+ * 
+ * Each cell is converted to a rectangle which is merged with one of the last few pending
+ * rectangles when they share a full edge (same width or same height), rectangles are then
+ * written through an internal buffer with fixed precision coordinates. Only a bounded number
+ * of pending rectangles is retained so heap use does not depend on the number of cells.
+ * 
+ * Adjacent cells are not dissolved into outlines, the output is a set of rectangles which
+ * may share edges. This is fine for display but such a GeoJSON MultiPolygon is not a valid
+ * OGC geometry, use CoverageHelper.toGeoJSON for the outlines of the cells.
+ * 
+ * Merging is most effective when cells are added in sorted order (as returned by
+ * Coverage.toGeoCells) or in the order produced by the cover* methods.
+ */
+public class CoverageRectangleExporter {
+  
+  public static final int FORMAT_KML = 0;
+  public static final int FORMAT_GEOJSON = 1;
+  
+  /**
+   * Default number of decimals, 1e-7 degree is about 1cm
+   */
+  public static final int DEFAULT_PRECISION = 7;
+  
+  /**
+   * Number of pending rectangles considered for merging
+   */
+  private static final int PENDING = 16;
+  
+  private static final long MAX_UNIT = 0xffffffffL;
+  
+  private static final long[] POWERS_OF_TEN = new long[13];
+  
+  static {
+    POWERS_OF_TEN[0] = 1L;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+    }
+  }
+  
+  private final Writer writer;
+  
+  private final int format;
+  
+  private final int precision;
+  
+  private final char[] buf = new char[1 << 16];
+  private int pos = 0;
+  
+  private final char[] digits = new char[20];
+  
+  private final long[] latlon = new long[2];
+  
+  //
+  // Pending rectangles, bounds are in lat/lon units, lower bounds inclusive, upper bounds exclusive
+  //
+  
+  private final long[] minLat = new long[PENDING];
+  private final long[] minLon = new long[PENDING];
+  private final long[] maxLat = new long[PENDING];
+  private final long[] maxLon = new long[PENDING];
+  
+  /**
+   * Number of pending rectangles, they are stored from index 0 (oldest) to npending - 1
+   */
+  private int npending = 0;
+  
+  private long rectangles = 0L;
+  
+  private boolean started = false;
+  private boolean finished = false;
+  
+  private boolean outline = true;
+  
+  public CoverageRectangleExporter(Writer writer, int format) {
+    this(writer, format, DEFAULT_PRECISION);
+  }
+  
+  /**
+   * @param writer Writer to export to, it is flushed by 'finish' but not closed
+   * @param format FORMAT_KML or FORMAT_GEOJSON
+   * @param precision Number of decimals of coordinates, in [0,12]
+   */
+  public CoverageRectangleExporter(Writer writer, int format, int precision) {
+    if (FORMAT_KML != format && FORMAT_GEOJSON != format) {
+      throw new IllegalArgumentException("Unknown format " + format + ".");
+    }
+    if (precision < 0 || precision >= POWERS_OF_TEN.length) {
+      throw new IllegalArgumentException("Precision must be in [0," + (POWERS_OF_TEN.length - 1) + "].");
+    }
+    this.writer = writer;
+    this.format = format;
+    this.precision = precision;
+  }
+  
+  /**
+   * Export a coverage as a KML document. Cells are read in place so no copy of the coverage is made.
+   */
+  public static void toKML(Coverage coverage, Writer writer) throws IOException {
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(writer, FORMAT_KML);
+    exporter.addCoverage(coverage);
+    exporter.finish();
+  }
+  
+  /**
+   * Export a coverage as a GeoJSON MultiPolygon of rectangles. Cells are read in place so no copy of the coverage is made.
+   */
+  public static void toGeoJSON(Coverage coverage, Writer writer) throws IOException {
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(writer, FORMAT_GEOJSON);
+    exporter.addCoverage(coverage);
+    exporter.finish();
+  }
+  
+  /**
+   * Export cells produced by an OutputStreamCoverage (one hex cell per line) as a KML document.
+   */
+  public static void toKML(InputStream in, Writer writer) throws IOException {
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(writer, FORMAT_KML);
+    exporter.addCells(in);
+    exporter.finish();
+  }
+  
+  /**
+   * Set whether KML polygons have their outline drawn (the default), must be called before any cell is added.
+   */
+  public void setOutline(boolean outline) {
+    this.outline = outline;
+  }
+  
+  public void addCoverage(Coverage coverage) throws IOException {
+    for (int res: coverage.getResolutions()) {
+      for (long hhcode: coverage.getCells(res)) {
+        addCell(res, hhcode);
+      }
+    }
+  }
+  
+  public void addGeoCells(long[] geocells) throws IOException {
+    for (long geocell: geocells) {
+      addGeoCell(geocell);
+    }
+  }
+  
+  /**
+   * Add cells read from an OutputStreamCoverage output, i.e. one cell per line as
+   * hex digits optionally followed by a suffix starting with a non hex character.
+   * The stream is read until EOF but not closed.
+   */
+  public void addCells(InputStream in) throws IOException {
+    byte[] bytes = new byte[1 << 16];
+    
+    long hhcode = 0L;
+    int ndigits = 0;
+    boolean insuffix = false;
+    
+    while (true) {
+      int len = in.read(bytes);
+      
+      if (len < 0) {
+        break;
+      }
+      
+      for (int i = 0; i < len; i++) {
+        int c = bytes[i];
+        
+        if ('\n' == c) {
+          if (ndigits > 0) {
+            addCell(ndigits << 1, hhcode << (64 - (ndigits << 2)));
+          }
+          hhcode = 0L;
+          ndigits = 0;
+          insuffix = false;
+          continue;
+        }
+        
+        if (insuffix) {
+          continue;
+        }
+        
+        int nibble = Character.digit(c, 16);
+        
+        if (nibble < 0 || ndigits == 16) {
+          insuffix = true;
+          continue;
+        }
+        
+        hhcode = (hhcode << 4) | nibble;
+        ndigits++;
+      }
+    }
+    
+    if (ndigits > 0) {
+      addCell(ndigits << 1, hhcode << (64 - (ndigits << 2)));
+    }
+  }
+  
+  public void addGeoCell(long geocell) throws IOException {
+    addCell((int) ((geocell >>> 60) & 0xfL) << 1, geocell << 4);
+  }
+  
+  /**
+   * Add a cell to the export.
+   * 
+   * @param resolution Resolution of the cell (even, in [2,32])
+   * @param hhcode HHCode of the cell
+   */
+  public void addCell(int resolution, long hhcode) throws IOException {
+    if (this.finished) {
+      throw new IOException("Exporter already finished.");
+    }
+    
+    HHCodeHelper.stableSplitHHCode(hhcode, resolution, this.latlon);
+    long size = 1L << (32 - resolution);
+    
+    addRectangle(this.latlon[0], this.latlon[1], this.latlon[0] + size, this.latlon[1] + size);
+  }
+  
+  private void addRectangle(long lat0, long lon0, long lat1, long lon1) throws IOException {
+    //
+    // Attempt to merge the rectangle with a pending one, the merged rectangle
+    // is then itself a candidate for merging with the other pending ones
+    //
+    
+    boolean merged = true;
+    
+    while (merged) {
+      merged = false;
+      
+      for (int i = this.npending - 1; i >= 0; i--) {
+        if (this.minLat[i] == lat0 && this.maxLat[i] == lat1 && (this.maxLon[i] == lon0 || this.minLon[i] == lon1)) {
+          lon0 = Math.min(lon0, this.minLon[i]);
+          lon1 = Math.max(lon1, this.maxLon[i]);
+        } else if (this.minLon[i] == lon0 && this.maxLon[i] == lon1 && (this.maxLat[i] == lat0 || this.minLat[i] == lat1)) {
+          lat0 = Math.min(lat0, this.minLat[i]);
+          lat1 = Math.max(lat1, this.maxLat[i]);
+        } else {
+          continue;
+        }
+        
+        removePending(i);
+        merged = true;
+        break;
+      }
+    }
+    
+    if (PENDING == this.npending) {
+      writeRectangle(this.minLat[0], this.minLon[0], this.maxLat[0], this.maxLon[0]);
+      removePending(0);
+    }
+    
+    this.minLat[this.npending] = lat0;
+    this.minLon[this.npending] = lon0;
+    this.maxLat[this.npending] = lat1;
+    this.maxLon[this.npending] = lon1;
+    this.npending++;
+  }
+  
+  private void removePending(int idx) {
+    int n = this.npending - idx - 1;
+    System.arraycopy(this.minLat, idx + 1, this.minLat, idx, n);
+    System.arraycopy(this.minLon, idx + 1, this.minLon, idx, n);
+    System.arraycopy(this.maxLat, idx + 1, this.maxLat, idx, n);
+    System.arraycopy(this.maxLon, idx + 1, this.maxLon, idx, n);
+    this.npending--;
+  }
+  
+  /**
+   * Return the number of rectangles written so far.
+   */
+  public long getRectangleCount() {
+    return this.rectangles;
+  }
+  
+  /**
+   * Write pending rectangles and the document trailer and flush the writer.
+   */
+  public void finish() throws IOException {
+    if (this.finished) {
+      return;
+    }
+    
+    for (int i = 0; i < this.npending; i++) {
+      writeRectangle(this.minLat[i], this.minLon[i], this.maxLat[i], this.maxLon[i]);
+    }
+    this.npending = 0;
+    
+    if (!this.started) {
+      writeHeader();
+    }
+    
+    if (FORMAT_KML == this.format) {
+      append("    </MultiGeometry>\n");
+      append("  </Placemark>\n");
+      append("</Document>\n");
+      append("</kml>\n");
+    } else {
+      append("]}");
+    }
+    
+    this.finished = true;
+    
+    this.writer.write(this.buf, 0, this.pos);
+    this.pos = 0;
+    this.writer.flush();
+  }
+  
+  private void writeHeader() throws IOException {
+    this.started = true;
+    
+    if (FORMAT_KML == this.format) {
+      append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      append("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
+      append("<Document>\n");
+      append("  <name>GeoXP Coverage</name>\n");
+      append("  <Placemark>\n");
+      append("  <Style>\n");
+      append("    <LineStyle>\n");
+      append("      <color>c0008000</color>\n");
+      append("      <width>1</width>\n");
+      append("    </LineStyle>\n");
+      append("    <PolyStyle>\n");
+      append("      <color>c0f0f0f0</color>\n");
+      append("      <fill>1</fill>\n");
+      append(this.outline ? "      <outline>1</outline>\n" : "      <outline>0</outline>\n");
+      append("    </PolyStyle>\n");
+      append("  </Style>\n");
+      append("    <MultiGeometry>\n");
+      append("      <tessellate>1</tessellate>\n");
+    } else {
+      append("{\"type\":\"MultiPolygon\",\"coordinates\":[");
+    }
+  }
+  
+  private void writeRectangle(long lat0, long lon0, long lat1, long lon1) throws IOException {
+    if (!this.started) {
+      writeHeader();
+    }
+    
+    // Upper bounds are exclusive, clamp them to the last unit
+    lat1 = Math.min(lat1, MAX_UNIT);
+    lon1 = Math.min(lon1, MAX_UNIT);
+    
+    double south = HHCodeHelper.toLat(lat0);
+    double north = HHCodeHelper.toLat(lat1);
+    double west = HHCodeHelper.toLon(lon0);
+    double east = HHCodeHelper.toLon(lon1);
+    
+    if (FORMAT_KML == this.format) {
+      append("      <Polygon><outerBoundaryIs><LinearRing><coordinates>");
+      appendPoint(west, south);
+      append(' ');
+      appendPoint(east, south);
+      append(' ');
+      appendPoint(east, north);
+      append(' ');
+      appendPoint(west, north);
+      append(' ');
+      appendPoint(west, south);
+      append("</coordinates></LinearRing></outerBoundaryIs></Polygon>\n");
+    } else {
+      if (this.rectangles > 0) {
+        append(',');
+      }
+      // Counter clockwise exterior ring
+      append("[[");
+      appendPoint(west, south);
+      append(',');
+      appendPoint(east, south);
+      append(',');
+      appendPoint(east, north);
+      append(',');
+      appendPoint(west, north);
+      append(',');
+      appendPoint(west, south);
+      append("]]");
+    }
+    
+    this.rectangles++;
+  }
+  
+  private void appendPoint(double lon, double lat) throws IOException {
+    if (FORMAT_KML == this.format) {
+      appendDouble(lon);
+      append(',');
+      appendDouble(lat);
+      append(",0");
+    } else {
+      append('[');
+      appendDouble(lon);
+      append(',');
+      appendDouble(lat);
+      append(']');
+    }
+  }
+  
+  /**
+   * Append a double with 'precision' decimals, trailing zeros are kept.
+   */
+  private void appendDouble(double value) throws IOException {
+    long scale = POWERS_OF_TEN[this.precision];
+    long scaled = Math.round(value * scale);
+    
+    if (scaled < 0) {
+      append('-');
+      scaled = -scaled;
+    }
+    
+    appendLong(scaled / scale, 1);
+    
+    if (this.precision > 0) {
+      append('.');
+      appendLong(scaled % scale, this.precision);
+    }
+  }
+  
+  /**
+   * Append a positive long, left padded with zeros to 'width' digits.
+   */
+  private void appendLong(long value, int width) throws IOException {
+    int n = 0;
+    
+    while (0L != value || n < width) {
+      this.digits[n++] = (char) ('0' + (value % 10L));
+      value /= 10L;
+    }
+    
+    if (this.pos + n > this.buf.length) {
+      drain();
+    }
+    
+    while (n > 0) {
+      this.buf[this.pos++] = this.digits[--n];
+    }
+  }
+  
+  private void append(char c) throws IOException {
+    if (this.pos == this.buf.length) {
+      drain();
+    }
+    this.buf[this.pos++] = c;
+  }
+  
+  private void append(String s) throws IOException {
+    int len = s.length();
+    
+    if (this.pos + len > this.buf.length) {
+      drain();
+    }
+    
+    s.getChars(0, len, this.buf, this.pos);
+    this.pos += len;
+  }
+  
+  private void drain() throws IOException {
+    this.writer.write(this.buf, 0, this.pos);
+    this.pos = 0;
+  }
+}
@@ -0,0 +1,649 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of a Coverage, obtained by calling Coverage.freeze().
+ * 
+ * Cells are stored per resolution in sorted long[] instead of sets of boxed
+ * Longs. Instances are never modified once built so they can be shared between
+ * threads without locking.
+ * 
+ * Operations producing new coverages (merge, minus, optimize...) return new
+ * snapshots which share the arrays of the resolutions they left untouched.
+ */
+public final class FrozenCoverage {
+  
+  private static final long[] EMPTY = new long[0];
+  
+  /**
+   * Sorted cells (in natural signed order) for each internal resolution (R/2 - 1)
+   */
+  private final long[][] cells;
+  
+  private final int count;
+  
+  FrozenCoverage(long[][] cells) {
+    this.cells = new long[16][];
+    
+    int count = 0;
+    
+    for (int r = 0; r < 16; r++) {
+      this.cells[r] = null == cells[r] || 0 == cells[r].length ? EMPTY : cells[r];
+      count += this.cells[r].length;
+    }
+    
+    this.count = count;
+  }
+  
+  /**
+   * Build a FrozenCoverage from an array of geocells. When the geocells are sorted (as
+   * returned by toGeoCells), the cells of each resolution are copied without sorting
+   * or hashing.
+   * 
+   * @param geocells
+   */
+  public static FrozenCoverage fromGeoCells(long[] geocells) {
+    
+    //
+    // Count the cells of each resolution, geocells with a resolution of 0 are ignored
+    //
+    
+    int[] counts = new int[16];
+    
+    for (long geocell: geocells) {
+      counts[(int) (geocell >>> 60)]++;
+    }
+    
+    long[][] cells = new long[16][];
+    boolean[] sorted = new boolean[16];
+    // Last geocell seen at each resolution
+    long[] last = new long[16];
+    // Number of cells of each resolution with their sign bit set
+    int[] negatives = new int[16];
+    
+    for (int r = 0; r < 15; r++) {
+      cells[r] = new long[counts[r + 1]];
+      sorted[r] = true;
+      counts[r + 1] = 0;
+    }
+    
+    for (long geocell: geocells) {
+      int r = (int) (geocell >>> 60) - 1;
+      
+      if (r < 0) {
+        continue;
+      }
+      
+      int n = counts[r + 1]++;
+      long hhcode = (geocell << 4) & Coverage.PREFIX_MASK[r];
+      
+      if (n > 0 && geocell < last[r]) {
+        sorted[r] = false;
+      }
+      
+      last[r] = geocell;
+      
+      if (hhcode < 0) {
+        negatives[r]++;
+      }
+      
+      cells[r][n] = hhcode;
+    }
+    
+    for (int r = 0; r < 15; r++) {
+      long[] hhcodes = cells[r];
+      
+      if (0 == hhcodes.length) {
+        continue;
+      }
+      
+      if (sorted[r]) {
+        //
+        // Move the cells with their sign bit set, which come last, to the front
+        //
+        
+        if (0 != negatives[r] && hhcodes.length != negatives[r]) {
+          long[] rotated = new long[hhcodes.length];
+          int positives = hhcodes.length - negatives[r];
+          System.arraycopy(hhcodes, positives, rotated, 0, negatives[r]);
+          System.arraycopy(hhcodes, 0, rotated, negatives[r], positives);
+          hhcodes = rotated;
+        }
+      } else {
+        Coverage.radixSort(hhcodes, r);
+      }
+      
+      //
+      // Remove duplicates
+      //
+      
+      int n = 1;
+      
+      for (int i = 1; i < hhcodes.length; i++) {
+        if (hhcodes[i] != hhcodes[n - 1]) {
+          hhcodes[n++] = hhcodes[i];
+        }
+      }
+      
+      cells[r] = n == hhcodes.length ? hhcodes : Arrays.copyOf(hhcodes, n);
+    }
+    
+    return new FrozenCoverage(cells);
+  }
+  
+  public int getCellCount() {
+    return this.count;
+  }
+  
+  public int getCellCount(int resolution) {
+    int r = (resolution >> 1) - 1;
+    
+    // Do nothing if resolution out of range
+    if (0 != (r & 0xfffffff0)) {
+      return 0;
+    }
+    
+    return this.cells[r].length;
+  }
+  
+  /**
+   * Return a set of all resolutions in which this coverage has cells.
+   */
+  public Set<Integer> getResolutions() {
+    Set<Integer> resolutions = new HashSet<Integer>();
+    
+    for (int r = 0; r < 16; r++) {
+      if (0 != this.cells[r].length) {
+        resolutions.add((r + 1) << 1);
+      }
+    }
+    
+    return resolutions;
+  }
+  
+  /**
+   * Return a copy of the sorted cells at the given resolution.
+   */
+  public long[] getCells(int resolution) {
+    int r = (resolution >> 1) - 1;
+    
+    // Do nothing if resolution out of range
+    if (0 != (r & 0xfffffff0)) {
+      return null;
+    }
+
+    return this.cells[r].clone();
+  }
+  
+  public boolean contains(int resolution, long hhcode) {
+    int r = (resolution >> 1) - 1;
+    
+    // Do nothing if resolution out of range
+    if (0 != (r & 0xfffffff0)) {
+      return false;
+    }
+    
+    return Arrays.binarySearch(this.cells[r], hhcode & Coverage.PREFIX_MASK[r]) >= 0;
+  }
+  
+  /**
+   * Check if a hhcode is included by this coverage.
+   */
+  public boolean includes(long hhcode) {
+    for (int r = 0; r < 16; r++) {
+      if (0 != this.cells[r].length && Arrays.binarySearch(this.cells[r], hhcode & Coverage.PREFIX_MASK[r]) >= 0) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * @see Coverage#area()
+   */
+  public long area() {
+    long area = 0L;
+    
+    for (int r = 0; r < 16; r++) {
+      area += this.cells[r].length * (0x1L << (60 - 4 * r));
+    }
+    
+    return (area >> 1) & 0x7fffffffffffffffL;
+  }
+  
+  /**
+   * @see Coverage#toGeoCells(int)
+   */
+  public long[] toGeoCells(int finestresolution) {
+    if (finestresolution > 30) {
+      finestresolution = 30;
+    }
+    
+    int n = 0;
+    
+    for (int r = 0; r < finestresolution >> 1; r++) {
+      n += this.cells[r].length;
+    }
+    
+    long[] geocells = new long[n];
+    
+    int idx = 0;
+    
+    //
+    // GeoCells at R >= 16 have their sign bit set so they come first. Within a resolution
+    // GeoCells follow the unsigned order of the cells, so the cells with their sign bit
+    // set, which are at the start of our arrays, come last.
+    //
+    
+    for (int i = 0; i < 15; i++) {
+      int r = (i + 7) % 15;
+      
+      if (r >= finestresolution >> 1) {
+        continue;
+      }
+      
+      long[] hhcodes = this.cells[r];
+      long resolution = ((long) (r + 1)) << 60;
+      
+      int split = Arrays.binarySearch(hhcodes, 0L);
+      
+      if (split < 0) {
+        split = -split - 1;
+      }
+      
+      for (int j = split; j < hhcodes.length; j++) {
+        geocells[idx++] = resolution | (hhcodes[j] >>> 4);
+      }
+      for (int j = 0; j < split; j++) {
+        geocells[idx++] = resolution | (hhcodes[j] >>> 4);
+      }
+    }
+    
+    return geocells;
+  }
+  
+  /**
+   * Return a mutable copy of this coverage.
+   */
+  public Coverage thaw() {
+    Coverage coverage = new Coverage();
+    
+    for (int r = 0; r < 16; r++) {
+      if (0 == this.cells[r].length) {
+        continue;
+      }
+      
+      Set<Long> set = coverage.getCells((r + 1) << 1);
+      
+      for (long cell: this.cells[r]) {
+        set.add(cell);
+      }
+    }
+    
+    return coverage;
+  }
+  
+  /**
+   * Return the union of this coverage and 'other'. Resolutions with cells
+   * in only one of the coverages are shared with the result.
+   */
+  public FrozenCoverage merge(FrozenCoverage other) {
+    long[][] merged = new long[16][];
+    
+    for (int r = 0; r < 16; r++) {
+      long[] a = this.cells[r];
+      long[] b = other.cells[r];
+      
+      if (0 == b.length) {
+        merged[r] = a;
+      } else if (0 == a.length) {
+        merged[r] = b;
+      } else {
+        merged[r] = union(a, b);
+      }
+    }
+    
+    return new FrozenCoverage(merged);
+  }
+  
+  /**
+   * @see Coverage#minus(Coverage, Coverage)
+   * 
+   * The sorted cells are walked in place, resolutions of this coverage with no cell
+   * covered by 'other' are shared with the result.
+   */
+  public FrozenCoverage minus(FrozenCoverage other) {
+    if (0 == this.count || 0 == other.count) {
+      return this;
+    }
+    
+    long[][] cells = new long[16][];
+    
+    //
+    // Cells created by splitting cells of ours which contain finer cells of 'other'
+    //
+    
+    long[][] split = new long[16][];
+    int[] nsplit = new int[16];
+    
+    for (int r = 0; r < 16; r++) {
+      long[] hhcodes = this.cells[r];
+      
+      if (0 == hhcodes.length) {
+        cells[r] = hhcodes;
+        continue;
+      }
+      
+      boolean[] covered = new boolean[hhcodes.length];
+      int ncovered = covered(hhcodes, r, other.cells, covered);
+      
+      //
+      // Cells containing finer cells of 'other' are dropped and split
+      //
+      
+      for (int i = 0; i < hhcodes.length; i++) {
+        if (!covered[i] && containsFiner(other.cells, r, hhcodes[i])) {
+          covered[i] = true;
+          ncovered++;
+          addMinus(r, hhcodes[i], other.cells, split, nsplit);
+        }
+      }
+      
+      cells[r] = select(hhcodes, covered, hhcodes.length - ncovered);
+    }
+    
+    for (int r = 0; r < 16; r++) {
+      if (0 == nsplit[r]) {
+        continue;
+      }
+      
+      //
+      // Nested cells of ours may have been split along the same path, remove duplicates
+      //
+      
+      long[] hhcodes = split[r];
+      Arrays.sort(hhcodes, 0, nsplit[r]);
+      
+      int n = 1;
+      
+      for (int i = 1; i < nsplit[r]; i++) {
+        if (hhcodes[i] != hhcodes[n - 1]) {
+          hhcodes[n++] = hhcodes[i];
+        }
+      }
+      
+      cells[r] = union(cells[r], Arrays.copyOf(hhcodes, n));
+    }
+    
+    return new FrozenCoverage(cells);
+  }
+  
+  /**
+   * @see Coverage#intersection(Coverage, Coverage)
+   * 
+   * The sorted cells are walked in place, resolutions of a coverage whose cells are all
+   * covered by the other one are shared with the result.
+   */
+  public FrozenCoverage intersection(FrozenCoverage other) {
+    long[][] cells = new long[16][];
+    
+    if (0 == this.count || 0 == other.count) {
+      return new FrozenCoverage(cells);
+    }
+    
+    for (int r = 0; r < 16; r++) {
+      long[] a = covered(this.cells[r], r, other.cells);
+      long[] b = covered(other.cells[r], r, this.cells);
+      
+      if (0 == b.length) {
+        cells[r] = a;
+      } else if (0 == a.length) {
+        cells[r] = b;
+      } else {
+        cells[r] = union(a, b);
+      }
+    }
+    
+    return new FrozenCoverage(cells);
+  }
+  
+  /**
+   * @see Coverage#optimize(long)
+   * 
+   * The snapshot is thawed to optimize it, so this costs as much as optimizing a deepCopy()
+   * of the original coverage. Only the result is stored more compactly.
+   */
+  public FrozenCoverage optimize(long thresholds) {
+    Coverage coverage = thaw();
+    coverage.optimize(thresholds);
+    return derive(coverage);
+  }
+  
+  /**
+   * @see Coverage#reduce(int)
+   * 
+   * As for optimize, the snapshot is thawed so this is not cheaper than reducing a deepCopy().
+   */
+  public FrozenCoverage reduce(int count) {
+    if (this.count <= count) {
+      return this;
+    }
+    
+    Coverage coverage = thaw();
+    coverage.reduce(count);
+    return derive(coverage);
+  }
+  
+  /**
+   * Freeze a coverage derived from this one, resolutions whose cells are identical
+   * to ours share our arrays so they are only stored once.
+   */
+  private FrozenCoverage derive(Coverage coverage) {
+    long[][] derived = coverage.sortedCells();
+    
+    for (int r = 0; r < 16; r++) {
+      if (Arrays.equals(derived[r], this.cells[r])) {
+        derived[r] = this.cells[r];
+      }
+    }
+    
+    return new FrozenCoverage(derived);
+  }
+  
+  /**
+   * Flag the cells of 'hhcodes' (sorted, at internal resolution r) which are covered by a cell
+   * of 'cells' at resolution r or coarser and return their number.
+   * Masking the cells keeps them sorted, so each resolution of 'cells' is walked once.
+   */
+  private static int covered(long[] hhcodes, int r, long[][] cells, boolean[] covered) {
+    int n = 0;
+    
+    for (int rr = 0; rr <= r; rr++) {
+      long[] prefixes = cells[rr];
+      long mask = Coverage.PREFIX_MASK[rr];
+      
+      int j = 0;
+      
+      for (int i = 0; i < hhcodes.length && j < prefixes.length; i++) {
+        if (covered[i]) {
+          continue;
+        }
+        
+        long prefix = hhcodes[i] & mask;
+        
+        while (j < prefixes.length && prefixes[j] < prefix) {
+          j++;
+        }
+        
+        if (j < prefixes.length && prefixes[j] == prefix) {
+          covered[i] = true;
+          n++;
+        }
+      }
+    }
+    
+    return n;
+  }
+  
+  /**
+   * Return the cells of 'hhcodes' (at internal resolution r) which are covered by 'cells',
+   * 'hhcodes' itself if they all are.
+   */
+  private static long[] covered(long[] hhcodes, int r, long[][] cells) {
+    if (0 == hhcodes.length) {
+      return hhcodes;
+    }
+    
+    boolean[] covered = new boolean[hhcodes.length];
+    int n = covered(hhcodes, r, cells, covered);
+    
+    if (n == hhcodes.length) {
+      return hhcodes;
+    }
+    
+    long[] selected = new long[n];
+    n = 0;
+    
+    for (int i = 0; i < hhcodes.length; i++) {
+      if (covered[i]) {
+        selected[n++] = hhcodes[i];
+      }
+    }
+    
+    return selected;
+  }
+  
+  /**
+   * Return the 'n' cells of 'hhcodes' which are not flagged in 'dropped', 'hhcodes' itself if none is.
+   */
+  private static long[] select(long[] hhcodes, boolean[] dropped, int n) {
+    if (n == hhcodes.length) {
+      return hhcodes;
+    }
+    
+    long[] selected = new long[n];
+    n = 0;
+    
+    for (int i = 0; i < hhcodes.length; i++) {
+      if (!dropped[i]) {
+        selected[n++] = hhcodes[i];
+      }
+    }
+    
+    return selected;
+  }
+  
+  /**
+   * Check whether 'cells' has cells finer than internal resolution r within cell 'hhcode'.
+   * Those cells are contiguous in each sorted array.
+   */
+  private static boolean containsFiner(long[][] cells, int r, long hhcode) {
+    long last = hhcode | ~Coverage.PREFIX_MASK[r];
+    
+    for (int rr = r + 1; rr < 16; rr++) {
+      long[] hhcodes = cells[rr];
+      
+      if (0 == hhcodes.length) {
+        continue;
+      }
+      
+      int idx = Arrays.binarySearch(hhcodes, hhcode);
+      
+      if (idx < 0) {
+        idx = -idx - 1;
+      }
+      
+      if (idx < hhcodes.length && hhcodes[idx] <= last) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Add to 'split' the part of cell 'hhcode' at internal resolution 'r' which is not covered
+   * by 'cells'. The cell is assumed not to be covered by a cell at resolution 'r' or coarser.
+   * 
+   * @see Coverage#minus(Coverage, Coverage, boolean)
+   */
+  private static void addMinus(int r, long hhcode, long[][] cells, long[][] split, int[] nsplit) {
+    if (!containsFiner(cells, r, hhcode)) {
+      if (null == split[r]) {
+        split[r] = new long[16];
+      } else if (nsplit[r] == split[r].length) {
+        split[r] = Arrays.copyOf(split[r], split[r].length << 1);
+      }
+      split[r][nsplit[r]++] = hhcode;
+      return;
+    }
+    
+    for (int i = 0; i < 16; i++) {
+      long subcell = hhcode | (((long) i) << (60 - 4 * (r + 1)));
+      
+      if (Arrays.binarySearch(cells[r + 1], subcell) >= 0) {
+        continue;
+      }
+      
+      addMinus(r + 1, subcell, cells, split, nsplit);
+    }
+  }
+  
+  /**
+   * Merge two sorted arrays of cells, dropping duplicates.
+   */
+  private static long[] union(long[] a, long[] b) {
+    long[] merged = new long[a.length + b.length];
+    
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        merged[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        merged[n++] = b[j++];
+      } else {
+        merged[n++] = a[i++];
+        j++;
+      }
+    }
+    
+    while (i < a.length) {
+      merged[n++] = a[i++];
+    }
+    
+    while (j < b.length) {
+      merged[n++] = b[j++];
+    }
+    
+    return n == merged.length ? merged : Arrays.copyOf(merged, n);
+  }
+}
@@ -0,0 +1,332 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact encoding of sorted geocells.
+ * 
+ * Geocells are sorted (Arrays.sort order) and each cell is encoded as a token relative
+ * to the previous one:
+ * 
+ *   varint((r << 1) | 1) varint(prefix)   when the resolution changes to r (1-15), prefix is
+ *                                         the 4*r significant bits of the cell
+ *   varint(delta << 1)                    when the resolution does not change, delta is the
+ *                                         difference of the prefixes of the cell and its predecessor
+ *   
+ * Varints are unsigned LEB128. Since cells are sorted the deltas are never negative so no
+ * zigzag encoding is needed. Neighbouring cells usually differ by a few units so most cells
+ * need a single byte.
+ * 
+ * An encoded shape is a version byte, the varint cell count and the tokens of the cells.
+ */
+public final class GeoCellCodec {
+  
+  public static final int VERSION = 1;
+  
+  private static final long CELL_MASK = 0x0fffffffffffffffL;
+  
+  /**
+   * Encode geocells, the array does not need to be sorted and is left untouched.
+   */
+  public static byte[] encode(long[] geocells) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 + geocells.length * 2);
+    try {
+      encode(geocells, out);
+    } catch (IOException ioe) {
+      // Can't happen with a ByteArrayOutputStream
+      throw new RuntimeException(ioe);
+    }
+    return out.toByteArray();
+  }
+  
+  /**
+   * Encode geocells onto an OutputStream, the OutputStream is not closed.
+   */
+  public static void encode(long[] geocells, OutputStream out) throws IOException {
+    long[] sorted = Arrays.copyOf(geocells, geocells.length);
+    Arrays.sort(sorted);
+    
+    out.write(VERSION);
+    byte[] tmp = new byte[10];
+    out.write(tmp, 0, putVarLong(tmp, 0, sorted.length));
+    encodeCells(sorted, 0, sorted.length, out);
+  }
+  
+  /**
+   * Encode the tokens of geocells[from] to geocells[to - 1] without any header.
+   * The first cell is always encoded with its full prefix so the tokens can be
+   * decoded independently of the preceding cells.
+   * 
+   * @param geocells Sorted geocells
+   */
+  public static void encodeCells(long[] geocells, int from, int to, OutputStream out) throws IOException {
+    byte[] buf = new byte[1024];
+    int pos = 0;
+    
+    int lastres = 0;
+    long lastprefix = 0L;
+    
+    for (int i = from; i < to; i++) {
+      //
+      // Make room for up to two varints
+      //
+      
+      if (pos > buf.length - 20) {
+        out.write(buf, 0, pos);
+        pos = 0;
+      }
+      
+      int res = (int) ((geocells[i] >>> 60) & 0xfL);
+      long prefix = (geocells[i] & CELL_MASK) >>> (60 - (res << 2));
+      
+      if (res != lastres || i == from) {
+        pos = putVarLong(buf, pos, (res << 1) | 1);
+        pos = putVarLong(buf, pos, prefix);
+      } else {
+        pos = putVarLong(buf, pos, (prefix - lastprefix) << 1);
+      }
+      
+      lastres = res;
+      lastprefix = prefix;
+    }
+    
+    out.write(buf, 0, pos);
+  }
+  
+  /**
+   * Decode geocells produced by 'encode'
+   */
+  public static long[] decode(byte[] encoded) throws IOException {
+    Decoder decoder = new Decoder(encoded, 0, encoded.length);
+    long[] geocells = new long[decoder.getCount()];
+    for (int i = 0; i < geocells.length; i++) {
+      geocells[i] = decoder.next();
+    }
+    return geocells;
+  }
+  
+  /**
+   * Check whether 'count' cells output by 'encodeCells' contain a given geocell.
+   * The tokens are scanned in place and the scan stops at the first cell greater than 'geocell'.
+   */
+  public static boolean contains(byte[] encoded, int offset, int count, long geocell) {
+    int pos = offset;
+    int res = 0;
+    long prefix = 0L;
+    
+    for (int i = 0; i < count; i++) {
+      long token = 0L;
+      int shift = 0;
+      int b;
+      
+      do {
+        b = encoded[pos++];
+        token |= ((long) (b & 0x7f)) << shift;
+        shift += 7;
+      } while (0 != (b & 0x80));
+      
+      if (0L != (token & 1L)) {
+        res = (int) (token >>> 1);
+        prefix = 0L;
+        shift = 0;
+        do {
+          b = encoded[pos++];
+          prefix |= ((long) (b & 0x7f)) << shift;
+          shift += 7;
+        } while (0 != (b & 0x80));
+      } else {
+        prefix += token >>> 1;
+      }
+      
+      long cell = (((long) res) << 60) | ((prefix << (60 - (res << 2))) & CELL_MASK);
+      
+      if (cell >= geocell) {
+        return cell == geocell;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Write 'value' as an unsigned varint at 'pos' and return the position following it.
+   */
+  public static int putVarLong(byte[] buf, int pos, long value) {
+    while (0L != (value & ~0x7fL)) {
+      buf[pos++] = (byte) ((value & 0x7fL) | 0x80L);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+  
+  /**
+   * Streaming decoder, cells are returned one at a time in sorted order.
+   */
+  public static final class Decoder {
+    
+    private final InputStream in;
+    
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    
+    private final int count;
+    private int decoded = 0;
+    
+    private int resolution = 0;
+    private long prefix = 0L;
+    
+    /**
+     * Create a decoder reading the output of 'encode' from an InputStream.
+     * The InputStream is read in chunks so the decoder may read past the end of the encoded cells.
+     */
+    public Decoder(InputStream in) throws IOException {
+      this.in = in;
+      this.buf = new byte[8192];
+      this.pos = 0;
+      this.limit = 0;
+      this.count = readHeader();
+    }
+
+    /**
+     * Create a decoder reading the output of 'encode' from a byte array.
+     */
+    public Decoder(byte[] encoded, int offset, int length) throws IOException {
+      this.in = null;
+      this.buf = encoded;
+      this.pos = offset;
+      this.limit = offset + length;
+      this.count = readHeader();
+      
+      //
+      // Each cell takes at least one byte, reject corrupt counts before callers allocate for them
+      //
+      
+      if (this.count > this.limit - this.pos) {
+        throw new IOException("Invalid geocell count " + this.count + ", only " + (this.limit - this.pos) + " bytes left.");
+      }
+    }
+    
+    /**
+     * Create a decoder reading 'count' cells output by 'encodeCells' from a byte array.
+     */
+    public Decoder(byte[] encoded, int offset, int length, int count) {
+      this.in = null;
+      this.buf = encoded;
+      this.pos = offset;
+      this.limit = offset + length;
+      this.count = count;
+    }
+    
+    private int readHeader() throws IOException {
+      int version = readByte();
+      
+      if (VERSION != version) {
+        throw new IOException("Unsupported geocell encoding version " + version + ".");
+      }
+      
+      long count = readVarLong();
+      
+      if (count < 0 || count > Integer.MAX_VALUE) {
+        throw new IOException("Invalid geocell count " + count + ".");
+      }
+      
+      return (int) count;
+    }
+    
+    /**
+     * Return the total number of cells to decode.
+     */
+    public int getCount() {
+      return this.count;
+    }
+    
+    public boolean hasNext() {
+      return this.decoded < this.count;
+    }
+    
+    public long next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      
+      long token = readVarLong();
+      
+      if (0L != (token & 1L)) {
+        this.resolution = (int) (token >>> 1);
+        if (this.resolution < 1 || this.resolution > 15) {
+          throw new IOException("Invalid geocell resolution " + this.resolution + ".");
+        }
+        this.prefix = readVarLong();
+      } else if (0 == this.resolution) {
+        throw new IOException("Invalid geocell encoding, missing resolution.");
+      } else {
+        this.prefix += token >>> 1;
+      }
+      
+      this.decoded++;
+      
+      return (((long) this.resolution) << 60) | ((this.prefix << (60 - (this.resolution << 2))) & CELL_MASK);
+    }
+    
+    private int readByte() throws IOException {
+      if (this.pos == this.limit) {
+        if (null == this.in) {
+          throw new EOFException();
+        }
+        this.limit = this.in.read(this.buf, 0, this.buf.length);
+        this.pos = 0;
+        if (this.limit <= 0) {
+          this.limit = 0;
+          throw new EOFException();
+        }
+      }
+      return this.buf[this.pos++] & 0xff;
+    }
+    
+    private long readVarLong() throws IOException {
+      long value = 0L;
+      int shift = 0;
+      
+      while (shift < 64) {
+        int b = readByte();
+        value |= ((long) (b & 0x7f)) << shift;
+        if (0 == (b & 0x80)) {
+          return value;
+        }
+        shift += 7;
+      }
+      
+      throw new IOException("Malformed varint.");
+    }
+  }
+}
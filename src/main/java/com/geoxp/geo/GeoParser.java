@@ -21,6 +21,8 @@
 
 package com.geoxp.geo;
 
+import gnu.trove.list.array.TLongArrayList;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,11 +32,6 @@ import java.util.List;
  */
 public class GeoParser {
   
-  /**
-   * Number of sides on each quadrant of the polygon approximation of a circle.
-   */
-  private static final int QUADRANT_POLYGON_APPROX_SIDES = 16;
-  
   /**
    * Parse a textual representation of a polygon into a coverage.
    * The format of the polygon is:
@@ -60,8 +57,8 @@ public class GeoParser {
 
     //List<Long> vertices = new ArrayList<Long>();
     
-    List<Long> verticesLat = new ArrayList<Long>();
-    List<Long> verticesLon = new ArrayList<Long>();
+    TLongArrayList verticesLat = new TLongArrayList(latlons.length);
+    TLongArrayList verticesLon = new TLongArrayList(latlons.length);
     
     for (String latlon: latlons) {
       String[] ll = latlon.split(":");
@@ -83,9 +80,9 @@ public class GeoParser {
     }
     
     // Remove last point if it's the same as the first one
-    if (verticesLat.get(0).equals(verticesLat.get(verticesLat.size() - 1)) && verticesLon.get(0).equals(verticesLon.get(verticesLon.size() - 1))) {
-      verticesLat.remove(0);
-      verticesLon.remove(0);
+    if (verticesLat.get(0) == verticesLat.get(verticesLat.size() - 1) && verticesLon.get(0) == verticesLon.get(verticesLon.size() - 1)) {
+      verticesLat.removeAt(0);
+      verticesLon.removeAt(0);
     }
     /*
     if (vertices.get(0).equals(vertices.get(vertices.size() - 1))) {
@@ -94,7 +91,7 @@ public class GeoParser {
     */
 
     //return HHCodeHelper.coverPolygon(vertices, resolution);
-    return HHCodeHelper.coverPolygon(verticesLat, verticesLon, resolution, coverage);
+    return HHCodeHelper.coverPolygon(verticesLat.toArray(), verticesLon.toArray(), resolution, coverage);
   }
   
   /**
@@ -124,54 +121,40 @@ public class GeoParser {
     
     double distance = 0L;
 
-    long fromLat;
-    long fromLon;
+    long[] lats = new long[coords.length];
+    long[] lons = new long[coords.length];
     
-    long toLat;
-    long toLon;
+    // Side distance of each segment
+    double[] distances = new double[coords.length - 1];
     
-    String[] from = coords[0].split(":");
-    
-    for (int i = 1; i < coords.length; i ++) {
-      
-      String[] to = coords[i].split(":");
+    for (int i = 0; i < coords.length; i ++) {
       
-      // Extract side distance for next segment,
-      // if not set, use last distance found
+      String[] from = coords[i].split(":");
       
       try {       
-        // FIXME(hbs): we actually call getHHCodeValue twice for each coord, this could be optimized,
-        //             but let's bet the JIT/JVM will do just fine.
-        
-        // A distance was specified
+        // Extract side distance for next segment,
+        // if not set, use last distance found
         if (from.length == 3) {
           distance = Double.valueOf(from[2]);
         }
     
-        fromLat = HHCodeHelper.toLongLat(Double.valueOf(from[0]));
-        fromLon = HHCodeHelper.toLongLon(Double.valueOf(from[1]));
+        lats[i] = HHCodeHelper.toLongLat(Double.valueOf(from[0]));
+        lons[i] = HHCodeHelper.toLongLon(Double.valueOf(from[1]));
         
-        // Extract 'to'
-        toLat = HHCodeHelper.toLongLat(Double.valueOf(to[0]));
-        toLon = HHCodeHelper.toLongLon(Double.valueOf(to[1]));
-        
-        if (distance > 0) {
-          // Compute coverage
-          Coverage segmentCoverage = HHCodeHelper.coverSegment(fromLat, fromLon, toLat, toLon, distance, resolution);
-        
-          // Merge coverage with current one
-          coverage.merge(segmentCoverage);
+        if (i < distances.length) {
+          distances[i] = distance;
         }
-        
-        // Shift 'to' to 'from'
-        from = to;
       } catch (NumberFormatException nfe) {
         // Invalid number, return empty coverage
         return new Coverage();
       }
     }
 
-    return coverage;
+    //
+    // Cover all segments in a single pass, segments with a distance of 0 are ignored
+    //
+    
+    return HHCodeHelper.coverCorridor(lats, lons, distances, resolution, coverage);
   }
   
   /**
@@ -201,54 +184,7 @@ public class GeoParser {
       double lon = Double.valueOf(tokens[1]);
       double radius = Math.abs(Double.valueOf(tokens[2]));
    
-      long[] centercoords = new long[2];
-      
-      centercoords[0] = HHCodeHelper.toLongLat(lat);
-      centercoords[1] = HHCodeHelper.toLongLon(lon);
-      
-      //
-      // Build a polygon approximation with 12 sides
-      //
-      
-      List<Long> verticesLat = new ArrayList<Long>(4 * QUADRANT_POLYGON_APPROX_SIDES);
-      List<Long> verticesLon = new ArrayList<Long>(4 * QUADRANT_POLYGON_APPROX_SIDES);
-      
-      // Populate the list
-      for (int i = 0; i < 4 * QUADRANT_POLYGON_APPROX_SIDES; i++) {
-        verticesLat.add(0L);
-        verticesLon.add(0L);
-      }
-      
-      // Compute scale at center latitude
-      double scale = Math.cos(Math.toRadians(lat));
-      
-      long latradius = Math.round(radius * HHCodeHelper.latUnitsPerMeter);
-      long lonradius = Math.round(radius * HHCodeHelper.lonUnitsPerMeter / scale);
-
-      double sideangle = Math.PI * 2.0 / (4.0 * QUADRANT_POLYGON_APPROX_SIDES);
-      
-      // Build a polygon approximation of the circle. Only loop through
-      // one quadrant to speed up computations.
-      
-      for (int i = 0; i < QUADRANT_POLYGON_APPROX_SIDES; i++) {
-        double a = i * sideangle;
-        double c = Math.cos(a);
-        double s = Math.sin(a);
-      
-        verticesLat.set(i, (long) (centercoords[0] + s * latradius));
-        verticesLon.set(i, (long) (centercoords[1] + c * lonradius));
-        
-        verticesLat.set(i + QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[0] + c * latradius));
-        verticesLon.set(i + QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[1] - s * lonradius));
-        
-        verticesLat.set(i + 2 * QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[0] - s * latradius));
-        verticesLon.set(i + 2 * QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[1] - c * lonradius));
-        
-        verticesLat.set(i + 3 * QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[0] - c * latradius));
-        verticesLon.set(i + 3 * QUADRANT_POLYGON_APPROX_SIDES, (long) (centercoords[1] + s * lonradius));        
-      }
-            
-      return HHCodeHelper.coverPolygon(verticesLat, verticesLon, resolution, coverage);     
+      return HHCodeHelper.coverCircle(HHCodeHelper.toLongLat(lat), HHCodeHelper.toLongLon(lon), radius, resolution, coverage);
     } catch (NumberFormatException e) {
       // Return an empty coverage
       return coverage;
@@ -343,14 +279,38 @@ public class GeoParser {
    */
   public static List<Long>[] parseEncodedPolyline(String polyline) {
     
+    TLongArrayList lats = new TLongArrayList();
+    TLongArrayList lons = new TLongArrayList();
+    
+    parseEncodedPolyline(polyline, lats, lons);
+    
+    List<Long> verticesLat = new ArrayList<Long>(lats.size());
+    List<Long> verticesLon = new ArrayList<Long>(lons.size());
+    
+    for (int i = 0; i < lats.size(); i++) {
+      verticesLat.add(lats.get(i));
+      verticesLon.add(lons.get(i));
+    }
+   
+    List<Long>[] coords = new List[2];
+    
+    coords[0] = verticesLat;
+    coords[1] = verticesLon;
+    
+    return coords;
+  }
+  
+  /**
+   * Parse a Google Maps encoded polyline, appending the latitudes and longitudes
+   * of its vertices to 'verticesLat' and 'verticesLon'.
+   */
+  public static void parseEncodedPolyline(String polyline, TLongArrayList verticesLat, TLongArrayList verticesLon) {
+    
     int index = 0;
     int len = polyline.length();
     int lat = 0;
     int lng = 0;
 
-    List<Long> verticesLat = new ArrayList<Long>();
-    List<Long> verticesLon = new ArrayList<Long>();
-    
     while (index < len) {
       int b;
       int shift = 0;
@@ -384,13 +344,6 @@ public class GeoParser {
       
       //hhcodes.add(HHCodeHelper.getHHCodeValue((double) lat / 1E5, (double) lng / 1E5)); 
     }
-   
-    List<Long>[] coords = new List[2];
-    
-    coords[0] = verticesLat;
-    coords[1] = verticesLon;
-    
-    return coords;
   }
   
   /**
@@ -428,13 +381,12 @@ public class GeoParser {
       
       try {
         double dist = Double.valueOf(def.substring(9,9+idx));
-        List<Long>[] hhcoords = parseEncodedPolyline(def.substring(9 + idx + 1));
+        TLongArrayList lats = new TLongArrayList();
+        TLongArrayList lons = new TLongArrayList();
         
-        for (int i = 0; i < hhcoords[0].size() - 1; i++) {
-          HHCodeHelper.coverSegment(hhcoords[0].get(i), hhcoords[1].get(i), hhcoords[0].get(i+1), hhcoords[1].get(i + 1), dist, resolution, cover);
-        }
+        parseEncodedPolyline(def.substring(9 + idx + 1), lats, lons);
         
-        return cover;
+        return HHCodeHelper.coverCorridor(lats.toArray(), lons.toArray(), dist, resolution, cover);
       } catch (NumberFormatException nfe) {
         return cover;
       }
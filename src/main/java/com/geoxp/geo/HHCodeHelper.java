@@ -21,6 +21,8 @@
 
 package com.geoxp.geo;
 
+import gnu.trove.list.array.TLongArrayList;
+
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -952,6 +954,18 @@ public final class HHCodeHelper {
   }
   
   public static final long[] getBoundingBox(List<Long> lats, List<Long> lons) {
+    int size = Math.min(lats.size(), lons.size());
+    return getBoundingBox(toArray(lats, size), toArray(lons, size), 0, size);
+  }
+  
+  /**
+   * Return the bounding box of vertices 'offset' to 'offset + length - 1'.
+   * 
+   * @param lats Latitudes of the vertices
+   * @param lons Longitudes of the vertices
+   * @return an array of 4 long (SW lat, SW lon, NE lat, NE lon)
+   */
+  public static final long[] getBoundingBox(long[] lats, long[] lons, int offset, int length) {
     
     long[] bbox = new long[4];
     
@@ -960,24 +974,42 @@ public final class HHCodeHelper {
     bbox[2] = Long.MIN_VALUE; // NE lat
     bbox[3] = Long.MIN_VALUE; // NE lon
 
-    for (int i = 0; i < Math.min(lats.size(), lons.size()); i++) {
-      if (lats.get(i) < bbox[0]) {
-        bbox[0] = lats.get(i);
+    for (int i = offset; i < offset + length; i++) {
+      if (lats[i] < bbox[0]) {
+        bbox[0] = lats[i];
       }
-      if (lats.get(i) > bbox[2]) {
-        bbox[2] = lats.get(i);
+      if (lats[i] > bbox[2]) {
+        bbox[2] = lats[i];
       }
-      if (lons.get(i) > bbox[3]) {
-        bbox[3] = lons.get(i);
+      if (lons[i] > bbox[3]) {
+        bbox[3] = lons[i];
       }
-      if (lons.get(i) < bbox[1]) {
-        bbox[1] = lons.get(i);
+      if (lons[i] < bbox[1]) {
+        bbox[1] = lons[i];
       }      
     }
 
     return bbox;    
   }
   
+  /**
+   * Copy the first 'size' elements of a list of longs into an array.
+   */
+  private static final long[] toArray(List<Long> list, int size) {
+    long[] array = new long[size];
+    
+    int i = 0;
+    
+    for (long value: list) {
+      if (i >= size) {
+        break;
+      }
+      array[i++] = value;
+    }
+    
+    return array;
+  }
+  
   /**
    * Return the bounding box of the list of nodes.
    * 
@@ -1174,18 +1206,12 @@ public final class HHCodeHelper {
    * @return A map keyed by resolution and whose values are the list of zones covering the polygon
    */
   public static final Coverage coverPolygon(List<Long> vertices, int resolution, long[] geocells, boolean excludeGeoCells) {
-    List<Long> verticesLat = new ArrayList<Long>();
-    List<Long> verticesLon = new ArrayList<Long>();
-    
-    long[] coords = new long[2];
+    long[] verticesLat = new long[vertices.size()];
+    long[] verticesLon = new long[vertices.size()];
     
-    for (long hhcode: vertices) {
-      HHCodeHelper.stableSplitHHCode(hhcode, MAX_RESOLUTION, coords);
-      verticesLat.add(coords[0]);
-      verticesLon.add(coords[1]);
-    }
+    splitVertices(vertices, verticesLat, verticesLon);
     
-    return coverPolygon(verticesLat, verticesLon, resolution, geocells, excludeGeoCells);
+    return coverPolygon(verticesLat, verticesLon, 0, verticesLat.length, resolution, new Coverage(), geocells, excludeGeoCells);
   }
 
   public static final Coverage coverPolygon(List<Long> vertices, int resolution) {
@@ -1234,28 +1260,50 @@ public final class HHCodeHelper {
     
     int size = Math.min(verticesLat.size(), verticesLon.size());
     
-    verticesLat = verticesLat.subList(0, size);
-    verticesLon = verticesLon.subList(0, size);
-
-    int nvertices = verticesLat.size();
+    return coverPolygon(toArray(verticesLat, size), toArray(verticesLon, size), 0, size, resolution, coverage, geocells, excludeGeoCells);
+  }
+  
+  /**
+   * Determine a list of zones covering a polygon whose vertices are 'offset' to 'offset + length - 1'
+   * of 'verticesLat' and 'verticesLon'. Polygon need not be closed (i.e. last vertex can be != from first vertex).
+   * 
+   * @param verticesLat Vertices latitudes (in long HHCode coordinates) of the polygon.
+   * @param verticesLon Vertices longitudes (in long HHCode coordinates) of the polygon.
+   * @param offset Index of the first vertex
+   * @param length Number of vertices
+   * @param resolution The resolution at which to do the covering. If the resolution is 0, compute one from the bbox.
+   *                   If resolution is < 0, compute optimal resolution from bbox then substract 'resolution', so 20 becomes 22 if resolution is -2
+   * @param coverage Emit the included cells to this sink
+   * @param geocells optional array of Geocells to intersect / exclude
+   * @param excludeGeoCells if true, exclude 'geocells', otherwise intersect.
+   * 
+   * @return 'coverage'
+   */
+  public static final <T extends CellSink> T coverPolygon(long[] verticesLat, long[] verticesLon, int offset, int length, int resolution, T coverage, long[] geocells, boolean excludeGeoCells) {
+    
+    if (length <= 0) {
+      return coverage;
+    }
+    
+    int nvertices = length;
     
     //
-    // Copy vertices lat/lon in arrays for faster access
+    // Work on copies starting at 0 if the vertices do not start at the beginning of the arrays
     //
     
-    long[] verticesLatArray = new long[size];
-    long[] verticesLonArray = new long[size];
+    long[] verticesLatArray = verticesLat;
+    long[] verticesLonArray = verticesLon;
     
-    for (int i = 0; i < size; i++) {
-      verticesLatArray[i] = verticesLat.get(i);
-      verticesLonArray[i] = verticesLon.get(i);
+    if (0 != offset) {
+      verticesLatArray = Arrays.copyOfRange(verticesLat, offset, offset + length);
+      verticesLonArray = Arrays.copyOfRange(verticesLon, offset, offset + length);
     }
         
     //
     // Determine bounding box of the polygon
     //
     
-    long[] bbox = getBoundingBox(verticesLat, verticesLon);
+    long[] bbox = getBoundingBox(verticesLatArray, verticesLonArray, 0, nvertices);
     
     long topLat = bbox[2];
     long leftLon = bbox[1];
@@ -1301,39 +1349,39 @@ public final class HHCodeHelper {
     //List<Long> nodeLon = new ArrayList<Long>(40); 
     //List<Long> nodeLat = new ArrayList<Long>();  
     
-    Set<Long> allLons = new HashSet<Long>();
-    Set<Long> allLats = new HashSet<Long>();
-    
     //
-    // Add bottom of each cell from bottomLat to topLat
+    // Add bottom of each cell from bottomLat to topLat to the vertices lats
     //
 
-    allLats.addAll(verticesLat);
+    long[] nodeLatArray = new long[nvertices + (int) (((topLat - bottomLat) >>> (32 - resolution)) + 1)];
+    int idx = 0;
+
+    for (int i = 0; i < nvertices; i++) {
+      nodeLatArray[idx++] = verticesLatArray[i];
+    }
     
     for (long lat = bottomLat; lat <= topLat; lat += 1L << (32 - resolution)) {
-      allLats.add(lat & resolutionprefixmask);
+      nodeLatArray[idx++] = lat & resolutionprefixmask;
     }
 
-    // Store all lats, removing duplicates
-    //nodeLat.addAll(allLats);
+    // Sort lats from bottom to top
+    //Collections.sort(nodeLat);
+    Arrays.sort(nodeLatArray, 0, idx);
     
-    long[] nodeLatArray = new long[allLats.size()];
-    int idx = 0;
-    for (long lat: allLats) {
-      nodeLatArray[idx++] = lat;
-    }
+    // Remove duplicates
+    int nlats = 0;
     
-    allLats.clear();
+    for (int i = 0; i < idx; i++) {
+      if (0 == nlats || nodeLatArray[i] != nodeLatArray[nlats - 1]) {
+        nodeLatArray[nlats++] = nodeLatArray[i];
+      }
+    }
     
     long[] nodeLonArray = new long[nvertices];
     
-    // Sort lats from bottom to top
-    //Collections.sort(nodeLat);
-    Arrays.sort(nodeLatArray);
-    
     // Loop over each cell bottom
     //for (long lat: nodeLat) {
-    for (int latidx = 0; latidx < nodeLatArray.length; latidx++) {
+    for (int latidx = 0; latidx < nlats; latidx++) {
       long lat = nodeLatArray[latidx];
       
       //
@@ -1348,10 +1396,6 @@ public final class HHCodeHelper {
       //nodeLon.clear();
       int lonidx = 0;
       
-      // Clear the set of all Longitudes considered.
-      // This is necessary because we might otherwise have odd number of lons because a node intersects the lat at a Lon which is at the end of a group of lons already considered
-      allLons.clear();
-      
       for (int i = 0; i < nvertices; i++) {
         //icoords[0] = verticesLat.get(i);
         icoords[0] = verticesLatArray[i];
@@ -1391,22 +1435,17 @@ public final class HHCodeHelper {
 
           long midlon = 0;
           
-          long lowLon = Long.MAX_VALUE;
-          long highLon = Long.MIN_VALUE;
-
-          for (long lng = startLng; lng <= stopLng; lng += (1L << (32 - resolution))) {
-            if ((lng >= (icoords[1] & resolutionprefixmask) && lng <= (jcoords[1] | resolutionoffsetmask))
-                || (lng >= (jcoords[1] & resolutionprefixmask) && lng <= (icoords[1] | resolutionoffsetmask))) {
-              coverage.addCell(resolution, lat, lng, geocells, excludeGeoCells);
-              // Record low and high bounds of cell slice we just added.
-              if ((lng & resolutionprefixmask) < lowLon) {
-                lowLon = lng&resolutionprefixmask;
-                midlon = lng;
-              }
-              if ((lng & resolutionprefixmask) > highLon) {
-                highLon = lng&resolutionprefixmask;
-              }
-            }
+          //
+          // Add the cells between startLng and stopLng which are within the lon span of the edge,
+          // midlon is the lon of the first of those cells.
+          //
+          
+          long lowLon = Math.max(startLng, Math.min(icoords[1], jcoords[1]) & resolutionprefixmask);
+          long highLon = Math.min(stopLng, Math.max(icoords[1], jcoords[1]) & resolutionprefixmask);
+          
+          if (lowLon <= highLon) {
+            addCells(coverage, resolution, lat, lowLon, highLon, geocells, excludeGeoCells);
+            midlon = lowLon;
           }
 
           
@@ -1416,15 +1455,15 @@ public final class HHCodeHelper {
           //
           if (lat != icoords[0]
               //|| (lat == icoords[0] && (verticesLat.get(i + 1 < verticesLat.size() ? i + 1 : 0) - icoords[0]) * (jcoords[0] - icoords[0]) > 0.0)) { // check > 0.0 so we exclude horizontal segments
-              || (lat == icoords[0] && (verticesLatArray[i + 1 < verticesLat.size() ? i + 1 : 0] - icoords[0]) * (jcoords[0] - icoords[0]) > 0.0)) { // check > 0.0 so we exclude horizontal segments
+              || (lat == icoords[0] && (verticesLatArray[i + 1 < nvertices ? i + 1 : 0] - icoords[0]) * (jcoords[0] - icoords[0]) > 0.0)) { // check > 0.0 so we exclude horizontal segments
             //nodeLon.add(midlon);
             nodeLonArray[lonidx++] = midlon;
           }         
         } else if(icoords[0] == jcoords[0] && (lat & resolutionprefixmask) == (icoords[0] & resolutionprefixmask)) {
           // Handle the case where the polygon edge is horizontal, we add the cells on the edge to the coverage
-          for (long lon = Math.min(icoords[1],jcoords[1]); lon <= Math.max(icoords[1], jcoords[1]); lon += (1L << (32 - resolution))) {
-            coverage.addCell(resolution, lat, lon, geocells, excludeGeoCells);
-          }
+          long fromLon = Math.min(icoords[1], jcoords[1]);
+          long toLon = fromLon + (((Math.max(icoords[1], jcoords[1]) - fromLon) >>> (32 - resolution)) << (32 - resolution));
+          addCells(coverage, resolution, lat, fromLon, toLon, geocells, excludeGeoCells);
         }
 
         j = i;
@@ -1444,10 +1483,7 @@ public final class HHCodeHelper {
           // Check for bounds if the user specified some weird polygon (with wrapping around the pole for example, as in circle:48:-4.5:50000000)
           if (i < nnodes - 1) {
             //for (long lon = nodeLon.get(i) & resolutionprefixmask; lon <= (nodeLon.get(i + 1) | resolutionoffsetmask); lon += (1L << (32 - resolution))) {
-            for (long lon = nodeLonArray[i] & resolutionprefixmask; lon <= (nodeLonArray[i + 1] | resolutionoffsetmask); lon += (1L << (32 - resolution))) {
-              // Add the cell
-              coverage.addCell(resolution, lat, lon, geocells, excludeGeoCells);
-            }
+            addCells(coverage, resolution, lat, nodeLonArray[i], nodeLonArray[i + 1], geocells, excludeGeoCells);
           }
         }        
       }
@@ -1463,6 +1499,122 @@ public final class HHCodeHelper {
     return coverPolygon(verticesLat, verticesLon, resolution, coverage, null, false);
   }
   
+  public static final <T extends CellSink> T coverPolygon(long[] verticesLat, long[] verticesLon, int resolution, T coverage) {
+    return coverPolygon(verticesLat, verticesLon, 0, Math.min(verticesLat.length, verticesLon.length), resolution, coverage, null, false);
+  }
+  
+  /**
+   * Emit the cell at 'resolution' containing lat/lon to 'sink', taking 'geocells' into account.
+   * lat/lon are wrapped in the 0->2**32-1 range.
+   */
+  private static final void addCell(CellSink sink, int resolution, long lat, long lon, long[] geocells, boolean excludeGeoCells) {
+    lat = ((lat % (1L << MAX_RESOLUTION)) + (1L << MAX_RESOLUTION)) % (1L << MAX_RESOLUTION);
+    lon = ((lon % (1L << MAX_RESOLUTION)) + (1L << MAX_RESOLUTION)) % (1L << MAX_RESOLUTION);
+    
+    addCell(sink, resolution, buildHHCode(lat, lon, MAX_RESOLUTION), geocells, excludeGeoCells);
+  }
+  
+  /**
+   * Emit the cell at 'resolution' containing 'hhcode' to 'sink' if it is included in (or excluded from
+   * if 'excludeGeoCells' is true) 'geocells'.
+   */
+  private static final void addCell(CellSink sink, int resolution, long hhcode, long[] geocells, boolean excludeGeoCells) {
+    int r = (resolution >> 1) - 1;
+    
+    // Do nothing if resolution out of range
+    if (0 != (r & 0xfffffff0)) {
+      return;
+    }
+    
+    hhcode = hhcode & Coverage.PREFIX_MASK[r];
+    
+    if (null != geocells) {
+      boolean ingeocells = Coverage.contains(geocells, hhcode, 2, resolution);
+      
+      if ((ingeocells && excludeGeoCells) || (!ingeocells && !excludeGeoCells)) {
+        return;
+      }      
+    }
+    
+    sink.accept(resolution, hhcode);
+  }
+  
+  /**
+   * Emit the cells at 'resolution' of the row containing 'lat', from the cell containing 'fromLon'
+   * to the one containing 'toLon'. If 'sink' is a CellRunSink and no geocells filtering is requested,
+   * the row is emitted as runs, otherwise cell by cell.
+   * 
+   * Package protected so CircleTemplateCache can emit its rows.
+   */
+  static final void addCells(CellSink sink, int resolution, long lat, long fromLon, long toLon, long[] geocells, boolean excludeGeoCells) {
+    int r = (resolution >> 1) - 1;
+    
+    // Do nothing if resolution out of range
+    if (0 != (r & 0xfffffff0)) {
+      return;
+    }
+    
+    long cellsize = 1L << (MAX_RESOLUTION - resolution);
+    long mask = 0xffffffffffffffffL ^ (cellsize - 1);
+    
+    fromLon = fromLon & mask;
+    toLon = toLon & mask;
+    
+    if (fromLon > toLon) {
+      return;
+    }
+    
+    if (null != geocells || !(sink instanceof CellRunSink)) {
+      for (long lon = fromLon; lon <= toLon; lon += cellsize) {
+        addCell(sink, resolution, lat, lon, geocells, excludeGeoCells);
+      }
+      return;
+    }
+    
+    CellRunSink runsink = (CellRunSink) sink;
+    
+    //
+    // Wrap lat/lon in the 0->2**32-1 range, splitting the run if it wraps around
+    //
+    
+    long world = 1L << MAX_RESOLUTION;
+    
+    lat = (((lat % world) + world) % world) & mask;
+    
+    if (toLon - fromLon >= world - cellsize) {
+      runsink.acceptRun(resolution, lat, 0L, world - cellsize);
+      return;
+    }
+    
+    long length = toLon - fromLon;
+    
+    fromLon = ((fromLon % world) + world) % world;
+    toLon = fromLon + length;
+    
+    if (toLon < world) {
+      runsink.acceptRun(resolution, lat, fromLon, toLon);
+    } else {
+      runsink.acceptRun(resolution, lat, fromLon, world - cellsize);
+      runsink.acceptRun(resolution, lat, 0L, toLon - world);
+    }
+  }
+  
+  /**
+   * Split HHCodes into the lat/lon arrays 'lats' and 'lons'.
+   */
+  private static final void splitVertices(List<Long> vertices, long[] lats, long[] lons) {
+    long[] coords = new long[2];
+    
+    int i = 0;
+    
+    for (long hhcode: vertices) {
+      HHCodeHelper.stableSplitHHCode(hhcode, MAX_RESOLUTION, coords);
+      lats[i] = coords[0];
+      lons[i] = coords[1];
+      i++;
+    }
+  }
+  
   /**
    * Cover a line with cells.
    * 
@@ -1487,17 +1639,29 @@ public final class HHCodeHelper {
    * @param excludeGeoCells if true, exclude 'geocells', otherwise intersect.
    */
   
-  public static final void coverLine(long from, long to, Coverage coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
+  public static final void coverLine(long from, long to, CellSink coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
     long[] A = splitHHCode(from);
     long[] B = splitHHCode(to);
     
     coverLine(A[0], A[1], B[0], B[1], coverage, resolution, geocells, excludeGeoCells);
   }
 
-  public static final void coverLine(long from, long to, Coverage coverage, int resolution) {
+  public static final void coverLine(long from, long to, CellSink coverage, int resolution) {
     coverLine(from, to, coverage, resolution, null, false);
   }
   
+  //
+  // Coverage variants of the CellSink methods, kept for binary compatibility
+  //
+  
+  public static final void coverLine(long from, long to, Coverage coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
+    coverLine(from, to, (CellSink) coverage, resolution, geocells, excludeGeoCells);
+  }
+  
+  public static final void coverLine(long from, long to, Coverage coverage, int resolution) {
+    coverLine(from, to, (CellSink) coverage, resolution, null, false);
+  }
+  
   /**
    * Compute coverage covering a line.
    * 
@@ -1511,7 +1675,7 @@ public final class HHCodeHelper {
    * @param geocells optional array of Geocells to intersect / exclude
    * @param excludeGeoCells if true, exclude 'geocells', otherwise intersect.
    */
-  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, Coverage coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
+  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, CellSink coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
     
     if (resolution <= 0) {
       long[] bbox = new long[4];
@@ -1563,7 +1727,7 @@ public final class HHCodeHelper {
       long lon = fromLon;
       
       while((lon & prefixmask) < toLon) {
-        coverage.addCell(resolution, lat, lon, geocells, excludeGeoCells);
+        addCell(coverage, resolution, lat, lon, geocells, excludeGeoCells);
         lon += offset;
       }
     } else if (0 == toLon - fromLon) {
@@ -1574,12 +1738,12 @@ public final class HHCodeHelper {
       
       if (north > 0) {
         while((lat & prefixmask) < toLat) {
-          coverage.addCell(resolution, buildHHCode(lat, lon), geocells, excludeGeoCells);
+          addCell(coverage, resolution, buildHHCode(lat, lon), geocells, excludeGeoCells);
           lat += offset;
         }        
       } else {
         while((lat | offsetmask) > toLat) {
-          coverage.addCell(resolution, buildHHCode(lat, lon), geocells, excludeGeoCells);
+          addCell(coverage, resolution, buildHHCode(lat, lon), geocells, excludeGeoCells);
           lat -= offset;
         }        
       }
@@ -1590,7 +1754,7 @@ public final class HHCodeHelper {
       boolean cont = true;
 
       while (cont) {
-        coverage.addCell(resolution, lat, lon, geocells, excludeGeoCells);
+        addCell(coverage, resolution, lat, lon, geocells, excludeGeoCells);
 
         //
         // determine if the slope from the current point to the corner of the
@@ -1646,23 +1810,25 @@ public final class HHCodeHelper {
     }
   }
 
-  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, Coverage coverage, int resolution) {
+  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, CellSink coverage, int resolution) {
     coverLine(fromLat, fromLon, toLat, toLon, coverage, resolution, null, false);
   }
   
+  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, Coverage coverage, int resolution, long[] geocells, boolean excludeGeoCells) {
+    coverLine(fromLat, fromLon, toLat, toLon, (CellSink) coverage, resolution, geocells, excludeGeoCells);
+  }
+  
+  public static final void coverLine(long fromLat, long fromLon, long toLat, long toLon, Coverage coverage, int resolution) {
+    coverLine(fromLat, fromLon, toLat, toLon, (CellSink) coverage, resolution, null, false);
+  }
+  
   public static final Coverage coverPolyline(List<Long> nodes, int resolution, boolean useBresenham, long[] geocells, boolean excludeGeoCells) {
-    List<Long> lat = new ArrayList<Long>();
-    List<Long> lon = new ArrayList<Long>();
-    
-    long[] coords = new long[2];
+    long[] lat = new long[nodes.size()];
+    long[] lon = new long[nodes.size()];
     
-    for (long hhcode: nodes) {
-      HHCodeHelper.stableSplitHHCode(hhcode, MAX_RESOLUTION, coords);
-      lat.add(coords[0]);
-      lon.add(coords[1]);
-    }
+    splitVertices(nodes, lat, lon);
     
-    return coverPolyline(lat, lon, resolution, false, useBresenham, geocells, excludeGeoCells);
+    return coverPolyline(lat, lon, 0, lat.length, resolution, false, useBresenham, new Coverage(), geocells, excludeGeoCells);
   }
 
   public static final Coverage coverPolyline(List<Long> nodes, int resolution, boolean useBresenham) {
@@ -1682,57 +1848,67 @@ public final class HHCodeHelper {
   }
   
   public static final Coverage coverPolyline(List<Long> lat, List<Long> lon, int resolution, boolean perSegmentResolution, boolean useBresenham, Coverage coverage, long[] geocells, boolean excludeGeoCells) {
+    int size = Math.min(lat.size(), lon.size());
+    return coverPolyline(toArray(lat, size), toArray(lon, size), 0, size, resolution, perSegmentResolution, useBresenham, coverage, geocells, excludeGeoCells);
+  }
+
+  public static final Coverage coverPolyline(List<Long> lat, List<Long> lon, int resolution, boolean perSegmentResolution, boolean useBresenham, Coverage coverage) {
+    return coverPolyline(lat, lon, resolution, perSegmentResolution, useBresenham, coverage, null, false);
+  }
+  
+  /**
+   * Cover the polyline whose nodes are 'offset' to 'offset + length - 1' of 'lat' and 'lon'.
+   * 
+   * @param lat Latitudes of the nodes
+   * @param lon Longitudes of the nodes
+   * @param offset Index of the first node
+   * @param length Number of nodes
+   * @param resolution The resolution at which to do the covering. If the resolution is <= 0, compute one from the bbox
+   * @param perSegmentResolution If true and resolution is <= 0, compute the resolution of each segment from its own bbox
+   * @param useBresenham Use Bresenham's algorithm instead of coverLine
+   * @param coverage Emit the covered cells to this sink
+   * @param geocells optional array of Geocells to intersect / exclude
+   * @param excludeGeoCells if true, exclude 'geocells', otherwise intersect.
+   * @return 'coverage'
+   */
+  public static final <T extends CellSink> T coverPolyline(long[] lat, long[] lon, int offset, int length, int resolution, boolean perSegmentResolution, boolean useBresenham, T coverage, long[] geocells, boolean excludeGeoCells) {
+    
+    if (length <= 0) {
+      return coverage;
+    }
     
     int resoffset = resolution;
         
     if (useBresenham) {
-      coverPolylineBresenham(lat, lon, resolution, perSegmentResolution, coverage, geocells, excludeGeoCells);
+      coverPolylineBresenham(lat, lon, offset, length, resolution, perSegmentResolution, coverage, geocells, excludeGeoCells);
     } else {
       //
       // Determine global resolution
       //
       
       if (resoffset <= 0 && !perSegmentResolution) {
-        long[] bbox = getBoundingBox(lat, lon);
+        long[] bbox = getBoundingBox(lat, lon, offset, length);
         resolution = getOptimalPolylineResolution(bbox, resoffset);
       }
       
-      List<Long> segmentLat = new ArrayList<Long>();
-      List<Long> segmentLon = new ArrayList<Long>();
-      
-      segmentLat.add(lat.get(0));
-      segmentLat.add(lat.get(0));
-      segmentLon.add(lon.get(0));
-      segmentLon.add(lon.get(0));
-      
-      for (int i = 0; i <= Math.min(lat.size(),lon.size()) - 2; i++) {
-        //
-        // Shift vertex
-        //
-        
-        segmentLat.remove(0);
-        segmentLon.remove(0);
-        
-        segmentLat.add(lat.get(i + 1));
-        segmentLon.add(lon.get(i+1));
-        
+      for (int i = offset; i <= offset + length - 2; i++) {
         if (perSegmentResolution) {
-          long[] bbox = getBoundingBox(segmentLat, segmentLon);
+          long[] bbox = getBoundingBox(lat, lon, i, 2);
           resolution = getOptimalPolylineResolution(bbox, resoffset);          
         }
         
-        coverLine(segmentLat.get(0), segmentLon.get(0), segmentLat.get(1), segmentLon.get(1), coverage, resolution, geocells, excludeGeoCells);
+        coverLine(lat[i], lon[i], lat[i + 1], lon[i + 1], coverage, resolution, geocells, excludeGeoCells);
       }
     }
     
     return coverage;
   }
 
-  public static final Coverage coverPolyline(List<Long> lat, List<Long> lon, int resolution, boolean perSegmentResolution, boolean useBresenham, Coverage coverage) {
-    return coverPolyline(lat, lon, resolution, perSegmentResolution, useBresenham, coverage, null, false);
+  public static final <T extends CellSink> T coverPolyline(long[] lat, long[] lon, int resolution, boolean perSegmentResolution, boolean useBresenham, T coverage) {
+    return coverPolyline(lat, lon, 0, Math.min(lat.length, lon.length), resolution, perSegmentResolution, useBresenham, coverage, null, false);
   }
   
-  private static void coverPolylineBresenham(List<Long> lats, List<Long> lons, int resolution, boolean perSegmentResolution, Coverage coverage, long[] geocells, boolean excludeGeoCells) {
+  private static void coverPolylineBresenham(long[] lats, long[] lons, int first, int length, int resolution, boolean perSegmentResolution, CellSink coverage, long[] geocells, boolean excludeGeoCells) {
     
     //
     // Compute offset for lat/lon
@@ -1751,47 +1927,21 @@ public final class HHCodeHelper {
     int resoffset = resolution;
     
     if (resoffset <= 0 && !perSegmentResolution) {
-      long[] bbox = getBoundingBox(lats, lons);
+      long[] bbox = getBoundingBox(lats, lons, first, length);
       resolution = getOptimalPolylineResolution(bbox, resoffset);
     }
     
-    List<Long> segmentLat = null;
-    List<Long> segmentLon = null;
-    
-    if (perSegmentResolution) {
-      segmentLat = new ArrayList<Long>();
-      segmentLon = new ArrayList<Long>();
-      
-      // The following is not an error, it is just to have two elements in
-      // each array, the loop will shift them anyway.
-      segmentLat.add(lats.get(0));
-      segmentLat.add(lats.get(0));
-      segmentLon.add(lons.get(0));
-      segmentLon.add(lons.get(0));
-    }
-
-    for (int i = 0; i <= Math.min(lats.size(), lons.size()) - 2; i++) {
+    for (int i = first; i <= first + length - 2; i++) {
 
       if (perSegmentResolution) {
-        //
-        // Shift vertex
-        //
-        
-        segmentLat.remove(0);
-        segmentLon.remove(0);
-        
-        segmentLat.add(lats.get(i + 1));
-        segmentLon.add(lons.get(i+1));
-        
-        long[] bbox = getBoundingBox(segmentLat, segmentLon);
+        long[] bbox = getBoundingBox(lats, lons, i, 2);
         resolution = getOptimalPolylineResolution(bbox, resoffset);          
       }
 
-      from[0] = lats.get(i);
-      from[1] = lons.get(i);
-      to[0] = lats.get(i+1);
-      to[1] = lons.get(i+1);
-      
+      from[0] = lats[i];
+      from[1] = lons[i];
+      to[0] = lats[i+1];
+      to[1] = lons[i+1];
       //
       // Determine if line is steep, i.e. its delta in lat is > than its delta in lon
       //
@@ -1841,7 +1991,7 @@ public final class HHCodeHelper {
       
         if (steep) {
           // We have swapped lat and lon, so swap them back
-          coverage.addCell(resolution, lon, lat, geocells, excludeGeoCells);
+          addCell(coverage, resolution, lon, lat, geocells, excludeGeoCells);
         
           // Add 8 cells around
           /*
@@ -1855,7 +2005,7 @@ public final class HHCodeHelper {
           coverage.get(resolution).add(buildHHCode(lon - offset, lat - offset,32));
            */
         } else {
-          coverage.addCell(resolution, lat,lon, geocells, excludeGeoCells);
+          addCell(coverage, resolution, lat, lon, geocells, excludeGeoCells);
 
         /*
         coverage.get(resolution).add(buildHHCode(lat + offset, lon,32));
@@ -1881,10 +2031,6 @@ public final class HHCodeHelper {
     }
   }
   
-  private static void coverPolylineBresenham(List<Long> lats, List<Long> lons, int resolution, boolean perSegmentResolution, Coverage coverage) {
-    coverPolylineBresenham(lats, lons, resolution, perSegmentResolution, coverage, null, false);
-  }
-  
   private static final void mergeCoverages(Map<Integer,List<Long>> a, Map<Integer,List<Long>> b) {
     //
     // For each resolution, add zones of b to those of a
@@ -1934,21 +2080,15 @@ public final class HHCodeHelper {
   }
   
   public static final Coverage coverRectangle(final double swlat, final double swlon, final double nelat, final double nelon, int resolution, long[] geocells, boolean excludeGeoCells) {
+    return coverRectangle(swlat, swlon, nelat, nelon, resolution, new Coverage(), geocells, excludeGeoCells);
+  }
+  
+  public static final <T extends CellSink> T coverRectangle(final double swlat, final double swlon, final double nelat, final double nelon, int resolution, T sink, long[] geocells, boolean excludeGeoCells) {
     
-    List<Long> lat = new ArrayList<Long>();
-    List<Long> lon = new ArrayList<Long>();
-        
-    lat.add(toLongLat(swlat));
-    lat.add(toLongLat(swlat));
-    lat.add(toLongLat(nelat));
-    lat.add(toLongLat(nelat));
-    
-    lon.add(toLongLon(swlon));
-    lon.add(toLongLon(nelon));
-    lon.add(toLongLon(nelon));
-    lon.add(toLongLon(swlon));
+    long[] lat = new long[] { toLongLat(swlat), toLongLat(swlat), toLongLat(nelat), toLongLat(nelat) };
+    long[] lon = new long[] { toLongLon(swlon), toLongLon(nelon), toLongLon(nelon), toLongLon(swlon) };
             
-    return coverPolygon(lat, lon, resolution, geocells, excludeGeoCells);
+    return coverPolygon(lat, lon, 0, 4, resolution, sink, geocells, excludeGeoCells);
     
     /*
     //
@@ -2013,8 +2153,31 @@ public final class HHCodeHelper {
    * @return The list of resampled nodes. Each resampled node is placed in the center of its containing cell.
    */
   public static final List<Long> resamplePolyline(List<Long> nodes, int resolution) {
+    long[] resampled = resamplePolyline(toArray(nodes, nodes.size()), 0, nodes.size(), resolution);
     
-    List<Long> resampled = new ArrayList<Long>();
+    List<Long> result = new ArrayList<Long>(resampled.length);
+    
+    for (long node: resampled) {
+      result.add(node);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Resample the polyline made of nodes 'offset' to 'offset + length - 1', merging adjacent
+   * nodes that map to the same cell at the given resolution.
+   * 
+   * @param nodes Nodes (HHCodes) to resample
+   * @param offset Index of the first node
+   * @param length Number of nodes
+   * @param resolution Resolution to resample at
+   * @return The array of resampled nodes. Each resampled node is placed in the center of its containing cell.
+   */
+  public static final long[] resamplePolyline(long[] nodes, int offset, int length, int resolution) {
+    
+    long[] resampled = new long[length];
+    int n = 0;
     
     long resolutionmask = (0xffffffffffffffffL ^ ((1L << (2 * (32 - resolution)) - 1)));
     
@@ -2024,16 +2187,17 @@ public final class HHCodeHelper {
     
     boolean first = true;
     
-    for (long node: nodes) {
+    for (int i = offset; i < offset + length; i++) {
+      long node = nodes[i];
       if (!first && (node & resolutionmask) == lastnode) {
         continue;
       }
       first = false;
-      resampled.add((node & resolutionmask) | centermask);
+      resampled[n++] = (node & resolutionmask) | centermask;
       lastnode = node & resolutionmask;
     }
     
-    return resampled;
+    return n == length ? resampled : Arrays.copyOf(resampled, n);
   }
   
   public static final String toIndexableString(long hhcode) {
@@ -2325,7 +2489,7 @@ public final class HHCodeHelper {
     return coverSegment(fromLat, fromLon, toLat, toLon, distance, resolution, null, false);
   }
   
-  public static Coverage coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, Coverage coverage, long[] geocells, boolean excludeGeoCells) {
+  public static <T extends CellSink> T coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, T coverage, long[] geocells, boolean excludeGeoCells) {
     //
     // Split 'to' and 'from'
     //
@@ -2366,8 +2530,8 @@ public final class HHCodeHelper {
     double ftlen = Math.sqrt(Math.pow(ftvector[0] / latUnitsPerMeter, 2.0) + Math.pow(ftvector[1] / scales[1], 2.0));
     double oftlen = Math.sqrt(Math.pow(oftvector[0] / latUnitsPerMeter, 2.0) + Math.pow(oftvector[1] / scales[1], 2.0));
 
-    List<Long> verticesLat = new ArrayList<Long>(4);
-    List<Long> verticesLon = new ArrayList<Long>(4);
+    long[] verticesLat = new long[4];
+    long[] verticesLon = new long[4];
     
     //
     // Build the polygon ABCD
@@ -2399,24 +2563,523 @@ public final class HHCodeHelper {
     D[0] = C[0] - (long) (ftvector[0] * ((ftlen + 2.0 * distance) / ftlen));
     D[1] = C[1] - (long) (ftvector[1] * ((ftlen + 2.0 * distance) / ftlen));
     
-    verticesLat.add(A[0]);
-    verticesLon.add(A[1]);
+    verticesLat[0] = A[0];
+    verticesLon[0] = A[1];
 
-    verticesLat.add(B[0]);
-    verticesLon.add(B[1]);
+    verticesLat[1] = B[0];
+    verticesLon[1] = B[1];
 
-    verticesLat.add(C[0]);
-    verticesLon.add(C[1]);
+    verticesLat[2] = C[0];
+    verticesLon[2] = C[1];
 
-    verticesLat.add(D[0]);
-    verticesLon.add(D[1]);
+    verticesLat[3] = D[0];
+    verticesLon[3] = D[1];
     
-    return coverPolygon(verticesLat, verticesLon, resolution, coverage, geocells, excludeGeoCells);
+    return coverPolygon(verticesLat, verticesLon, 0, 4, resolution, coverage, geocells, excludeGeoCells);
   }
 
-  public static Coverage coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, Coverage coverage) {
+  public static <T extends CellSink> T coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, T coverage) {
     return coverSegment(fromLat, fromLon, toLat, toLon, distance, resolution, coverage, null, false);
   }
+  
+  //
+  // Coverage variants of the CellSink methods, kept for binary compatibility
+  //
+  
+  public static Coverage coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, Coverage coverage, long[] geocells, boolean excludeGeoCells) {
+    coverSegment(fromLat, fromLon, toLat, toLon, distance, resolution, (CellSink) coverage, geocells, excludeGeoCells);
+    return coverage;
+  }
+  
+  public static Coverage coverSegment(long fromLat, long fromLon, long toLat, long toLon, double distance, int resolution, Coverage coverage) {
+    coverSegment(fromLat, fromLon, toLat, toLon, distance, resolution, (CellSink) coverage, null, false);
+    return coverage;
+  }
+
+  /**
+   * Return a Coverage covering all points within 'distance' meters of a polyline (a corridor).
+   * 
+   * Unlike calling coverSegment for each segment, the buffered polyline is rasterized in a single
+   * sweep over the rows of cells, each cell being added once. Each segment is buffered as a capsule
+   * (a rectangle with half disks at both ends), so joins and ends are round.
+   * 
+   * @param lats Latitudes of the vertices
+   * @param lons Longitudes of the vertices
+   * @param distances Buffer distance in meters of each segment (lats.length - 1 values), segments with a distance <= 0 are ignored
+   * @param resolution The resolution at which to do the covering. If the resolution is <= 0, the resolution of each segment
+   *                   is computed from its buffered bbox as in coverPolygon
+   * @param coverage Emit the covered cells to this sink
+   * @return 'coverage'
+   */
+  public static final <T extends CellSink> T coverCorridor(long[] lats, long[] lons, double[] distances, int resolution, T coverage) {
+    int nsegments = Math.min(Math.min(lats.length, lons.length) - 1, distances.length);
+    
+    if (nsegments <= 0) {
+      return coverage;
+    }
+    
+    if (resolution > 0) {
+      coverCorridor(lats, lons, distances, nsegments, null, resolution, coverage);
+      return coverage;
+    }
+    
+    //
+    // Determine the resolution of each segment, then rasterize the segments of each resolution
+    //
+    
+    int[] resolutions = new int[nsegments];
+    boolean[] used = new boolean[MAX_RESOLUTION + 1];
+    
+    long[] bbox = new long[4];
+    
+    for (int i = 0; i < nsegments; i++) {
+      long dlat = (long) (Math.max(distances[i], 0.0D) * latUnitsPerMeter);
+      long dlon = (long) (Math.max(distances[i], 0.0D) * lonUnitsPerMeter / Math.cos(Math.toRadians(toLat((lats[i] + lats[i + 1]) / 2))));
+      bbox[0] = Math.min(lats[i], lats[i + 1]) - dlat;
+      bbox[1] = Math.min(lons[i], lons[i + 1]) - dlon;
+      bbox[2] = Math.max(lats[i], lats[i + 1]) + dlat;
+      bbox[3] = Math.max(lons[i], lons[i + 1]) + dlon;
+      resolutions[i] = getOptimalPolygonResolution(bbox, resolution);
+      used[resolutions[i]] = true;
+    }
+    
+    for (int res = 2; res <= MAX_RESOLUTION; res += 2) {
+      if (used[res]) {
+        coverCorridor(lats, lons, distances, nsegments, resolutions, res, coverage);
+      }
+    }
+    
+    return coverage;
+  }
+  
+  public static final <T extends CellSink> T coverCorridor(long[] lats, long[] lons, double distance, int resolution, T coverage) {
+    double[] distances = new double[Math.max(0, Math.min(lats.length, lons.length) - 1)];
+    Arrays.fill(distances, distance);
+    return coverCorridor(lats, lons, distances, resolution, coverage);
+  }
+  
+  /**
+   * Rasterize the segments of a corridor whose resolution (if 'resolutions' is not null) is 'resolution'.
+   */
+  private static final void coverCorridor(long[] lats, long[] lons, double[] distances, int nsegments, int[] resolutions, int resolution, CellSink coverage) {
+    int shift = MAX_RESOLUTION - resolution;
+    long cellsize = 1L << shift;
+    long maxcol = (1L << resolution) - 1;
+    long world = 1L << MAX_RESOLUTION;
+    
+    //
+    // Compute the rows spanned by each segment. Segments are sorted by their first row
+    // (encoded in the upper 31 bits of 'order') so they can be activated as we sweep the rows.
+    //
+    
+    long[] firstRow = new long[nsegments];
+    long[] lastRow = new long[nsegments];
+    double[] lonScales = new double[nsegments];
+    
+    long[] order = new long[nsegments];
+    int n = 0;
+    
+    for (int i = 0; i < nsegments; i++) {
+      if (distances[i] <= 0.0D || (null != resolutions && resolution != resolutions[i])) {
+        continue;
+      }
+      
+      lonScales[i] = lonUnitsPerMeter / Math.cos(Math.toRadians(toLat((lats[i] + lats[i + 1]) / 2)));
+      
+      long dlat = (long) Math.ceil(distances[i] * latUnitsPerMeter);
+      
+      long bottom = Math.max(0L, Math.min(lats[i], lats[i + 1]) - dlat);
+      long top = Math.min((1L << MAX_RESOLUTION) - 1, Math.max(lats[i], lats[i + 1]) + dlat);
+      
+      firstRow[i] = bottom >> shift;
+      lastRow[i] = top >> shift;
+      
+      order[n++] = (firstRow[i] << 31) | i;
+    }
+    
+    Arrays.sort(order, 0, n);
+    
+    //
+    // Sweep the rows, maintaining the list of active segments
+    //
+    
+    int[] active = new int[n];
+    int nactive = 0;
+    
+    // A segment covers at most two ranges of columns per row, on both sides of the antimeridian
+    long[] starts = new long[2 * n];
+    long[] ends = new long[2 * n];
+    long[] intervals = new long[2 * n];
+    double[] bounds = new double[2];
+    
+    int next = 0;
+    
+    long row = n > 0 ? order[0] >>> 31 : 0L;
+    
+    while (next < n || nactive > 0) {
+      // Jump to the next row with segments if none is active
+      if (0 == nactive) {
+        row = order[next] >>> 31;
+      }
+      
+      // Activate the segments starting at 'row'
+      while (next < n && (order[next] >>> 31) == row) {
+        active[nactive++] = (int) (order[next] & 0x7fffffffL);
+        next++;
+      }
+      
+      long rowLat = row << shift;
+      
+      //
+      // Compute the range of columns covered by each active segment on this row
+      //
+      
+      int nintervals = 0;
+      long minStart = Long.MAX_VALUE;
+      
+      for (int k = 0; k < nactive; k++) {
+        int i = active[k];
+        
+        if (!corridorBounds(lats[i], lons[i], lats[i + 1], lons[i + 1], distances[i], lonScales[i], rowLat, rowLat + cellsize - 1, bounds)) {
+          continue;
+        }
+        
+        long start = 0L;
+        long end = maxcol;
+        
+        // Ranges wider than the world cover the whole row
+        if (bounds[1] - bounds[0] < world) {
+          start = (long) Math.floor(bounds[0]) >> shift;
+          end = (long) Math.floor(bounds[1]) >> shift;
+        }
+        
+        if (start > end) {
+          continue;
+        }
+        
+        if (end - start >= maxcol) {
+          start = 0L;
+          end = maxcol;
+        }
+        
+        //
+        // The capsule may extend past the antimeridian, wrap the columns and split
+        // the range where it crosses it
+        //
+        
+        long length = end - start;
+        start = start & maxcol;
+        end = start + length;
+        
+        if (end > maxcol) {
+          starts[nintervals] = 0L;
+          ends[nintervals] = end - maxcol - 1;
+          minStart = 0L;
+          nintervals++;
+          end = maxcol;
+        }
+        
+        starts[nintervals] = start;
+        ends[nintervals] = end;
+        minStart = Math.min(minStart, start);
+        nintervals++;
+      }
+      
+      //
+      // Sort the ranges by their first column, packing them as <START - minStart><LENGTH>.
+      // Both fit in 32 bits, the sign bit is flipped so the packed values sort as unsigned.
+      //
+      
+      for (int k = 0; k < nintervals; k++) {
+        intervals[k] = (((starts[k] - minStart) << 32) | (ends[k] - starts[k])) ^ Long.MIN_VALUE;
+      }
+      
+      Arrays.sort(intervals, 0, nintervals);
+      
+      //
+      // Merge overlapping or adjacent ranges and add their cells
+      //
+      
+      long from = 0L;
+      long to = 0L;
+      
+      for (int k = 0; k < nintervals; k++) {
+        long start = minStart + ((intervals[k] ^ Long.MIN_VALUE) >>> 32);
+        long end = start + (intervals[k] & 0xffffffffL);
+        
+        if (k > 0 && start <= to + 1) {
+          to = Math.max(to, end);
+          continue;
+        }
+        
+        if (k > 0) {
+          addCells(coverage, resolution, rowLat, from << shift, to << shift, null, false);
+        }
+        
+        from = start;
+        to = end;
+      }
+      
+      if (nintervals > 0) {
+        addCells(coverage, resolution, rowLat, from << shift, to << shift, null, false);
+      }
+      
+      // Deactivate the segments ending at 'row'
+      int kept = 0;
+      for (int k = 0; k < nactive; k++) {
+        if (lastRow[active[k]] > row) {
+          active[kept++] = active[k];
+        }
+      }
+      nactive = kept;
+      
+      row++;
+    }
+  }
+  
+  /**
+   * Compute the range of longitudes of the capsule of radius 'distance' around segment
+   * (fromLat,fromLon)-(toLat,toLon) between latitudes 'bottom' and 'top'.
+   * 
+   * Geometry is done in meters in a local cartesian frame centered on 'from'.
+   * 
+   * @return false if the capsule does not intersect the band
+   */
+  private static final boolean corridorBounds(long fromLat, long fromLon, long toLat, long toLon, double distance, double lonScale, long bottom, long top, double[] bounds) {
+    double bx = (toLon - fromLon) / lonScale;
+    double by = (toLat - fromLat) / latUnitsPerMeter;
+    
+    double y0 = Math.max((bottom - fromLat) / latUnitsPerMeter, Math.min(0.0D, by) - distance);
+    double y1 = Math.min((top - fromLat) / latUnitsPerMeter, Math.max(0.0D, by) + distance);
+    
+    if (y0 > y1) {
+      return false;
+    }
+    
+    //
+    // The horizontal cross section of the capsule is an interval whose right end is a concave
+    // function of y, maximal at the y of the rightmost end of the segment. The left end is
+    // convex and minimal at the y of the leftmost end.
+    //
+    
+    double yright = bx >= 0.0D ? by : 0.0D;
+    double yleft = bx >= 0.0D ? 0.0D : by;
+    
+    double right = capsuleSection(bx, by, distance, Math.min(Math.max(yright, y0), y1), true);
+    double left = capsuleSection(bx, by, distance, Math.min(Math.max(yleft, y0), y1), false);
+    
+    // Rounding errors at the very top or bottom of the capsule
+    if (Double.isInfinite(left) || Double.isInfinite(right)) {
+      return false;
+    }
+    
+    bounds[0] = fromLon + left * lonScale;
+    bounds[1] = fromLon + right * lonScale;
+    
+    return true;
+  }
+  
+  /**
+   * Return the right (or left) end of the horizontal cross section at 'y' of the capsule of
+   * radius 'd' around segment (0,0)-(bx,by).
+   */
+  private static final double capsuleSection(double bx, double by, double d, double y, boolean right) {
+    double x = right ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    
+    //
+    // Disks around both ends
+    //
+    
+    if (Math.abs(y) <= d) {
+      double w = Math.sqrt(d * d - y * y);
+      x = right ? Math.max(x, w) : Math.min(x, -w);
+    }
+    
+    if (Math.abs(y - by) <= d) {
+      double w = Math.sqrt(d * d - (y - by) * (y - by));
+      x = right ? Math.max(x, bx + w) : Math.min(x, bx - w);
+    }
+    
+    //
+    // Rectangle around the segment: the projection on the segment is within [0,len]
+    // and the distance to the segment's line is at most d.
+    //
+    
+    double len = Math.sqrt(bx * bx + by * by);
+    
+    if (len > 0.0D) {
+      double ux = bx / len;
+      double uy = by / len;
+      
+      // Constraint ux * x + uy * y in [0,len]
+      double lo = Double.NEGATIVE_INFINITY;
+      double hi = Double.POSITIVE_INFINITY;
+      
+      if (0.0D != ux) {
+        double a = -uy * y / ux;
+        double b = (len - uy * y) / ux;
+        lo = Math.min(a, b);
+        hi = Math.max(a, b);
+      } else if (uy * y < 0.0D || uy * y > len) {
+        return x;
+      }
+      
+      // Constraint -uy * x + ux * y in [-d,d]
+      if (0.0D != uy) {
+        double a = (ux * y - d) / uy;
+        double b = (ux * y + d) / uy;
+        lo = Math.max(lo, Math.min(a, b));
+        hi = Math.min(hi, Math.max(a, b));
+      } else if (Math.abs(ux * y) > d) {
+        return x;
+      }
+      
+      if (lo <= hi) {
+        x = right ? Math.max(x, hi) : Math.min(x, lo);
+      }
+    }
+    
+    return x;
+  }
+  
+  /**
+   * Return a Coverage covering a circle (spherical cap) of 'radius' meters around a center.
+   * 
+   * No polygon approximation is involved, for each row of cells the longitude extent of the
+   * circle is computed from the great circle distance to the center, so every cell intersecting
+   * the circle is covered, whatever its size or latitude (circles containing a pole or crossing the
+   * IDL are supported). Rows are emitted as runs of cells.
+   * 
+   * @param lat HH latitude of the center
+   * @param lon HH longitude of the center
+   * @param radius Radius of the circle in meters
+   * @param resolution The resolution at which to do the covering. If the resolution is <= 0, it is
+   *                   computed from the bbox of the circle as in coverPolygon
+   * @param coverage Emit the covered cells to this sink
+   * @return 'coverage'
+   */
+  public static final <T extends CellSink> T coverCircle(long lat, long lon, double radius, int resolution, T coverage) {
+    if (radius < 0.0D || Double.isNaN(radius)) {
+      return coverage;
+    }
+    
+    //
+    // Angular radius of the circle and latitude of its center, in radians
+    //
+    
+    double delta = Math.min(Math.PI, Math.toRadians(radius / (1852.0D * 60.0D)));
+    double phi0 = lat * RADIANS_PER_LAT_UNIT - Math.PI / 2.0D;
+    
+    double sin0 = Math.sin(phi0);
+    double cos0 = Math.cos(phi0);
+    double cosd = Math.cos(delta);
+    double havd = Math.pow(Math.sin(delta / 2.0D), 2.0D);
+    
+    double south = Math.max(-Math.PI / 2.0D, phi0 - delta);
+    double north = Math.min(Math.PI / 2.0D, phi0 + delta);
+    
+    if (resolution <= 0) {
+      //
+      // Half width of the circle at its widest latitude
+      //
+      
+      double halfwidth = Math.PI;
+      
+      if (Math.abs(sin0) < cosd) {
+        halfwidth = Math.asin(Math.min(1.0D, Math.sin(delta) / cos0));
+      }
+      
+      long[] bbox = new long[4];
+      bbox[0] = (long) ((south + Math.PI / 2.0D) / RADIANS_PER_LAT_UNIT);
+      bbox[1] = lon - (long) (halfwidth / RADIANS_PER_LON_UNIT);
+      bbox[2] = (long) ((north + Math.PI / 2.0D) / RADIANS_PER_LAT_UNIT);
+      bbox[3] = lon + (long) (halfwidth / RADIANS_PER_LON_UNIT);
+      
+      resolution = getOptimalPolygonResolution(bbox, resolution);
+    }
+    
+    // Do nothing if resolution out of range
+    if (0 != (((resolution >> 1) - 1) & 0xfffffff0)) {
+      return coverage;
+    }
+    
+    int shift = MAX_RESOLUTION - resolution;
+    long cellsize = 1L << shift;
+    long world = 1L << MAX_RESOLUTION;
+    
+    //
+    // Latitude at which the circle is the widest, if it does not contain a pole
+    //
+    
+    double widest = Double.NaN;
+    
+    if (Math.abs(sin0) < cosd) {
+      widest = Math.asin(sin0 / cosd);
+    }
+    
+    long bottom = Math.max(0L, (long) Math.floor((south + Math.PI / 2.0D) / RADIANS_PER_LAT_UNIT));
+    long top = Math.min(world - 1, (long) Math.floor((north + Math.PI / 2.0D) / RADIANS_PER_LAT_UNIT));
+    
+    //
+    // Half width of the circle at the bottom of the current row, the top of a row
+    // being the bottom of the next one
+    //
+    
+    double lowwidth = circleHalfWidth(phi0, cos0, havd, south);
+    
+    for (long row = bottom >> shift; row <= top >> shift; row++) {
+      long rowLat = row << shift;
+      
+      //
+      // Latitude band of the row clamped to that of the circle
+      //
+      
+      double a = Math.max(south, rowLat * RADIANS_PER_LAT_UNIT - Math.PI / 2.0D);
+      double b = Math.min(north, (rowLat + cellsize) * RADIANS_PER_LAT_UNIT - Math.PI / 2.0D);
+      
+      //
+      // The half width of the circle increases up to 'widest' then decreases, so its maximum
+      // over the band is reached at one of its ends or at 'widest'
+      //
+      
+      double highwidth = circleHalfWidth(phi0, cos0, havd, b);
+      double halfwidth = Math.max(lowwidth, highwidth);
+      lowwidth = highwidth;
+      
+      if (widest > a && widest < b) {
+        halfwidth = Math.max(halfwidth, circleHalfWidth(phi0, cos0, havd, widest));
+      }
+      
+      double dlon = halfwidth / RADIANS_PER_LON_UNIT;
+      
+      if (dlon + dlon >= world - cellsize) {
+        addCells(coverage, resolution, rowLat, 0L, world - 1, null, false);
+      } else {
+        addCells(coverage, resolution, rowLat, (long) Math.floor(lon - dlon), (long) Math.floor(lon + dlon), null, false);
+      }
+    }
+    
+    return coverage;
+  }
+  
+  /**
+   * Return the half width (in radians of longitude) at latitude 'phi' of the circle of angular
+   * radius delta around a center at latitude phi0, or PI if the whole parallel is in the circle.
+   * 
+   * The haversine formula is used as it is accurate for small circles.
+   */
+  private static final double circleHalfWidth(double phi0, double cos0, double havd, double phi) {
+    double num = havd - Math.pow(Math.sin((phi - phi0) / 2.0D), 2.0D);
+    double den = Math.cos(phi) * cos0;
+    
+    if (num >= den) {
+      return Math.PI;
+    } else if (num <= 0.0D) {
+      return 0.0D;
+    }
+    
+    return 2.0D * Math.asin(Math.sqrt(num / den));
+  }
 
   /**
    * Compute loxodromic (rhumb line) distance in meters between two locations.
@@ -2642,25 +3305,35 @@ public final class HHCodeHelper {
    * @return
    */
   public static List<Long> orthodromize(long fromLat, long fromLon, long toLat, long toLon, double delta) {
+    TLongArrayList coords = orthodromize(fromLat, fromLon, toLat, toLon, delta, new TLongArrayList());
+    
+    List<Long> result = new ArrayList<Long>(coords.size());
+    
+    for (int i = 0; i < coords.size(); i++) {
+      result.add(coords.get(i));
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Orthodromize a segment, appending the lat/lon of the nodes of the orthodromized segment to 'result'.
+   * 
+   * @return result
+   */
+  public static TLongArrayList orthodromize(long fromLat, long fromLon, long toLat, long toLon, double delta, TLongArrayList result) {
     
     //
-    // Create a list that will hold the orthodromized segment
+    // Append the segment to the list that will hold the orthodromized segment
     //
     
-    List<Long> result = new ArrayList<Long>();
-
+    int base = result.size();
+    
     result.add(fromLat);
     result.add(fromLon);
     result.add(toLat);
     result.add(toLon);
 
-    long[] coords = new long[4];
-    
-    coords[0] = fromLat;
-    coords[1] = fromLon;
-    coords[2] = toLat;
-    coords[3] = toLon;
-    
     //
     // Don't orthodromize if any lat is not in [-90,90]
     //
@@ -2670,7 +3343,7 @@ public final class HHCodeHelper {
       return result; 
     }
     
-    int i = 0;
+    int i = base;
     
     //
     // Iterate over the result list.
@@ -2698,8 +3371,7 @@ public final class HHCodeHelper {
         // Add intermediate point
         //
         
-        result.add(i + 2, interLon);
-        result.add(i + 2, interLat);
+        result.insert(i + 2, new long[] { interLat, interLon });
         
         //
         // Continue iteration without shifting current point
@@ -2759,8 +3431,7 @@ public final class HHCodeHelper {
       
       long[] midpoint = gcIntermediate(result.get(i), result.get(i + 1), result.get(i + 2), result.get(i + 3), 0.5D);
 
-      result.add(i + 2, midpoint[1]);
-      result.add(i + 2, midpoint[0]);
+      result.insert(i + 2, midpoint);
 
       //System.out.println(i + ":" + result.size() + " ::= " + result.get(i) + "," + result.get(i + 1) + " >>> " + result.get(i + 2) + "," + result.get(i + 3) + " >>> " + result.get(i + 4) + "," + result.get(i + 5));
       
@@ -2934,4 +3605,114 @@ public final class HHCodeHelper {
 
     return sb.toString();
   }
+  
+  /**
+   * Return the ranges of keys (HHCodes at resolution 32) covered by a set of cells, for stores
+   * which support range scans over keys ordered as unsigned HHCodes (i.e. as toByteArray).
+   * 
+   * Ranges of nested, overlapping or adjacent cells are merged. If there are still more than
+   * 'maxRanges' ranges, those separated by the smallest gaps are merged, the keys of those gaps
+   * become false positives. This minimizes the number of extra keys scanned for 'maxRanges' seeks.
+   * 
+   * @param cells Geo cells to cover (as returned by Coverage.toGeoCells), the array is not modified
+   * @param maxRanges Maximum number of ranges to return, use Integer.MAX_VALUE for exact ranges
+   * @return An array of 2*n longs, the start key (inclusive) and end key (exclusive) of each of the
+   *         n ranges, in increasing unsigned order. An end key of 0 stands for the end of the key space.
+   */
+  public static long[] geocellsToRanges(long[] cells, int maxRanges) {
+    //
+    // Sort the start keys of the cells, with their sign bit flipped so signed order is unsigned order.
+    // Start keys of cells have their 4 LSBs set to 0, use them to store the resolution index.
+    //
+    
+    long[] keys = new long[cells.length];
+    int n = 0;
+    
+    for (long cell: cells) {
+      int r = (int) (cell >>> 60);
+      
+      if (0 == r) {
+        continue;
+      }
+      
+      keys[n++] = ((cell << 4) ^ Long.MIN_VALUE) | r;
+    }
+    
+    Arrays.sort(keys, 0, n);
+    
+    //
+    // Merge nested, overlapping and adjacent ranges. Range ends are kept inclusive (last key) so
+    // they do not overflow.
+    //
+    
+    long[] starts = new long[n];
+    long[] lasts = new long[n];
+    int count = 0;
+    
+    for (int i = 0; i < n; i++) {
+      long start = keys[i] & 0xfffffffffffffff0L;
+      long last = start + ((1L << (64 - 4 * (keys[i] & 0xfL))) - 1);
+      
+      if (count > 0 && (start <= lasts[count - 1] || start - 1 == lasts[count - 1])) {
+        lasts[count - 1] = Math.max(lasts[count - 1], last);
+      } else {
+        starts[count] = start;
+        lasts[count] = last;
+        count++;
+      }
+    }
+    
+    //
+    // Merge the ranges separated by the smallest gaps until we are within budget
+    //
+    
+    maxRanges = Math.max(1, maxRanges);
+    
+    if (count > maxRanges) {
+      int merges = count - maxRanges;
+      
+      // Gaps, with their sign bit flipped
+      long[] gaps = new long[count - 1];
+      
+      for (int i = 0; i < count - 1; i++) {
+        gaps[i] = (starts[i + 1] - lasts[i] - 1) ^ Long.MIN_VALUE;
+      }
+      
+      long[] sorted = Arrays.copyOf(gaps, gaps.length);
+      Arrays.sort(sorted);
+      
+      long threshold = sorted[merges - 1];
+      
+      // Number of gaps equal to the threshold to merge
+      int ties = merges;
+      for (int i = 0; i < merges; i++) {
+        if (sorted[i] < threshold) {
+          ties--;
+        }
+      }
+      
+      int k = 0;
+      
+      for (int i = 0; i < count; i++) {
+        if (i > 0 && (gaps[i - 1] < threshold || (gaps[i - 1] == threshold && ties-- > 0))) {
+          lasts[k - 1] = lasts[i];
+        } else {
+          starts[k] = starts[i];
+          lasts[k] = lasts[i];
+          k++;
+        }
+      }
+      
+      count = k;
+    }
+    
+    long[] ranges = new long[count * 2];
+    
+    for (int i = 0; i < count; i++) {
+      ranges[2 * i] = starts[i] ^ Long.MIN_VALUE;
+      ranges[2 * i + 1] = (lasts[i] ^ Long.MIN_VALUE) + 1;
+    }
+    
+    return ranges;
+  }
 }
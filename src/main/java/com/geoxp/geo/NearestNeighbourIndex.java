@@ -0,0 +1,338 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * k nearest neighbour search over a sorted array of HHCodes (GeoXPPoints).
+ * 
+ * The points of a cell at any resolution form a contiguous range of the sorted array, so
+ * the index needs no other structure. A search is a best-first traversal of the cells,
+ * starting at R=2 and splitting cells in 16 sub cells until they contain at most LEAF_SIZE
+ * points. Cells are visited by increasing lower bound of their distance to the query point
+ * and the search stops when this lower bound exceeds the distance of the k-th nearest point
+ * found so far.
+ * 
+ * Distances are those of HHCodeHelper.getSquaredDistance with the scale (HHCodeHelper.getScale)
+ * at the query point, i.e. a local equirectangular approximation, longitudes wrap around the IDL.
+ * 
+ * Instances are immutable and thread safe.
+ */
+public class NearestNeighbourIndex {
+  
+  /**
+   * Cells with at most that many points are scanned instead of being split
+   */
+  public static final int LEAF_SIZE = 32;
+  
+  private static final long WORLD = 1L << HHCodeHelper.MAX_RESOLUTION;
+  
+  private final long[] hhcodes;
+  
+  /**
+   * Cell to visit, ordered by the lower bound of its distance to the query point.
+   */
+  private static final class Cell implements Comparable<Cell> {
+    private final long prefix;
+    private final int resolution;
+    private final int from;
+    private final int to;
+    private final double distance;
+    
+    private Cell(long prefix, int resolution, int from, int to, double distance) {
+      this.prefix = prefix;
+      this.resolution = resolution;
+      this.from = from;
+      this.to = to;
+      this.distance = distance;
+    }
+    
+    @Override
+    public int compareTo(Cell o) {
+      return Double.compare(distance, o.distance);
+    }
+  }
+  
+  /**
+   * Create an index on 'hhcodes'. The array is not copied, it is sorted in place if it is not sorted.
+   * 
+   * @param hhcodes HHCodes of the points at resolution 32
+   */
+  public NearestNeighbourIndex(long[] hhcodes) {
+    for (int i = 1; i < hhcodes.length; i++) {
+      if (hhcodes[i - 1] > hhcodes[i]) {
+        Arrays.sort(hhcodes);
+        break;
+      }
+    }
+    
+    this.hhcodes = hhcodes;
+  }
+  
+  public int size() {
+    return hhcodes.length;
+  }
+  
+  /**
+   * Return the 'k' points nearest to 'hhcode', by increasing distance.
+   */
+  public long[] nearest(long hhcode, int k) {
+    return nearest(hhcode, k, Double.POSITIVE_INFINITY);
+  }
+  
+  /**
+   * Return the 'k' points nearest to 'hhcode' which are at most 'maxDistance' meters away, by increasing distance.
+   * 
+   * @param hhcode Query point
+   * @param k Maximum number of points to return
+   * @param maxDistance Maximum distance in meters
+   * @return The found points (at most k)
+   */
+  public long[] nearest(long hhcode, int k, double maxDistance) {
+    if (k <= 0 || 0 == hhcodes.length) {
+      return new long[0];
+    }
+    
+    long[] query = HHCodeHelper.splitHHCode(hhcode, HHCodeHelper.MAX_RESOLUTION);
+    long[] scales = HHCodeHelper.getScale(hhcode);
+    
+    double maxSquared = maxDistance * maxDistance;
+    
+    //
+    // Max heap of the k best candidates found so far
+    //
+    
+    double[] bestDistances = new double[k];
+    long[] bestPoints = new long[k];
+    int nbest = 0;
+    
+    long[] coords = new long[2];
+    
+    PriorityQueue<Cell> queue = new PriorityQueue<Cell>();
+    
+    enqueueSubCells(queue, 0L, 0, 0, hhcodes.length, query, scales, coords, maxSquared);
+    
+    while (!queue.isEmpty()) {
+      Cell cell = queue.poll();
+      
+      // Remaining cells are further away than the k-th nearest point
+      if (nbest == k && cell.distance >= bestDistances[0]) {
+        break;
+      }
+      
+      if (cell.to - cell.from > LEAF_SIZE && cell.resolution < HHCodeHelper.MAX_RESOLUTION) {
+        enqueueSubCells(queue, cell.prefix, cell.resolution, cell.from, cell.to, query, scales, coords, maxSquared);
+        continue;
+      }
+      
+      for (int i = cell.from; i < cell.to; i++) {
+        double d = squaredDistance(hhcodes[i], query, scales, coords);
+        
+        if (d > maxSquared) {
+          continue;
+        }
+        
+        if (nbest < k) {
+          bestDistances[nbest] = d;
+          bestPoints[nbest] = hhcodes[i];
+          siftUp(bestDistances, bestPoints, nbest++);
+        } else if (d < bestDistances[0]) {
+          bestDistances[0] = d;
+          bestPoints[0] = hhcodes[i];
+          siftDown(bestDistances, bestPoints, nbest);
+        }
+      }
+    }
+    
+    //
+    // Extract the points from the heap, furthest first
+    //
+    
+    long[] result = new long[nbest];
+    
+    while (nbest > 0) {
+      result[nbest - 1] = bestPoints[0];
+      nbest--;
+      bestDistances[0] = bestDistances[nbest];
+      bestPoints[0] = bestPoints[nbest];
+      siftDown(bestDistances, bestPoints, nbest);
+    }
+    
+    return result;
+  }
+  
+  public long[] nearest(double lat, double lon, int k) {
+    return nearest(HHCodeHelper.getHHCodeValue(lat, lon), k);
+  }
+  
+  /**
+   * Enqueue the non empty sub cells (at resolution + 2) of the cell 'prefix' whose points are in [from,to[.
+   */
+  private void enqueueSubCells(PriorityQueue<Cell> queue, long prefix, int resolution, int from, int to, long[] query, long[] scales, long[] coords, double maxSquared) {
+    int subres = resolution + 2;
+    int shift = 64 - 2 * subres;
+    long cellsize = 1L << (HHCodeHelper.MAX_RESOLUTION - subres);
+    
+    for (long i = 0; i < 16; i++) {
+      long subprefix = prefix | (i << shift);
+      
+      // Last HHCode of the sub cell, of the same sign as its prefix
+      long last = subprefix | ((1L << shift) - 1);
+      
+      //
+      // At R=2 sub cells are not in the order of the array as the HHCodes are signed
+      //
+      
+      int subfrom = lowerBound(from, to, subprefix);
+      int subto = upperBound(subfrom, to, last);
+      
+      if (subfrom == subto) {
+        continue;
+      }
+      
+      //
+      // Lower bound of the distance, to the point of the cell nearest to the query point
+      //
+      
+      long[] sw = HHCodeHelper.splitHHCode(subprefix, HHCodeHelper.MAX_RESOLUTION);
+      
+      coords[0] = Math.max(sw[0], Math.min(sw[0] + cellsize - 1, query[0]));
+      
+      if (query[1] >= sw[1] && query[1] <= sw[1] + cellsize - 1) {
+        coords[1] = query[1];
+      } else {
+        long east = (((sw[1] - query[1]) % WORLD) + WORLD) % WORLD;
+        long west = (((query[1] - (sw[1] + cellsize - 1)) % WORLD) + WORLD) % WORLD;
+        coords[1] = east < west ? query[1] + east : query[1] - west;
+      }
+      
+      double d = HHCodeHelper.getSquaredDistance(query, coords, scales);
+      
+      if (d <= maxSquared) {
+        queue.add(new Cell(subprefix, subres, subfrom, subto, d));
+      }
+    }
+  }
+  
+  /**
+   * Return the index of the first HHCode greater than or equal to 'value' in [from,to[
+   */
+  private int lowerBound(int from, int to, long value) {
+    int lo = from;
+    int hi = to;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (hhcodes[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  /**
+   * Return the index of the first HHCode greater than 'value' in [from,to[
+   */
+  private int upperBound(int from, int to, long value) {
+    int lo = from;
+    int hi = to;
+    
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (hhcodes[mid] <= value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    
+    return lo;
+  }
+  
+  /**
+   * Squared distance from 'query' to 'hhcode', taking the shortest way in longitude.
+   */
+  private static double squaredDistance(long hhcode, long[] query, long[] scales, long[] coords) {
+    long[] point = HHCodeHelper.splitHHCode(hhcode, HHCodeHelper.MAX_RESOLUTION);
+    
+    long dlon = point[1] - query[1];
+    
+    if (dlon > WORLD / 2) {
+      dlon -= WORLD;
+    } else if (dlon < -WORLD / 2) {
+      dlon += WORLD;
+    }
+    
+    coords[0] = point[0];
+    coords[1] = query[1] + dlon;
+    
+    return HHCodeHelper.getSquaredDistance(query, coords, scales);
+  }
+  
+  private static void siftUp(double[] distances, long[] points, int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (distances[parent] >= distances[i]) {
+        break;
+      }
+      swap(distances, points, i, parent);
+      i = parent;
+    }
+  }
+  
+  private static void siftDown(double[] distances, long[] points, int size) {
+    int i = 0;
+    
+    while (true) {
+      int largest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      
+      if (left < size && distances[left] > distances[largest]) {
+        largest = left;
+      }
+      if (right < size && distances[right] > distances[largest]) {
+        largest = right;
+      }
+      if (largest == i) {
+        break;
+      }
+      swap(distances, points, i, largest);
+      i = largest;
+    }
+  }
+  
+  private static void swap(double[] distances, long[] points, int i, int j) {
+    double d = distances[i];
+    distances[i] = distances[j];
+    distances[j] = d;
+    
+    long p = points[i];
+    points[i] = points[j];
+    points[j] = p;
+  }
+}
@@ -21,6 +21,8 @@
 
 package com.geoxp.geo;
 
+import gnu.trove.list.array.TLongArrayList;
+
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -49,9 +51,35 @@ public class OutputStreamCoverage extends Coverage {
   
   private static long MERGE_SORT_MAX_MEMORY = null == System.getProperty("merge.sort.max.memory") ? 2 * 1000 * 1000 : Long.valueOf(System.getProperty("merge.sort.max.memory"));
   
-  private ThreadLocal<Long> lastCell = new ThreadLocal<Long>() {
-    protected Long initialValue() { return null; }
-  };
+  /**
+   * Default size of the output buffer, cells are written to the underlying
+   * OutputStream in blocks of that size.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+  
+  private static final byte[] HEXDIGITS = "0123456789abcdef".getBytes();
+  
+  /**
+   * Buffer in which cells are formatted before being written to 'os'
+   */
+  private final byte[] buf;
+  
+  /**
+   * Current position in 'buf'
+   */
+  private int pos = 0;
+  
+  /**
+   * Last cell written by addCell, used to suppress consecutive duplicates.
+   */
+  private long lastCell = 0L;
+  private boolean hasLastCell = false;
+  
+  /**
+   * First IOException encountered while writing cells, addCell cannot throw
+   * so the exception is rethrown by flush/close.
+   */
+  private IOException error = null;
   
   private static long[] RESOLUTION_MASKS = {
     0xf000000000000000L,
@@ -73,13 +101,29 @@ public class OutputStreamCoverage extends Coverage {
   };
   
   public OutputStreamCoverage(OutputStream os) {
-    this.os = os;
-    this.suffix = null;
+    this(os, null, DEFAULT_BUFFER_SIZE);
   }
   
   public OutputStreamCoverage(OutputStream os, String suffix) {
+    this(os, suffix, DEFAULT_BUFFER_SIZE);
+  }
+  
+  /**
+   * @param os OutputStream to write cells to
+   * @param suffix Optional suffix to append to each cell written by addCell
+   * @param bufferSize Size of the output buffer
+   */
+  public OutputStreamCoverage(OutputStream os, String suffix, int bufferSize) {
     this.os = os;
-    this.suffix = suffix.getBytes();
+    this.suffix = null == suffix ? null : suffix.getBytes();
+    
+    //
+    // Make sure the buffer can hold at least a full cell with its suffix
+    //
+    
+    int minsize = 17 + (null == this.suffix ? 0 : this.suffix.length);
+    
+    this.buf = new byte[Math.max(bufferSize, minsize)];
   }
   
   @Override
@@ -109,37 +153,101 @@ public class OutputStreamCoverage extends Coverage {
     
     hhcode = hhcode & RESOLUTION_MASKS[r];
     
-    if (null != lastCell.get() && lastCell.get().equals(hhcode)) {
-      return;
-    }
-    
-    lastCell.set(hhcode);
-    
-    try {
-      os.write(HHCodeHelper.toString(hhcode, resolution).getBytes());
-      if (null != suffix) {
-        os.write(suffix);
+    synchronized (this) {
+      if (hasLastCell && lastCell == hhcode) {
+        return;
       }
-      os.write('\n');
-    } catch (IOException ioe) {      
-    }    
+      
+      lastCell = hhcode;
+      hasLastCell = true;
+      
+      write(hhcode, r, suffix);
+    }
   }
   
   @Override
   public void merge(Coverage other) {
     Map<Integer, Set<Long>> cells = other.getAllCells();
     
-    for (int r: cells.keySet()) {
-      for (long hhcode: cells.get(r)) {
-        try {
-          os.write(HHCodeHelper.toString(hhcode, r).getBytes());
-          os.write('\n');
-        } catch (IOException ioe) {      
-        }            
+    synchronized (this) {
+      for (int res: cells.keySet()) {
+        int r = (res >> 1) - 1;
+        for (long hhcode: cells.get(res)) {
+          write(hhcode, r, null);
+        }
       }
     }
   }
   
+  /**
+   * Format a cell as hex digits directly into the output buffer, flushing
+   * the buffer to the underlying OutputStream when it is full.
+   * 
+   * @param hhcode HHCode of the cell
+   * @param r Internal resolution (0-15) of the cell
+   * @param sfx Optional suffix to append to the cell
+   */
+  private void write(long hhcode, int r, byte[] sfx) {
+    
+    // Stop writing once an error has been encountered
+    if (null != error) {
+      return;
+    }
+    
+    int len = r + 2 + (null == sfx ? 0 : sfx.length);
+    
+    if (pos + len > buf.length) {
+      drain();
+      if (null != error) {
+        return;
+      }
+    }
+    
+    for (int i = 0; i <= r; i++) {
+      buf[pos++] = HEXDIGITS[(int) ((hhcode >>> (60 - (i << 2))) & 0xfL)];
+    }
+    
+    if (null != sfx) {
+      System.arraycopy(sfx, 0, buf, pos, sfx.length);
+      pos += sfx.length;
+    }
+    
+    buf[pos++] = '\n';
+  }
+  
+  /**
+   * Write the content of the buffer to the underlying OutputStream, recording
+   * any IOException.
+   */
+  private void drain() {
+    if (0 == pos) {
+      return;
+    }
+    
+    try {
+      os.write(buf, 0, pos);
+    } catch (IOException ioe) {
+      error = ioe;
+    }
+    
+    pos = 0;
+  }
+  
+  /**
+   * Flush the buffered cells to the underlying OutputStream.
+   * 
+   * @throws IOException if an error was encountered while writing cells
+   */
+  public synchronized void flush() throws IOException {
+    drain();
+    
+    if (null != error) {
+      throw error;
+    }
+    
+    os.flush();
+  }
+  
   public static void merge(InputStream in, InputStream in2, OutputStream out) throws IOException {
     SequenceInputStream seq = new SequenceInputStream(in, in2);
     
@@ -715,13 +823,14 @@ public class OutputStreamCoverage extends Coverage {
         }
         
         try {
-          double dist = Double.valueOf(areadef.substring(9,idx));
-          List<Long>[] hhcoords = GeoParser.parseEncodedPolyline(areadef.substring(9 + idx + 1));
+          double dist = Double.valueOf(areadef.substring(9, 9 + idx));
+          TLongArrayList lats = new TLongArrayList();
+          TLongArrayList lons = new TLongArrayList();
+          
+          GeoParser.parseEncodedPolyline(areadef.substring(9 + idx + 1), lats, lons);
           
           OutputStreamCoverage c = new OutputStreamCoverage(new FileOutputStream(file));
-          for (int k = 0; k < hhcoords[0].size() - 1; k++) {
-            HHCodeHelper.coverSegment(hhcoords[0].get(k), hhcoords[1].get(k), hhcoords[0].get(k+1), hhcoords[1].get(k + 1), dist, resolution, c);
-          }
+          HHCodeHelper.coverCorridor(lats.toArray(), lons.toArray(), dist, resolution, c);
           c.close();
         } catch (NumberFormatException nfe) {
           continue;
@@ -814,116 +923,24 @@ public class OutputStreamCoverage extends Coverage {
     }
   }
   
+  /**
+   * Export cells output by an OutputStreamCoverage as a KML document, see CoverageRectangleExporter.
+   * The InputStream is closed.
+   */
   public static void toKML(InputStream in, Writer writer) throws IOException {
-    
-    //
-    // Extract cells to render
-    //
-    
-    // FIXME(hbs): obfuscate cells so the use of HHCodes is not obvious
-    //String[] cells = coverage.toString("#").split("#");
-
-    writer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-    writer.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
-    writer.append("<Document>\n");
-    writer.append("  <name>GeoXP Coverage</name>\n");
-    writer.append("  <ScreenOverlay>\n");
-    writer.append("    <overlayXY x=\"0\" y=\"0\" xunits=\"pixels\" yunits=\"pixels\"/>\n");
-    writer.append("    <screenXY x=\"20\" y=\"50\" xunits=\"pixels\" yunits=\"pixels\"/>\n");
-    writer.append("    <size>-1</size>\n");
-    writer.append("    <Icon>\n");
-    // FIXME(hbs): replace image URL
-    writer.append("      <href>http://farm5.static.flickr.com/4056/4477523262_bfd831c564_o.png</href>\n");
-    writer.append("    </Icon>\n");
-    writer.append("  </ScreenOverlay>\n");
-
-    boolean showpins = false;
-    
-    BufferedReader br = new BufferedReader(new InputStreamReader(in));
-    
-    while(true) {
-      String line = br.readLine();
-      
-      if (null == line) {
-        break;
-      }
-
-      int res = line.length() * 2;
-      
-      long cell = new BigInteger((line + "000000000000000").substring(0,16), 16).longValue();
-      
-      double[] bbox = HHCodeHelper.getHHCodeBBox(cell, res);          
-      writer.append("  <Placemark>\n");
-      writer.append("  <Style>\n");
-      writer.append("    <LineStyle>\n");
-      writer.append("      <color>c0008000</color>\n");        
-      writer.append("      <width>1</width>\n");
-      writer.append("    </LineStyle>\n");
-      writer.append("    <PolyStyle>\n");
-      writer.append("      <color>c0f0f0f0</color>\n");
-      writer.append("      <fill>1</fill>\n");
-      writer.append("      <outline>1</outline>\n");    
-      writer.append("    </PolyStyle>\n");    
-      writer.append("  </Style>\n");        
-      writer.append("    <name>");
-      writer.append(HHCodeHelper.toString(cell, res));
-      writer.append("</name>\n");
-      writer.append("    <MultiGeometry>\n");
-      
-      writer.append("      <tessellate>1</tessellate>\n");
-      writer.append("      <Polygon><outerBoundaryIs><LinearRing>\n");
-      writer.append("        <coordinates>\n");
-      writer.append("          ");
-      writer.append(Double.toString(bbox[1]));
-      writer.append(",");
-      writer.append(Double.toString(bbox[0]));
-      writer.append(",0\n");
-      writer.append("          ");
-      writer.append(Double.toString(bbox[1]));
-      writer.append(",");
-      writer.append(Double.toString(bbox[2]));
-      writer.append(",0\n");
-      writer.append("          ");
-      writer.append(Double.toString(bbox[3]));
-      writer.append(",");
-      writer.append(Double.toString(bbox[2]));
-      writer.append(",0\n");
-      writer.append("          ");
-      writer.append(Double.toString(bbox[3]));
-      writer.append(",");
-      writer.append(Double.toString(bbox[0]));
-      writer.append(",0\n");
-      writer.append("          ");
-      writer.append(Double.toString(bbox[1]));
-      writer.append(",");
-      writer.append(Double.toString(bbox[0]));
-      writer.append(",0\n");
-      
-      writer.append("        </coordinates>\n");      
-      writer.append("      </LinearRing></outerBoundaryIs></Polygon>\n");   
-      
-      if (showpins) {
-        writer.append("      <Point>\n");
-        writer.append("        <coordinates>\n");
-        writer.append(Double.toString((bbox[3]+bbox[1])/2.0));
-        writer.append(",");
-        writer.append(Double.toString((bbox[2]+bbox[0])/2.0));
-        writer.append(",0");
-        writer.append("        </coordinates>\n");      
-        writer.append("      </Point>\n");
-      }
-      writer.append("    </MultiGeometry>\n");
-      writer.append("  </Placemark>\n");
-      
+    try {
+      CoverageRectangleExporter.toKML(in, writer);
+    } finally {
+      in.close();
     }
-
-    br.close();
-    
-    writer.append("</Document>\n");
-    writer.append("</kml>\n");         
   }
 
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    drain();
     this.os.close();
+    
+    if (null != error) {
+      throw error;
+    }
   }
 }
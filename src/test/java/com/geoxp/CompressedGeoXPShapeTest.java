@@ -0,0 +1,123 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.Coverage;
+import com.geoxp.geo.GeoCellCodec;
+import com.geoxp.geo.GeoParser;
+import com.geoxp.geo.HHCodeHelper;
+
+public class CompressedGeoXPShapeTest {
+  
+  private static long[] circle(int resolution) {
+    Coverage c = GeoParser.parseCircle("48.0:-4.5:5000", resolution);
+    c.optimize(0L);
+    return c.toGeoCells(30);
+  }
+  
+  private static long randomPoint(Random rand) {
+    return HHCodeHelper.getHHCodeValue(48.0 + (rand.nextDouble() - 0.5) / 5.0, -4.5 + (rand.nextDouble() - 0.5) / 5.0);
+  }
+  
+  @Test
+  public void testContains() throws IOException {
+    long[] geocells = circle(22);
+    GeoXPShape shape = GeoXPLib.fromCells(geocells, false);
+    
+    Random rand = new Random(0L);
+    
+    for (int blockSize: new int[] { 1, 7, 64 }) {
+      CompressedGeoXPShape compressed = new CompressedGeoXPShape(shape, blockSize);
+      
+      Assert.assertEquals(geocells.length, compressed.size());
+      Assert.assertArrayEquals(geocells, GeoXPLib.getCells(compressed.toGeoXPShape()));
+      
+      int inside = 0;
+      
+      for (int i = 0; i < 10000; i++) {
+        long hhcode = randomPoint(rand);
+        boolean contains = GeoXPLib.isGeoXPPointInGeoXPShape(hhcode, shape);
+        Assert.assertEquals(contains, compressed.contains(hhcode));
+        if (contains) {
+          inside++;
+        }
+      }
+      
+      Assert.assertTrue(inside > 0);
+      
+      for (long cell: geocells) {
+        Assert.assertTrue(compressed.containsCell(cell));
+      }
+      
+      CompressedGeoXPShape deserialized = CompressedGeoXPShape.deserialize(compressed.serialize());
+      Assert.assertArrayEquals(geocells, GeoXPLib.getCells(deserialized.toGeoXPShape()));
+      Assert.assertTrue(deserialized.contains(HHCodeHelper.getHHCodeValue(48.0, -4.5)));
+    }
+  }
+  
+  @Test
+  public void testEmpty() throws IOException {
+    CompressedGeoXPShape compressed = new CompressedGeoXPShape(GeoXPLib.fromCells(new long[0], false));
+    Assert.assertEquals(0, compressed.size());
+    Assert.assertFalse(compressed.contains(0x1234567812345678L));
+    Assert.assertEquals(0, CompressedGeoXPShape.deserialize(compressed.serialize()).size());
+  }
+  
+  @Test(expected = IOException.class)
+  public void testDeserialize_Truncated() throws IOException {
+    byte[] serialized = new CompressedGeoXPShape(GeoXPLib.fromCells(circle(20), false)).serialize();
+    CompressedGeoXPShape.deserialize(Arrays.copyOf(serialized, serialized.length - 1));
+  }
+  
+  @Test
+  public void testDeserialize_CorruptHeader() {
+    //
+    // Counts of Integer.MAX_VALUE and 2^28 cells with blocks of 1 cell, but no data
+    //
+    
+    byte version = new CompressedGeoXPShape(GeoXPLib.fromCells(new long[0], false)).serialize()[0];
+    
+    for (long count: new long[] { Integer.MAX_VALUE, 1L << 28 }) {
+      byte[] serialized = new byte[16];
+      serialized[0] = version;
+      int pos = GeoCellCodec.putVarLong(serialized, 1, count);
+      pos = GeoCellCodec.putVarLong(serialized, pos, 1L);
+      serialized[pos++] = 1;
+      serialized[pos++] = 1;
+      
+      try {
+        CompressedGeoXPShape.deserialize(Arrays.copyOf(serialized, pos));
+        Assert.fail();
+      } catch (IOException ioe) {
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.Coverage;
+import com.geoxp.geo.GeoParser;
+import com.geoxp.geo.HHCodeHelper;
+
+public class GeoXPPointIndexTest {
+  
+  private static long[] randomPoints(Random rand, int count) {
+    long[] points = new long[count];
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        points[i] = GeoXPLib.toGeoXPPoint(48.0D + rand.nextGaussian() * 0.1D, -4.5D + rand.nextGaussian() * 0.1D);
+      } else {
+        points[i] = GeoXPLib.toGeoXPPoint(-90.0D + rand.nextDouble() * 180.0D, -180.0D + rand.nextDouble() * 360.0D);
+      }
+    }
+    return points;
+  }
+  
+  private static GeoXPShape shape(Coverage c) {
+    c.optimize(0L);
+    return GeoXPLib.fromCells(c.toGeoCells(30), false);
+  }
+  
+  @Test
+  public void testQuery() {
+    Random rand = new Random(0L);
+    
+    // Large enough to be sorted in parallel
+    long[] points = randomPoints(rand, 100000);
+    long[] payloads = new long[points.length];
+    for (int i = 0; i < payloads.length; i++) {
+      payloads[i] = i;
+    }
+    
+    long[] original = Arrays.copyOf(points, points.length);
+    
+    GeoXPPointIndex index = new GeoXPPointIndex(points, payloads);
+    
+    Assert.assertEquals(original.length, index.size());
+    Assert.assertTrue(index.hasPayloads());
+    
+    for (int i = 0; i < index.size(); i++) {
+      Assert.assertEquals(original[(int) index.getPayload(i)], index.getPoint(i));
+      if (i > 0) {
+        Assert.assertTrue(index.getPoint(i - 1) <= index.getPoint(i));
+      }
+    }
+    
+    GeoXPShape[] shapes = new GeoXPShape[] {
+      shape(GeoParser.parseCircle("48.0:-4.5:10000", -4)),
+      shape(GeoParser.parseArea("polygon:10:-20,10:20,-10:20,-10:-20", -2)),
+      shape(GeoParser.parseArea("rect:-1:170,1:-170", 8)),
+    };
+    
+    for (GeoXPShape shape: shapes) {
+      long[] geocells = Arrays.copyOf(GeoXPLib.getCells(shape), GeoXPLib.getCells(shape).length);
+      Arrays.sort(geocells);
+      
+      long[] expected = new long[original.length];
+      int n = 0;
+      
+      for (long point: original) {
+        if (Coverage.contains(geocells, point)) {
+          expected[n++] = point;
+        }
+      }
+      
+      expected = Arrays.copyOf(expected, n);
+      Arrays.sort(expected);
+      
+      Assert.assertTrue(n > 0);
+      Assert.assertEquals(n, index.count(shape));
+      
+      long[] found = index.points(shape);
+      long[] foundPayloads = index.payloads(shape);
+      
+      for (int i = 0; i < found.length; i++) {
+        Assert.assertEquals(original[(int) foundPayloads[i]], found[i]);
+      }
+      
+      Arrays.sort(found);
+      Assert.assertArrayEquals(expected, found);
+      
+      GeoXPPointIndex.Cursor cursor = index.cursor(shape);
+      n = 0;
+      while (cursor.hasNext()) {
+        long point = cursor.next();
+        Assert.assertEquals(original[(int) cursor.payload()], point);
+        Assert.assertEquals(point, index.getPoint(cursor.index()));
+        n++;
+      }
+      Assert.assertEquals(expected.length, n);
+    }
+  }
+  
+  @Test
+  public void testWorld() {
+    // A single range covering all the keys, crossing the sign boundary
+    long[] world = new long[16];
+    for (int i = 0; i < 16; i++) {
+      world[i] = HHCodeHelper.toGeoCell(((long) i) << 60, 2);
+    }
+    
+    GeoXPPointIndex index = new GeoXPPointIndex(randomPoints(new Random(0L), 1000));
+    
+    Assert.assertFalse(index.hasPayloads());
+    Assert.assertEquals(1000L, index.count(GeoXPLib.fromCells(world, false)));
+    Assert.assertEquals(0L, index.count(GeoXPLib.fromCells(new long[0], false)));
+    Assert.assertFalse(index.cursor(GeoXPLib.fromCells(new long[0], false)).hasNext());
+    
+    Assert.assertEquals(0L, new GeoXPPointIndex(new long[0]).count(GeoXPLib.fromCells(world, false)));
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testPayloadsLength() {
+    new GeoXPPointIndex(new long[2], new long[1]);
+  }
+}
@@ -0,0 +1,300 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.Coverage;
+import com.geoxp.geo.GeoParser;
+import com.geoxp.geo.HHCodeHelper;
+
+public class IncrementalGeoXPPointIndexTest {
+  
+  private static GeoXPShape world() {
+    long[] world = new long[16];
+    for (int i = 0; i < 16; i++) {
+      world[i] = HHCodeHelper.toGeoCell(((long) i) << 60, 2);
+    }
+    return GeoXPLib.fromCells(world, false);
+  }
+  
+  private static long[] randomPoints(Random rand, int count) {
+    long[] points = new long[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = GeoXPLib.toGeoXPPoint(48.0D + rand.nextGaussian() * 0.5D, -4.5D + rand.nextGaussian() * 0.5D);
+    }
+    return points;
+  }
+  
+  @Test
+  public void testInsertQuery() {
+    Random rand = new Random(0L);
+    
+    long[] points = randomPoints(rand, 50000);
+    
+    IncrementalGeoXPPointIndex index = new IncrementalGeoXPPointIndex(1000, 4, null, 0L);
+    
+    Coverage c = GeoParser.parseCircle("48.0:-4.5:20000", -4);
+    c.optimize(0L);
+    long[] geocells = c.toGeoCells(30);
+    Arrays.sort(geocells);
+    GeoXPShape shape = GeoXPLib.fromCells(geocells, false);
+    
+    long expected = 0L;
+    
+    for (int i = 0; i < points.length; i++) {
+      index.insert(points[i], i);
+      
+      if (Coverage.contains(geocells, points[i])) {
+        expected++;
+      }
+      
+      // Query with points in the active and sealed buffers and in segments
+      if (i % 9999 == 0) {
+        Assert.assertEquals(expected, index.count(shape));
+        index.maintain();
+        Assert.assertEquals(expected, index.count(shape));
+        Assert.assertTrue(index.getSegmentCount() < 4);
+      }
+    }
+    
+    Assert.assertEquals(points.length, index.size());
+    Assert.assertEquals(expected, index.count(shape));
+    
+    index.flush();
+    
+    Assert.assertEquals(expected, index.count(shape));
+    Assert.assertEquals(points.length, index.count(world()));
+    
+    final long[] visited = new long[1];
+    final long[] original = points;
+    
+    index.visit(shape, new IncrementalGeoXPPointIndex.Visitor() {
+      @Override
+      public void visit(long point, long payload) {
+        Assert.assertEquals(original[(int) payload], point);
+        visited[0]++;
+      }
+    });
+    
+    Assert.assertEquals(expected, visited[0]);
+  }
+  
+  @Test
+  public void testConcurrentInserts() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    
+    final IncrementalGeoXPPointIndex index = new IncrementalGeoXPPointIndex(512, 3, scheduler, 1L);
+    
+    final int writers = 4;
+    final int perWriter = 25000;
+    
+    final AtomicLong inserted = new AtomicLong(0L);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    
+    Thread[] threads = new Thread[writers];
+    
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      threads[w] = new Thread() {
+        @Override
+        public void run() {
+          long[] points = randomPoints(new Random(writer), perWriter);
+          for (int i = 0; i < perWriter; i++) {
+            index.insert(points[i], writer * perWriter + i);
+            inserted.incrementAndGet();
+          }
+        }
+      };
+    }
+    
+    //
+    // Reader checking that points never disappear nor get counted twice
+    //
+    
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        GeoXPShape world = world();
+        long last = 0L;
+        while (!done.get()) {
+          long before = inserted.get();
+          long count = index.count(world);
+          if (count < last || count < before || count > writers * perWriter) {
+            failed.set(true);
+          }
+          last = count;
+        }
+      }
+    };
+    
+    reader.start();
+    
+    for (Thread thread: threads) {
+      thread.start();
+    }
+    
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    
+    done.set(true);
+    reader.join();
+    
+    index.close();
+    scheduler.shutdown();
+    
+    Assert.assertFalse(failed.get());
+    
+    index.flush();
+    
+    Assert.assertTrue(index.getSegmentCount() < 3);
+    
+    final boolean[] seen = new boolean[writers * perWriter];
+    
+    index.visit(world(), new IncrementalGeoXPPointIndex.Visitor() {
+      @Override
+      public void visit(long point, long payload) {
+        Assert.assertFalse(seen[(int) payload]);
+        seen[(int) payload] = true;
+      }
+    });
+    
+    for (boolean s: seen) {
+      Assert.assertTrue(s);
+    }
+  }
+  
+  @Test
+  public void testConcurrentFlush() throws Exception {
+    // Large buffers so 'flush' seals buffers which are still being appended to
+    final IncrementalGeoXPPointIndex index = new IncrementalGeoXPPointIndex(1 << 16, 4, null, 0L);
+    
+    final int writers = 8;
+    final int perWriter = 50000;
+    
+    final AtomicBoolean done = new AtomicBoolean(false);
+    
+    Thread[] threads = new Thread[writers];
+    
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      threads[w] = new Thread() {
+        @Override
+        public void run() {
+          long[] points = randomPoints(new Random(writer), perWriter);
+          for (int i = 0; i < perWriter; i++) {
+            index.insert(points[i], writer * perWriter + i);
+          }
+        }
+      };
+    }
+    
+    Thread flusher = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          index.flush();
+        }
+      }
+    };
+    
+    flusher.start();
+    
+    for (Thread thread: threads) {
+      thread.start();
+    }
+    
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    
+    done.set(true);
+    flusher.join();
+    
+    index.flush();
+    
+    Assert.assertEquals(writers * perWriter, index.size());
+    
+    final boolean[] seen = new boolean[writers * perWriter];
+    
+    index.visit(world(), new IncrementalGeoXPPointIndex.Visitor() {
+      @Override
+      public void visit(long point, long payload) {
+        Assert.assertFalse(seen[(int) payload]);
+        seen[(int) payload] = true;
+      }
+    });
+    
+    for (boolean s: seen) {
+      Assert.assertTrue(s);
+    }
+  }
+  
+  @Test
+  public void testMerge() {
+    Random rand = new Random(1L);
+    
+    GeoXPPointIndex[] segments = new GeoXPPointIndex[3];
+    long[] all = new long[0];
+    
+    for (int s = 0; s < segments.length; s++) {
+      long[] points = new long[100000 * (s + 1)];
+      long[] payloads = new long[points.length];
+      for (int i = 0; i < points.length; i++) {
+        points[i] = rand.nextLong();
+        payloads[i] = ~points[i];
+      }
+      
+      all = Arrays.copyOf(all, all.length + points.length);
+      System.arraycopy(points, 0, all, all.length - points.length, points.length);
+      
+      segments[s] = new GeoXPPointIndex(points, payloads);
+    }
+    
+    GeoXPPointIndex merged = IncrementalGeoXPPointIndex.merge(segments);
+    
+    Arrays.sort(all);
+    
+    Assert.assertEquals(all.length, merged.size());
+    
+    for (int i = 0; i < all.length; i++) {
+      Assert.assertEquals(all[i], merged.getPoint(i));
+      Assert.assertEquals(~all[i], merged.getPayload(i));
+    }
+  }
+  
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMergeFactor() {
+    new IncrementalGeoXPPointIndex(1000, 1, null, 0L);
+  }
+}
@@ -0,0 +1,149 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.geo.Coverage;
+import com.geoxp.geo.HHCodeHelper;
+
+public class MappedGeoXPShapeTest {
+  
+  private static long[] randomCells(Random rand, int count, long prefix) {
+    long[] cells = new long[count];
+    for (int i = 0; i < count; i++) {
+      int resolution = 2 + (rand.nextInt(15) << 1);
+      // Keep cells close to each other so ancestors/descendants occur
+      long hhcode = (prefix & 0xfff0000000000000L) | (rand.nextLong() >>> 12);
+      cells[i] = HHCodeHelper.toGeoCell(hhcode, resolution);
+    }
+    return cells;
+  }
+  
+  private static boolean intersects(long[] geocells, long geocell) {
+    for (long cell: geocells) {
+      long a = cell;
+      long b = geocell;
+      if (((a >>> 60) & 0xfL) > ((b >>> 60) & 0xfL)) {
+        a = geocell;
+        b = cell;
+      }
+      int res = (int) ((a >>> 60) & 0xfL) << 1;
+      if (a == HHCodeHelper.toGeoCell((b & 0x0fffffffffffffffL) << 4, res)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  @Test
+  public void testMap() throws IOException {
+    Random rand = new Random(42L);
+    
+    long[] geocells = randomCells(rand, 1000, 0x1230000000000000L);
+    GeoXPShape shape = GeoXPLib.fromCells(geocells, false);
+    
+    File file = File.createTempFile("MappedGeoXPShapeTest", ".gxps");
+    file.deleteOnExit();
+    
+    try {
+      MappedGeoXPShape.write(shape, file);
+      
+      MappedGeoXPShape mapped = MappedGeoXPShape.map(file);
+      
+      long[] sorted = Arrays.copyOf(geocells, geocells.length);
+      Arrays.sort(sorted);
+      
+      Assert.assertEquals(sorted.length, mapped.size());
+      Assert.assertArrayEquals(sorted, GeoXPLib.getCells(mapped.toGeoXPShape()));
+      
+      for (int i = 0; i < 10000; i++) {
+        long hhcode = 0x1230000000000000L | (rand.nextLong() >>> 12);
+        Assert.assertEquals(Coverage.contains(sorted, hhcode), mapped.contains(hhcode));
+      }
+      
+      long[] probes = randomCells(rand, 10000, 0x1230000000000000L);
+      
+      for (long probe: probes) {
+        Assert.assertEquals(intersects(sorted, probe), mapped.intersects(probe));
+      }
+      
+      for (long cell: geocells) {
+        Assert.assertTrue(mapped.intersects(cell));
+        Assert.assertTrue(mapped.intersects(HHCodeHelper.parentGeoCell(cell)) || 1 == ((cell >>> 60) & 0xfL));
+      }
+      
+      Assert.assertTrue(mapped.intersects(GeoXPLib.fromCells(probes, false)));
+      Assert.assertFalse(mapped.intersects(GeoXPLib.fromCells(randomCells(rand, 100, 0xabc0000000000000L), false)));
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test
+  public void testMap_Empty() throws IOException {
+    File file = File.createTempFile("MappedGeoXPShapeTest", ".gxps");
+    file.deleteOnExit();
+    
+    try {
+      MappedGeoXPShape.write(GeoXPLib.fromCells(new long[0], false), file);
+      MappedGeoXPShape mapped = MappedGeoXPShape.map(file);
+      Assert.assertEquals(0, mapped.size());
+      Assert.assertFalse(mapped.contains(0x1234567812345678L));
+      Assert.assertFalse(mapped.intersects(0x11L << 56));
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test(expected = IOException.class)
+  public void testMap_BadMagic() throws IOException {
+    File file = File.createTempFile("MappedGeoXPShapeTest", ".gxps");
+    file.deleteOnExit();
+    
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[24]);
+    out.close();
+    
+    try {
+      MappedGeoXPShape.map(file);
+    } finally {
+      file.delete();
+    }
+  }
+  
+  @Test
+  public void testDeserializeGeoXPShape() {
+    long[] geocells = randomCells(new Random(0L), 100, 0x1230000000000000L);
+    byte[] serialized = GeoXPLib.serializeGeoXPShape(GeoXPLib.fromCells(geocells, false));
+    Assert.assertArrayEquals(geocells, GeoXPLib.getCells(GeoXPLib.deserializeGeoXPShape(serialized)));
+  }
+}
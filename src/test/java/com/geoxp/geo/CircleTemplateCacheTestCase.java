@@ -0,0 +1,95 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircleTemplateCacheTestCase {
+  
+  /**
+   * Check that the template cover contains the exact cover and is not much larger.
+   */
+  private static void check(CircleTemplateCache cache, double lat, double lon, double radius, int resolution, double maxRatio) {
+    long hhlat = HHCodeHelper.toLongLat(lat);
+    long hhlon = HHCodeHelper.toLongLon(lon);
+    
+    Set<Long> exact = HHCodeHelper.coverCircle(hhlat, hhlon, radius, resolution, new Coverage()).getCells(resolution);
+    Set<Long> cover = cache.cover(hhlat, hhlon, radius, resolution, new Coverage()).getCells(resolution);
+    
+    Assert.assertTrue(cover.containsAll(exact));
+    Assert.assertTrue(cover.size() <= exact.size() * maxRatio);
+  }
+  
+  @Test
+  public void testCover() {
+    CircleTemplateCache cache = new CircleTemplateCache();
+    Random rand = new Random(0L);
+    
+    double[] radii = new double[] { 100.0D, 500.0D, 1000.0D, 5000.0D };
+    
+    for (int i = 0; i < 200; i++) {
+      double lat = 40.0D + rand.nextDouble() * 10.0D;
+      double lon = -10.0D + rand.nextDouble() * 10.0D;
+      double radius = radii[rand.nextInt(radii.length)];
+      
+      check(cache, lat, lon, radius, 20, 1.5D);
+    }
+    
+    // Poles, IDL, equator, huge circle
+    check(cache, 89.95D, 10.0D, 20000.0D, 14, 1.5D);
+    check(cache, -89.95D, 10.0D, 20000.0D, 14, 1.5D);
+    check(cache, -10.0D, 179.99D, 5000.0D, 18, 1.3D);
+    check(cache, 0.0D, -179.99D, 5000.0D, 18, 1.3D);
+    check(cache, 48.0D, -4.5D, 5000000.0D, 8, 1.5D);
+  }
+  
+  @Test
+  public void testCache() {
+    CircleTemplateCache cache = new CircleTemplateCache(2);
+    
+    // Centers in the same latitude band share the template
+    cache.cover(48.01D, -4.5D, 1000.0D, 20);
+    cache.cover(48.02D, 2.0D, 1000.0D, 20);
+    
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(1L, cache.getHits());
+    Assert.assertEquals(1L, cache.getMisses());
+    
+    // Other radius, resolution or band
+    cache.cover(48.01D, -4.5D, 500.0D, 20);
+    cache.cover(48.01D, -4.5D, 1000.0D, 22);
+    cache.cover(10.0D, -4.5D, 1000.0D, 20);
+    
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(4L, cache.getMisses());
+    
+    cache.clear();
+    Assert.assertEquals(0, cache.size());
+    
+    // Invalid resolution
+    Assert.assertEquals(0, cache.cover(48.0D, -4.5D, 1000.0D, 34).getCellCount());
+  }
+}
@@ -0,0 +1,930 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.CompressedGeoXPShape;
+import com.geoxp.GeoXPLib;
+import com.geoxp.GeoXPLib.GeoXPShape;
+import com.geoxp.GeoXPPointIndex;
+import com.geoxp.IncrementalGeoXPPointIndex;
+
+/**
+ * Timings of Coverage optimize/prune/dedup/reduce/toGeoCells, bulk construction and CoverageHelper clusters/toEnvelope on large coverages.
+ */
+public class CoverageBenchmark {
+  
+  /**
+   * Build a coverage with 'count' cells at R=24, 90% of the cells of a contiguous
+   * range are present so most parents are partially covered and some fully.
+   */
+  private static Coverage generate(int count, boolean useTrove) {
+    Coverage c = new Coverage();
+    c.setUseTrove(useTrove);
+    
+    Random rand = new Random(0L);
+    
+    long base = HHCodeHelper.getHHCodeValue(48.0, -4.5) & Coverage.PREFIX_MASK[4];
+    
+    long idx = 0L;
+    int n = 0;
+    
+    while (n < count) {
+      if (rand.nextInt(10) > 0) {
+        c.addCell(24, base + (idx << 16));
+        n++;
+      }
+      idx++;
+    }
+    
+    return c;
+  }
+  
+  private static void bench(int count, boolean useTrove) {
+    Coverage c = generate(count, useTrove);
+    
+    System.gc();
+    long nano = System.nanoTime();
+    c.optimize(0x0000000000aaaaaaL);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("optimize " + count + " cells (trove=" + useTrove + ") " + (nano / 1000000.0D) + " ms, " + c.getCellCount() + " cells left");
+    
+    c = generate(count, useTrove);
+    
+    System.gc();
+    nano = System.nanoTime();
+    c.prune(0x0000000000888888L, 2, 0);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("prune " + count + " cells (trove=" + useTrove + ") " + (nano / 1000000.0D) + " ms, " + c.getCellCount() + " cells left");
+    
+    c = generate(count, useTrove);
+    c.merge(generate(count / 16, useTrove).optimize(0x0000000000aaaaaaL, 2, 32, 0));
+    
+    System.gc();
+    nano = System.nanoTime();
+    c.dedup();
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("dedup " + count + " cells (trove=" + useTrove + ") " + (nano / 1000000.0D) + " ms, " + c.getCellCount() + " cells left");
+  }
+  
+  @Test
+  public void testOptimize_1M() {
+    bench(1000000, false);
+    bench(1000000, true);
+  }
+  
+  @Test
+  public void testToGeoCells_1M() {
+    for (boolean useTrove: new boolean[] { false, true }) {
+      Coverage c = generate(1000000, useTrove);
+      c.merge(generate(100000, useTrove).optimize(0x0000000000aaaaaaL, 2, 32, 0));
+      
+      System.gc();
+      long nano = System.nanoTime();
+      long[] geocells = c.toGeoCells(30);
+      nano = System.nanoTime() - nano;
+      
+      System.out.println("toGeoCells " + geocells.length + " cells (trove=" + useTrove + ") " + (nano / 1000000.0D) + " ms");
+    }
+  }
+  
+  @Test
+  public void testFromGeoCells_20M() {
+    //
+    // Build 20M sorted geocells at R=24, 90% of a contiguous range
+    //
+    
+    long[] geocells = new long[20000000];
+    
+    Random rand = new Random(0L);
+    
+    long base = HHCodeHelper.getHHCodeValue(48.0, -4.5) & Coverage.PREFIX_MASK[3];
+    
+    long idx = 0L;
+    int n = 0;
+    
+    while (n < geocells.length) {
+      if (rand.nextInt(10) > 0) {
+        geocells[n++] = HHCodeHelper.toGeoCell(base + (idx << 16), 24);
+      }
+      idx++;
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    FrozenCoverage frozen = FrozenCoverage.fromGeoCells(geocells);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("FrozenCoverage.fromGeoCells " + frozen.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+    frozen = null;
+    
+    System.gc();
+    nano = System.nanoTime();
+    Coverage c = new Coverage(geocells, true);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("new Coverage(geocells, true) " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+    c = null;
+    
+    //
+    // Compare with adding cells one at a time on 2M cells
+    //
+    
+    long[] subset = Arrays.copyOf(geocells, 2000000);
+    geocells = null;
+    
+    System.gc();
+    nano = System.nanoTime();
+    c = new Coverage(subset);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("new Coverage(geocells) " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+    c = null;
+    
+    System.gc();
+    nano = System.nanoTime();
+    c = new Coverage();
+    for (long geocell: subset) {
+      c.addCell((int) (geocell >>> 59), geocell << 4);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("addCell " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testReduce_1M() {
+    Coverage c = generate(1000000, false);
+    
+    System.gc();
+    long nano = System.nanoTime();
+    c.reduce(500);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("reduce 1000000 cells " + (nano / 1000000.0D) + " ms, " + c.getCellCount() + " cells left, area " + c.area());
+  }
+  
+  @Test
+  public void testOptimize_10M() {
+    bench(10000000, true);
+  }
+  
+  @Test
+  public void testClusters_100k() {
+    //
+    // Build 100k islands of two adjacent R=24 cells, one island every four cells
+    // in both directions
+    //
+    
+    Coverage c = new Coverage();
+    
+    long lat0 = HHCodeHelper.toLongLat(48.0);
+    long lon0 = HHCodeHelper.toLongLon(-4.5);
+    long step = 1L << (HHCodeHelper.MAX_RESOLUTION - 24);
+    
+    for (int i = 0; i < 100000; i++) {
+      long lat = lat0 + (i / 316) * 4 * step;
+      long lon = lon0 + (i % 316) * 4 * step;
+      c.addCell(24, lat, lon);
+      c.addCell(24, lat, lon + step);
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    List<Coverage> clusters = CoverageHelper.clusters(c);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("clusters " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms, " + clusters.size() + " clusters");
+    
+    Assert.assertEquals(100000, clusters.size());
+  }
+  
+  @Test
+  public void testToEnvelope_1M() {
+    long[] cells = generate(1000000, true).toGeoCells(30);
+    
+    System.gc();
+    long nano = System.nanoTime();
+    float[] envelope = CoverageHelper.toEnvelope(cells);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("toEnvelope " + cells.length + " cells " + (nano / 1000000.0D) + " ms, " + envelope.length + " coordinates");
+  }
+  
+  @Test
+  public void testCoverCorridor_10k() {
+    //
+    // Random track of 10k vertices with 100m legs, buffered by 50m
+    //
+    
+    Random rand = new Random(0L);
+    
+    long[] lats = new long[10000];
+    long[] lons = new long[10000];
+    
+    double lat = 48.0D;
+    double lon = -4.5D;
+    
+    for (int i = 0; i < lats.length; i++) {
+      lats[i] = HHCodeHelper.toLongLat(lat);
+      lons[i] = HHCodeHelper.toLongLon(lon);
+      double heading = rand.nextDouble() * 0.5D * Math.PI;
+      lat += Math.cos(heading) * 100.0D / 1852.0D / 60.0D;
+      lon += Math.sin(heading) * 100.0D / 1852.0D / 60.0D / Math.cos(Math.toRadians(lat));
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    Coverage c = new Coverage();
+    for (int i = 0; i < lats.length - 1; i++) {
+      HHCodeHelper.coverSegment(lats[i], lons[i], lats[i + 1], lons[i + 1], 50.0D, 20, c);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverSegment " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+    c = null;
+    
+    System.gc();
+    nano = System.nanoTime();
+    c = HHCodeHelper.coverCorridor(lats, lons, 50.0D, 20, new Coverage());
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverCorridor " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testCoverPolygon_10k() {
+    //
+    // Polygon with 10k vertices approximating a circle of 1 degree
+    //
+    
+    int n = 10000;
+    
+    long[] lats = new long[n];
+    long[] lons = new long[n];
+    
+    List<Long> latList = new ArrayList<Long>(n);
+    List<Long> lonList = new ArrayList<Long>(n);
+    
+    for (int i = 0; i < n; i++) {
+      double angle = 2.0D * Math.PI * i / n;
+      lats[i] = HHCodeHelper.toLongLat(48.0D + Math.sin(angle));
+      lons[i] = HHCodeHelper.toLongLon(-4.5D + Math.cos(angle));
+      latList.add(lats[i]);
+      lonList.add(lons[i]);
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    Coverage c = HHCodeHelper.coverPolygon(latList, lonList, 16);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverPolygon(List) " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    c = HHCodeHelper.coverPolygon(lats, lons, 16, new Coverage());
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverPolygon(long[]) " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testCellSink_Count() {
+    //
+    // Count the R=20 cells of a half degree square without materializing a Coverage
+    //
+    
+    final long[] count = new long[1];
+    
+    CellSink counter = new CellSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        count[0]++;
+      }
+    };
+    
+    System.gc();
+    long nano = System.nanoTime();
+    HHCodeHelper.coverRectangle(48.0D, -4.5D, 48.5D, -4.0D, 20, counter, null, false);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("CellSink " + count[0] + " cells " + (nano / 1000000.0D) + " ms");
+    
+    count[0] = 0;
+    
+    CellRunSink runCounter = new CellRunSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        count[0]++;
+      }
+      @Override
+      public void acceptRun(int resolution, long lat, long fromLon, long toLon) {
+        count[0] += ((toLon - fromLon) >>> (HHCodeHelper.MAX_RESOLUTION - resolution)) + 1;
+      }
+    };
+    
+    System.gc();
+    nano = System.nanoTime();
+    HHCodeHelper.coverRectangle(48.0D, -4.5D, 48.5D, -4.0D, 20, runCounter, null, false);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("CellRunSink " + count[0] + " cells " + (nano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    Coverage c = HHCodeHelper.coverRectangle(48.0D, -4.5D, 48.5D, -4.0D, 20);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("Coverage " + c.getCellCount() + " cells " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testCoverCircle_10k() {
+    //
+    // 10000 circles of 1km around Brest at R22, covered with a 64 sides polygon
+    // (as GeoParser.parseCircle used to do) and with coverCircle. Cells are counted
+    // by a CellRunSink so only the rasterization is timed.
+    //
+    
+    int n = 10000;
+    double radius = 1000.0D;
+    int sides = 64;
+    
+    Random rand = new Random(0L);
+    
+    long[] centerLats = new long[n];
+    long[] centerLons = new long[n];
+    
+    for (int i = 0; i < n; i++) {
+      centerLats[i] = HHCodeHelper.toLongLat(48.0D + rand.nextDouble());
+      centerLons[i] = HHCodeHelper.toLongLon(-4.5D + rand.nextDouble());
+    }
+    
+    final long[] count = new long[1];
+    
+    CellRunSink counter = new CellRunSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        count[0]++;
+      }
+      @Override
+      public void acceptRun(int resolution, long lat, long fromLon, long toLon) {
+        count[0] += ((toLon - fromLon) >>> (HHCodeHelper.MAX_RESOLUTION - resolution)) + 1;
+      }
+    };
+    
+    System.gc();
+    long nano = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      long[] lats = new long[sides];
+      long[] lons = new long[sides];
+      double scale = Math.cos(Math.toRadians(HHCodeHelper.toLat(centerLats[i])));
+      for (int k = 0; k < sides; k++) {
+        double a = k * 2.0D * Math.PI / sides;
+        lats[k] = centerLats[i] + (long) (Math.sin(a) * radius * HHCodeHelper.latUnitsPerMeter);
+        lons[k] = centerLons[i] + (long) (Math.cos(a) * radius * HHCodeHelper.lonUnitsPerMeter / scale);
+      }
+      HHCodeHelper.coverPolygon(lats, lons, 22, counter);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverPolygon " + count[0] + " cells " + (nano / 1000000.0D) + " ms");
+    
+    count[0] = 0L;
+    
+    System.gc();
+    nano = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      HHCodeHelper.coverCircle(centerLats[i], centerLons[i], radius, 22, counter);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverCircle " + count[0] + " cells " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testCircleTemplateCache_10k() {
+    //
+    // 10000 circles with radii of 100m, 500m, 1km and 5km around Brest at R20,
+    // covered with coverCircle and with a CircleTemplateCache
+    //
+    
+    int n = 10000;
+    double[] radii = new double[] { 100.0D, 500.0D, 1000.0D, 5000.0D };
+    
+    Random rand = new Random(0L);
+    
+    long[] centerLats = new long[n];
+    long[] centerLons = new long[n];
+    
+    for (int i = 0; i < n; i++) {
+      centerLats[i] = HHCodeHelper.toLongLat(48.0D + rand.nextDouble());
+      centerLons[i] = HHCodeHelper.toLongLon(-4.5D + rand.nextDouble());
+    }
+    
+    final long[] count = new long[1];
+    
+    CellRunSink counter = new CellRunSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        count[0]++;
+      }
+      @Override
+      public void acceptRun(int resolution, long lat, long fromLon, long toLon) {
+        count[0] += ((toLon - fromLon) >>> (HHCodeHelper.MAX_RESOLUTION - resolution)) + 1;
+      }
+    };
+    
+    System.gc();
+    long nano = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      HHCodeHelper.coverCircle(centerLats[i], centerLons[i], radii[i % radii.length], 20, counter);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("coverCircle " + count[0] + " cells " + (nano / 1000000.0D) + " ms");
+    
+    count[0] = 0L;
+    
+    CircleTemplateCache cache = new CircleTemplateCache();
+    
+    System.gc();
+    nano = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      cache.cover(centerLats[i], centerLons[i], radii[i % radii.length], 20, counter);
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("CircleTemplateCache " + count[0] + " cells " + (nano / 1000000.0D) + " ms (" + cache.size() + " templates)");
+  }
+  
+  @Test
+  public void testNearestNeighbourIndex_1M() {
+    //
+    // 1M points around Brest, 10 nearest neighbours of 1000 query points
+    // with a NearestNeighbourIndex and of 20 query points by brute force
+    //
+    
+    int n = 1000000;
+    int k = 10;
+    
+    Random rand = new Random(0L);
+    
+    long[] points = new long[n];
+    
+    for (int i = 0; i < n; i++) {
+      points[i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextDouble(), -4.5D + rand.nextDouble());
+    }
+    
+    long[] queries = new long[1000];
+    
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextDouble(), -4.5D + rand.nextDouble());
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    NearestNeighbourIndex index = new NearestNeighbourIndex(points);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("NearestNeighbourIndex build " + n + " points " + (nano / 1000000.0D) + " ms");
+    
+    long found = 0L;
+    
+    System.gc();
+    nano = System.nanoTime();
+    for (int i = 0; i < queries.length; i++) {
+      found += index.nearest(queries[i], k).length;
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("NearestNeighbourIndex " + found + " points " + (nano / 1000000.0D / queries.length) + " ms per query");
+    
+    found = 0L;
+    
+    System.gc();
+    nano = System.nanoTime();
+    for (int i = 0; i < 20; i++) {
+      long[] scales = HHCodeHelper.getScale(queries[i]);
+      double[] best = new double[k];
+      Arrays.fill(best, Double.POSITIVE_INFINITY);
+      for (int j = 0; j < n; j++) {
+        double d = HHCodeHelper.getSquaredDistance(queries[i], points[j], scales);
+        if (d < best[k - 1]) {
+          int pos = k - 1;
+          while (pos > 0 && best[pos - 1] > d) {
+            best[pos] = best[pos - 1];
+            pos--;
+          }
+          best[pos] = d;
+        }
+      }
+      found += best.length;
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("Brute force " + found + " points " + (nano / 1000000.0D / 20) + " ms per query");
+  }
+  
+  @Test
+  public void testGeocellsToRanges_1M() {
+    //
+    // Select the points of a 10km circle among 1M points around Brest, by matching the regexp
+    // of the cells against the hex keys and by range scans over the keys sorted as unsigned values
+    //
+    
+    int n = 1000000;
+    
+    Random rand = new Random(0L);
+    
+    long[] keys = new long[n];
+    String[] hexkeys = new String[n];
+    
+    for (int i = 0; i < n; i++) {
+      keys[i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextDouble(), -4.5D + rand.nextDouble());
+      hexkeys[i] = String.format("%016x", keys[i]);
+      keys[i] ^= Long.MIN_VALUE;
+    }
+    
+    Arrays.sort(keys);
+    
+    Coverage c = GeoParser.parseCircle("48.5:-4.0:10000", -4);
+    c.optimize(0L);
+    long[] geocells = c.toGeoCells(30);
+    
+    System.gc();
+    long nano = System.nanoTime();
+    java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(HHCodeHelper.geocellsToRegexp(Arrays.copyOf(geocells, geocells.length)));
+    long found = 0L;
+    for (int i = 0; i < n; i++) {
+      if (pattern.matcher(hexkeys[i]).matches()) {
+        found++;
+      }
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("geocellsToRegexp " + geocells.length + " cells " + found + " points " + (nano / 1000000.0D) + " ms");
+    
+    for (int maxRanges: new int[] { Integer.MAX_VALUE, 100, 10 }) {
+      System.gc();
+      nano = System.nanoTime();
+      long[] ranges = HHCodeHelper.geocellsToRanges(geocells, maxRanges);
+      found = 0L;
+      for (int i = 0; i < ranges.length; i += 2) {
+        int from = Arrays.binarySearch(keys, ranges[i] ^ Long.MIN_VALUE);
+        int to = 0L == ranges[i + 1] ? n : Arrays.binarySearch(keys, ranges[i + 1] ^ Long.MIN_VALUE);
+        from = from < 0 ? -from - 1 : from;
+        to = to < 0 ? -to - 1 : to;
+        found += to - from;
+      }
+      nano = System.nanoTime() - nano;
+      
+      System.out.println("geocellsToRanges " + (ranges.length / 2) + " ranges " + found + " points " + (nano / 1000000.0D) + " ms");
+    }
+  }
+  
+  @Test
+  public void testGeoXPPointIndex_5M() {
+    //
+    // Index 5M points around Brest with payloads, count and fetch the points of
+    // a 5km circle, compared with a scan of all the points
+    //
+    
+    int n = 5000000;
+    
+    Random rand = new Random(0L);
+    
+    long[] points = new long[n];
+    long[] payloads = new long[n];
+    
+    for (int i = 0; i < n; i++) {
+      points[i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextDouble(), -4.5D + rand.nextDouble());
+      payloads[i] = i;
+    }
+    
+    long[] unsorted = Arrays.copyOf(points, n);
+    
+    System.gc();
+    long nano = System.nanoTime();
+    GeoXPPointIndex index = new GeoXPPointIndex(points, payloads);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("GeoXPPointIndex build " + n + " points " + (nano / 1000000.0D) + " ms");
+    
+    Coverage c = GeoParser.parseCircle("48.5:-4.0:5000", -4);
+    c.optimize(0L);
+    long[] geocells = c.toGeoCells(30);
+    Arrays.sort(geocells);
+    GeoXPShape shape = GeoXPLib.fromCells(geocells, false);
+    
+    System.gc();
+    nano = System.nanoTime();
+    long count = index.count(shape);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("GeoXPPointIndex count " + count + " points " + (nano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    long[] found = index.payloads(shape);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("GeoXPPointIndex payloads " + found.length + " points " + (nano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    count = 0L;
+    for (int i = 0; i < n; i++) {
+      if (Coverage.contains(geocells, unsorted[i])) {
+        count++;
+      }
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("Scan " + count + " points " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testIncrementalGeoXPPointIndex_2M() throws Exception {
+    //
+    // Insert 2M points around Brest from 2 threads with background maintenance,
+    // then count the points of a 5km circle
+    //
+    
+    final int n = 1000000;
+    
+    java.util.concurrent.ScheduledExecutorService scheduler = java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
+    final IncrementalGeoXPPointIndex index = new IncrementalGeoXPPointIndex(IncrementalGeoXPPointIndex.DEFAULT_BUFFER_CAPACITY, IncrementalGeoXPPointIndex.DEFAULT_MERGE_FACTOR, scheduler, 10L);
+    
+    final long[][] points = new long[2][n];
+    
+    for (int t = 0; t < 2; t++) {
+      Random rand = new Random(t);
+      for (int i = 0; i < n; i++) {
+        points[t][i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextDouble(), -4.5D + rand.nextDouble());
+      }
+    }
+    
+    Thread[] threads = new Thread[2];
+    
+    for (int t = 0; t < 2; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            index.insert(points[thread][i], thread * n + i);
+          }
+        }
+      };
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    for (Thread thread: threads) {
+      thread.start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("IncrementalGeoXPPointIndex insert " + index.size() + " points " + (nano / 1000000.0D) + " ms");
+    
+    Coverage c = GeoParser.parseCircle("48.5:-4.0:5000", -4);
+    c.optimize(0L);
+    GeoXPShape shape = GeoXPLib.fromCells(c.toGeoCells(30), false);
+    
+    nano = System.nanoTime();
+    long count = index.count(shape);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("IncrementalGeoXPPointIndex count " + count + " points " + (nano / 1000000.0D) + " ms (" + index.getSegmentCount() + " segments)");
+    
+    nano = System.nanoTime();
+    index.flush();
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("IncrementalGeoXPPointIndex flush " + (nano / 1000000.0D) + " ms");
+    
+    nano = System.nanoTime();
+    count = index.count(shape);
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("IncrementalGeoXPPointIndex count " + count + " points " + (nano / 1000000.0D) + " ms (" + index.getSegmentCount() + " segments)");
+    
+    index.close();
+    scheduler.shutdown();
+  }
+  
+  @Test
+  public void testGeoCellCodec_2M() throws Exception {
+    //
+    // Decode 2M cells of 5km circles, serialized GeoXPShapes vs GeoCellCodec
+    //
+    
+    for (int resolution = 18; resolution <= 22; resolution += 2) {
+      Coverage c = GeoParser.parseCircle("48.0:-4.5:5000", resolution);
+      c.optimize(0L);
+      long[] geocells = c.toGeoCells(30);
+      
+      byte[] raw = GeoXPLib.serializeGeoXPShape(GeoXPLib.fromCells(geocells, false));
+      byte[] encoded = GeoCellCodec.encode(geocells);
+      
+      int rounds = Math.max(1, 2000000 / geocells.length);
+      
+      System.gc();
+      long nano = System.nanoTime();
+      long cells = 0L;
+      for (int i = 0; i < rounds; i++) {
+        cells += GeoXPLib.getCells(GeoXPLib.deserializeGeoXPShape(raw)).length;
+      }
+      long rawnano = System.nanoTime() - nano;
+      
+      System.gc();
+      nano = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        cells -= GeoCellCodec.decode(encoded).length;
+      }
+      long codecnano = System.nanoTime() - nano;
+      
+      Assert.assertEquals(0L, cells);
+      
+      double total = (double) geocells.length * rounds;
+      
+      System.out.println("GeoCellCodec R=" + resolution + " cells=" + geocells.length
+          + " raw=" + ((double) raw.length / geocells.length) + " bytes/cell " + (total * 1000.0D / rawnano) + " Mcells/s"
+          + " encoded=" + ((double) encoded.length / geocells.length) + " bytes/cell " + (total * 1000.0D / codecnano) + " Mcells/s");
+    }
+  }
+  
+  @Test
+  public void testCompressedGeoXPShape_1M() {
+    //
+    // 1M lookups in a 5km circle at R=22, GeoXPShape vs CompressedGeoXPShape
+    //
+    
+    Coverage c = GeoParser.parseCircle("48.0:-4.5:5000", 22);
+    c.optimize(0L);
+    long[] geocells = c.toGeoCells(30);
+    GeoXPShape shape = GeoXPLib.fromCells(geocells, false);
+    CompressedGeoXPShape compressed = new CompressedGeoXPShape(shape);
+    
+    Random rand = new Random(0L);
+    long[] points = new long[1000000];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = HHCodeHelper.getHHCodeValue(48.0 + (rand.nextDouble() - 0.5) / 5.0, -4.5 + (rand.nextDouble() - 0.5) / 5.0);
+    }
+    
+    System.gc();
+    long nano = System.nanoTime();
+    int raw = 0;
+    for (long point: points) {
+      if (GeoXPLib.isGeoXPPointInGeoXPShape(point, shape)) {
+        raw++;
+      }
+    }
+    long rawnano = System.nanoTime() - nano;
+    
+    System.gc();
+    nano = System.nanoTime();
+    int comp = 0;
+    for (long point: points) {
+      if (compressed.contains(point)) {
+        comp++;
+      }
+    }
+    long compnano = System.nanoTime() - nano;
+    
+    Assert.assertEquals(raw, comp);
+    
+    System.out.println("CompressedGeoXPShape cells=" + geocells.length
+        + " raw=" + (geocells.length * 8) + " bytes " + (rawnano / (double) points.length) + " ns/lookup"
+        + " compressed=" + compressed.getEncodedSize() + " bytes " + (compnano / (double) points.length) + " ns/lookup");
+  }
+  
+  @Test
+  public void testCoverageRectangleExporter_1M() throws Exception {
+    //
+    // Export 1M cells as KML and GeoJSON to a Writer which discards its input
+    //
+    
+    Coverage c = generate(1000000, false);
+    
+    Writer nullwriter = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {}
+      @Override
+      public void flush() {}
+      @Override
+      public void close() {}
+    };
+    
+    System.gc();
+    long nano = System.nanoTime();
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(nullwriter, CoverageRectangleExporter.FORMAT_KML);
+    exporter.addCoverage(c);
+    exporter.finish();
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("CoverageRectangleExporter KML " + c.getCellCount() + " cells " + exporter.getRectangleCount() + " rectangles " + (nano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    exporter = new CoverageRectangleExporter(nullwriter, CoverageRectangleExporter.FORMAT_GEOJSON);
+    exporter.addCoverage(c);
+    exporter.finish();
+    nano = System.nanoTime() - nano;
+    
+    System.out.println("CoverageRectangleExporter GeoJSON " + c.getCellCount() + " cells " + exporter.getRectangleCount() + " rectangles " + (nano / 1000000.0D) + " ms");
+  }
+  
+  @Test
+  public void testFrozenCoverage_1M() {
+    //
+    // minus/intersection of two 1M cells coverages, FrozenCoverage vs Coverage
+    //
+    
+    Coverage a = generate(1000000, false);
+    Coverage b = new Coverage();
+    
+    Random rand = new Random(1L);
+    
+    // Cells of B cover, split or are covered by cells of A
+    for (int res: a.getResolutions()) {
+      for (long hhcode: a.getCells(res)) {
+        int r = rand.nextInt(4);
+        if (0 == r) {
+          b.addCell(res - 2, hhcode);
+        } else if (1 == r) {
+          b.addCell(res + 4, hhcode | ((rand.nextLong() >>> (2 * res)) & 0xffffffffffL));
+        } else if (2 == r) {
+          b.addCell(res, hhcode);
+        }
+      }
+    }
+    
+    FrozenCoverage fa = a.freeze();
+    FrozenCoverage fb = b.freeze();
+    
+    System.gc();
+    long nano = System.nanoTime();
+    Coverage minus = Coverage.minus(a, b);
+    long coveragenano = System.nanoTime() - nano;
+    
+    System.gc();
+    nano = System.nanoTime();
+    FrozenCoverage fminus = fa.minus(fb);
+    long frozennano = System.nanoTime() - nano;
+    
+    Assert.assertEquals(minus.getCellCount(), fminus.getCellCount());
+    
+    System.out.println("minus " + fminus.getCellCount() + " cells Coverage " + (coveragenano / 1000000.0D) + " ms FrozenCoverage " + (frozennano / 1000000.0D) + " ms");
+    
+    System.gc();
+    nano = System.nanoTime();
+    Coverage intersection = Coverage.intersection(a, b);
+    coveragenano = System.nanoTime() - nano;
+    
+    System.gc();
+    nano = System.nanoTime();
+    FrozenCoverage fintersection = fa.intersection(fb);
+    frozennano = System.nanoTime() - nano;
+    
+    Assert.assertEquals(intersection.getCellCount(), fintersection.getCellCount());
+    
+    System.out.println("intersection " + fintersection.getCellCount() + " cells Coverage " + (coveragenano / 1000000.0D) + " ms FrozenCoverage " + (frozennano / 1000000.0D) + " ms");
+  }
+}
@@ -0,0 +1,245 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageHelperTestCase {
+  
+  @Test
+  public void testClusters() {
+    Coverage c = new Coverage();
+    
+    // Two adjacent cells and an isolated one
+    c.addCell(4, 0x0000000000000000L);
+    c.addCell(4, 0x0100000000000000L);
+    c.addCell(4, 0x8000000000000000L);
+    
+    List<Coverage> clusters = CoverageHelper.clusters(c);
+    
+    Assert.assertEquals(2, clusters.size());
+    Assert.assertEquals(2, clusters.get(0).getCellCount());
+    Assert.assertEquals(1, clusters.get(1).getCellCount());
+    
+    //
+    // A fine cell touching the east edge of a coarser one belongs to its cluster
+    //
+    
+    c = new Coverage();
+    long coarse = HHCodeHelper.getHHCodeValue(48.0, -4.5);
+    c.addCell(8, coarse);
+    c.addCell(16, HHCodeHelper.eastHHCode(coarse | ~Coverage.PREFIX_MASK[3], 16));
+    
+    clusters = CoverageHelper.clusters(c);
+    Assert.assertEquals(1, clusters.size());
+    Assert.assertEquals(2, clusters.get(0).getCellCount());
+  }
+  
+  @Test
+  public void testClusters_Random() {
+    Random rand = new Random(0L);
+    
+    int size = 64;
+    boolean[][] grid = new boolean[size][size];
+    
+    long lat0 = HHCodeHelper.toLongLat(48.0);
+    long lon0 = HHCodeHelper.toLongLon(-4.5);
+    long step = 1L << (HHCodeHelper.MAX_RESOLUTION - 16);
+    
+    Coverage c = new Coverage();
+    
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < size; j++) {
+        if (rand.nextInt(100) < 55) {
+          grid[i][j] = true;
+          c.addCell(16, lat0 + i * step, lon0 + j * step);
+        }
+      }
+    }
+    
+    //
+    // Compute the cluster sizes by flood filling the grid
+    //
+    
+    List<Integer> expected = new ArrayList<Integer>();
+    boolean[][] seen = new boolean[size][size];
+    int[] stack = new int[size * size];
+    
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < size; j++) {
+        if (!grid[i][j] || seen[i][j]) {
+          continue;
+        }
+        int n = 0;
+        int sp = 0;
+        stack[sp++] = i * size + j;
+        seen[i][j] = true;
+        while (sp > 0) {
+          int cur = stack[--sp];
+          int ci = cur / size;
+          int cj = cur % size;
+          n++;
+          int[][] deltas = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+          for (int[] d: deltas) {
+            int ni = ci + d[0];
+            int nj = cj + d[1];
+            if (ni >= 0 && ni < size && nj >= 0 && nj < size && grid[ni][nj] && !seen[ni][nj]) {
+              seen[ni][nj] = true;
+              stack[sp++] = ni * size + nj;
+            }
+          }
+        }
+        expected.add(n);
+      }
+    }
+    
+    List<Integer> actual = new ArrayList<Integer>();
+    
+    for (Coverage cluster: CoverageHelper.clusters(c)) {
+      actual.add(cluster.getCellCount());
+    }
+    
+    Collections.sort(expected);
+    Collections.sort(actual);
+    
+    Assert.assertEquals(expected, actual);
+  }
+  
+  /**
+   * Check if a point is inside the polygons returned by toEnvelope, using the even-odd rule
+   */
+  private static boolean inside(float[] envelope, double lat, double lon) {
+    boolean inside = false;
+    
+    for (int i = 0; i < envelope.length - 3; i += 2) {
+      if (Float.isNaN(envelope[i])) {
+        i--;
+        continue;
+      }
+      if (Float.isNaN(envelope[i + 2])) {
+        continue;
+      }
+      double lat1 = envelope[i];
+      double lon1 = envelope[i + 1];
+      double lat2 = envelope[i + 2];
+      double lon2 = envelope[i + 3];
+      
+      if ((lat1 > lat) != (lat2 > lat) && lon < lon1 + (lat - lat1) * (lon2 - lon1) / (lat2 - lat1)) {
+        inside = !inside;
+      }
+    }
+    
+    return inside;
+  }
+  
+  @Test
+  public void testToEnvelope() {
+    Coverage c = new Coverage();
+    c.addCell(2, 0x0000000000000000L);
+    
+    float[] envelope = CoverageHelper.toEnvelope(c);
+    
+    // NaN + 4 vertices + closing vertex
+    Assert.assertEquals(11, envelope.length);
+    Assert.assertTrue(Float.isNaN(envelope[0]));
+    Assert.assertEquals(envelope[1], envelope[9], 0.0F);
+    Assert.assertEquals(envelope[2], envelope[10], 0.0F);
+    
+    //
+    // Two adjacent cells give a single rectangle
+    //
+    
+    c = new Coverage();
+    c.addCell(4, 0x0000000000000000L);
+    c.addCell(4, 0x0100000000000000L);
+    
+    Assert.assertEquals(11, CoverageHelper.toEnvelope(c).length);
+    
+    //
+    // A ring of 8 cells around a hole gives two polygons
+    //
+    
+    c = new Coverage();
+    long lat0 = HHCodeHelper.toLongLat(48.0);
+    long lon0 = HHCodeHelper.toLongLon(-4.5);
+    long step = 1L << (HHCodeHelper.MAX_RESOLUTION - 16);
+    
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 3; j++) {
+        if (1 != i || 1 != j) {
+          c.addCell(16, lat0 + i * step, lon0 + j * step);
+        }
+      }
+    }
+    
+    envelope = CoverageHelper.toEnvelope(c);
+    Assert.assertEquals(22, envelope.length);
+  }
+  
+  @Test
+  public void testToEnvelope_Random() {
+    Random rand = new Random(0L);
+    
+    int size = 64;
+    boolean[][] grid = new boolean[size][size];
+    
+    long lat0 = HHCodeHelper.toLongLat(48.0) & 0xFFFFFFFFFFFF0000L;
+    long lon0 = HHCodeHelper.toLongLon(-4.5) & 0xFFFFFFFFFFFF0000L;
+    long step = 1L << (HHCodeHelper.MAX_RESOLUTION - 16);
+    
+    Coverage c = new Coverage();
+    
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < size; j++) {
+        if (rand.nextInt(100) < 50) {
+          grid[i][j] = true;
+          c.addCell(16, lat0 + i * step, lon0 + j * step);
+        }
+      }
+    }
+    
+    // Merge some cells into coarser ones so the outlines have T junctions
+    c.optimize(0L);
+    
+    float[] envelope = CoverageHelper.toEnvelope(c);
+    
+    //
+    // Check the center of each cell of the grid and around it
+    //
+    
+    for (int i = -1; i <= size; i++) {
+      for (int j = -1; j <= size; j++) {
+        double lat = HHCodeHelper.toLat(lat0 + i * step + step / 2);
+        double lon = HHCodeHelper.toLon(lon0 + j * step + step / 2);
+        boolean expected = i >= 0 && i < size && j >= 0 && j < size && grid[i][j];
+        Assert.assertEquals(i + "," + j, expected, inside(envelope, lat, lon));
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoverageRectangleExporterTestCase {
+  
+  private static final Pattern RING = Pattern.compile("\\[\\[\\[([-0-9.]+),([-0-9.]+)\\],\\[([-0-9.]+),[-0-9.]+\\],\\[[-0-9.]+,([-0-9.]+)\\]");
+  
+  /**
+   * Sum the areas (in square degrees) of the rectangles of a GeoJSON export
+   */
+  private static double area(String geojson) {
+    Matcher m = RING.matcher(geojson);
+    double area = 0.0D;
+    while (m.find()) {
+      double west = Double.parseDouble(m.group(1));
+      double south = Double.parseDouble(m.group(2));
+      double east = Double.parseDouble(m.group(3));
+      double north = Double.parseDouble(m.group(4));
+      area += (east - west) * (north - south);
+    }
+    return area;
+  }
+  
+  @Test
+  public void testGeoJSON() throws IOException {
+    Coverage c = new Coverage();
+    c.addCell(4, 0x0000000000000000L);
+    c.addCell(4, 0x0100000000000000L);
+    
+    StringWriter sw = new StringWriter();
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(sw, CoverageRectangleExporter.FORMAT_GEOJSON, 2);
+    exporter.addCoverage(c);
+    exporter.finish();
+    
+    Assert.assertEquals(1L, exporter.getRectangleCount());
+    Assert.assertEquals("{\"type\":\"MultiPolygon\",\"coordinates\":[[[[-180.00,-90.00],[-135.00,-90.00],[-135.00,-78.75],[-180.00,-78.75],[-180.00,-90.00]]]]}", sw.toString());
+    
+    sw = new StringWriter();
+    new CoverageRectangleExporter(sw, CoverageRectangleExporter.FORMAT_GEOJSON).finish();
+    Assert.assertEquals("{\"type\":\"MultiPolygon\",\"coordinates\":[]}", sw.toString());
+  }
+  
+  @Test
+  public void testKML() throws IOException {
+    Coverage c = new Coverage();
+    c.addCell(2, 0xf000000000000000L);
+    
+    StringWriter sw = new StringWriter();
+    CoverageRectangleExporter.toKML(c, sw);
+    
+    String kml = sw.toString();
+    Assert.assertTrue(kml.startsWith("<?xml"));
+    Assert.assertTrue(kml.endsWith("</kml>\n"));
+    Assert.assertTrue(kml.contains("<coordinates>90.0000000,45.0000000,0 179.9999999,45.0000000,0 179.9999999,90.0000000,0 90.0000000,90.0000000,0 90.0000000,45.0000000,0</coordinates>"));
+  }
+  
+  @Test
+  public void testMerge() throws IOException {
+    Coverage c = GeoParser.parseCircle("48.0:-4.5:5000", 22);
+    
+    long[] geocells = c.toGeoCells(30);
+    
+    double expected = 0.0D;
+    for (long geocell: geocells) {
+      double[] bbox = HHCodeHelper.getHHCodeBBox(geocell << 4, (int) ((geocell >>> 60) & 0xfL) << 1);
+      expected += (bbox[3] - bbox[1] + HHCodeHelper.DEGREES_PER_LON_UNIT) * (bbox[2] - bbox[0] + HHCodeHelper.DEGREES_PER_LAT_UNIT);
+    }
+    
+    StringWriter sw = new StringWriter();
+    CoverageRectangleExporter exporter = new CoverageRectangleExporter(sw, CoverageRectangleExporter.FORMAT_GEOJSON);
+    exporter.addGeoCells(geocells);
+    exporter.finish();
+    
+    Assert.assertTrue(exporter.getRectangleCount() < geocells.length / 2);
+    Assert.assertEquals(expected, area(sw.toString()), expected * 1e-6);
+    
+    //
+    // Same thing from an OutputStreamCoverage
+    //
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStreamCoverage osc = new OutputStreamCoverage(out);
+    for (long geocell: geocells) {
+      osc.addCell((int) ((geocell >>> 60) & 0xfL) << 1, geocell << 4);
+    }
+    osc.close();
+    
+    sw = new StringWriter();
+    exporter = new CoverageRectangleExporter(sw, CoverageRectangleExporter.FORMAT_GEOJSON);
+    exporter.addCells(new ByteArrayInputStream(out.toByteArray()));
+    exporter.finish();
+    
+    Assert.assertTrue(exporter.getRectangleCount() < geocells.length / 2);
+    Assert.assertEquals(expected, area(sw.toString()), expected * 1e-6);
+  }
+  
+  @Test
+  public void testCoverageHelper() throws IOException {
+    Coverage c = new Coverage();
+    c.addCell(4, 0x0000000000000000L);
+    c.addCell(4, 0x0100000000000000L);
+    c.addCell(2, 0x0000000000000000L);
+    
+    // The R4 cells are within the R2 cell, the outline of the cluster is that of the R2 cell
+    Assert.assertEquals("{\"type\":\"MultiPolygon\",\"coordinates\":[[[[-180.0,-90.0],[-90.0,-90.0],[-90.0,-45.0],[-180.0,-45.0],[-180.0,-90.0]]]]}", CoverageHelper.toGeoJSON(c));
+    // The coverage is left untouched
+    Assert.assertEquals(3, c.getCellCount());
+    
+    // Adjacent cells are dissolved into a single ring
+    c = new Coverage();
+    c.addCell(4, 0x0000000000000000L);
+    c.addCell(4, 0x0100000000000000L);
+    Assert.assertEquals("{\"type\":\"MultiPolygon\",\"coordinates\":[[[[-180.0,-90.0],[-135.0,-90.0],[-135.0,-78.75],[-180.0,-78.75],[-180.0,-90.0]]]]}", CoverageHelper.toGeoJSON(c));
+    
+    StringWriter sw = new StringWriter();
+    CoverageHelper.toKML(c, sw, false);
+    Assert.assertTrue(sw.toString().contains("<outline>0</outline>"));
+    Assert.assertTrue(sw.toString().endsWith("</kml>\n"));
+  }
+}
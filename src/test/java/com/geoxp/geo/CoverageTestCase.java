@@ -28,7 +28,12 @@ import java.io.FileWriter;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -96,6 +101,101 @@ public class CoverageTestCase extends TestCase {
     assertEquals("a", coverage.toString());
   }
 
+  @Test
+  public void testOptimize_LastCell() {
+    //
+    // 15 children of cell '0' followed by a single child of cell '1',
+    // neither '0' nor '1' should be merged.
+    //
+    
+    Coverage coverage = new Coverage();
+    for (long i = 1; i < 16; i++) {
+      coverage.addCell(4, i << 56);
+    }
+    coverage.addCell(4, 0x1000000000000000L);
+    
+    coverage.optimize(0L);
+    
+    assertEquals(16, coverage.getCellCount());
+    assertEquals(1, coverage.getResolutions().size());
+    assertTrue(coverage.getResolutions().contains(4));
+    
+    coverage.addCell(4, 0L);
+    coverage.optimize(0L);
+    
+    assertEquals(2, coverage.getCellCount());
+    assertTrue(coverage.getResolutions().contains(2));
+  }
+  
+  @Test
+  public void testDedup() {
+    Random rand = new Random(0L);
+    
+    Coverage coverage = new Coverage();
+    
+    //
+    // Add random cells sharing a common prefix so some are covered by others,
+    // including cells with the sign bit set
+    //
+    
+    for (int i = 0; i < 20000; i++) {
+      long prefix = 0 == (i & 1) ? 0x1230000000000000L : 0xf120000000000000L;
+      coverage.addCell(2 + (rand.nextInt(16) << 1), prefix | (rand.nextLong() >>> 12));
+    }
+    
+    //
+    // Compute the expected result by checking every coarser resolution
+    //
+    
+    Set<String> expected = new HashSet<String>();
+    
+    for (int res: coverage.getResolutions()) {
+      for (long hhcode: coverage.getCells(res)) {
+        boolean covered = false;
+        for (int rr = 0; rr < (res >> 1) - 1; rr++) {
+          if (coverage.getCells((rr + 1) << 1).contains(hhcode & Coverage.PREFIX_MASK[rr])) {
+            covered = true;
+            break;
+          }
+        }
+        if (!covered) {
+          expected.add(res + ":" + hhcode);
+        }
+      }
+    }
+    
+    coverage.dedup();
+    
+    Set<String> actual = new HashSet<String>();
+    
+    for (int res: coverage.getResolutions()) {
+      for (long hhcode: coverage.getCells(res)) {
+        actual.add(res + ":" + hhcode);
+      }
+    }
+    
+    assertTrue(expected.size() < 20000);
+    assertEquals(expected, actual);
+  }
+  
+  @Test
+  public void testRadixSort() {
+    Random rand = new Random(0L);
+    
+    for (int r = 0; r < 16; r++) {
+      for (int n: new int[] { 0, 10, 1000, 100000 }) {
+        long[] cells = new long[n];
+        for (int i = 0; i < n; i++) {
+          cells[i] = rand.nextLong() & Coverage.PREFIX_MASK[r];
+        }
+        long[] expected = Arrays.copyOf(cells, n);
+        Arrays.sort(expected);
+        Coverage.radixSort(cells, r);
+        assertTrue(Arrays.equals(expected, cells));
+      }
+    }
+  }
+  
   @Test
   public void testPrune() {
     Coverage coverage = new Coverage();
@@ -131,6 +231,32 @@ public class CoverageTestCase extends TestCase {
     Assert.assertEquals(0, coverage.getCellCount());
   }
   
+  @Test
+  public void testCardinalities() {
+    Coverage coverage = new Coverage();
+    
+    Assert.assertTrue(coverage.getCardinalities().isEmpty());
+    Assert.assertEquals(0, coverage.getCellCount(8));
+    Assert.assertEquals(0, coverage.getMeanResolution());
+    
+    coverage.addCell(4, 0x0000000000000000L);
+    coverage.addCell(8, 0x1000000000000000L);
+    coverage.addCell(8, 0x1100000000000000L);
+    
+    Map<Integer,Integer> cardinalities = coverage.getCardinalities();
+    
+    Assert.assertEquals(2, cardinalities.size());
+    Assert.assertEquals(1, cardinalities.get(4).intValue());
+    Assert.assertEquals(2, cardinalities.get(8).intValue());
+    Assert.assertEquals(3, coverage.getCellCount());
+    Assert.assertEquals(0, coverage.getCellCount(6));
+    
+    coverage.removeCell(4, 0x0000000000000000L);
+    
+    Assert.assertEquals(1, coverage.getCardinalities().size());
+    Assert.assertEquals(8, coverage.getMeanResolution());
+  }
+  
   @Test
   public void testArea() {
     Coverage coverage = new Coverage();
@@ -525,6 +651,58 @@ public class CoverageTestCase extends TestCase {
     Assert.assertEquals(0, c.getCellCount());    
   }
 
+  @Test
+  public void testIntersectionMinus_MixedResolutions() {
+    //
+    // Intersect/subtract a fine circle with the R=4 cell which contains it and
+    // with a mix of coarse and fine cells
+    //
+    
+    Coverage circle = GeoParser.parseCircle("48.0:-4.5:1000", 22);
+    
+    long center = HHCodeHelper.getHHCodeValue(48.0, -4.5);
+    
+    Coverage a = new Coverage();
+    a.addCell(4, center);
+    a.addCell(2, 0xf000000000000000L);
+    
+    Coverage b = circle.deepCopy();
+    b.addCell(20, HHCodeHelper.getHHCodeValue(48.1, -4.6));
+    
+    int hca = a.hashCode();
+    int hcb = b.hashCode();
+    
+    Coverage inter = Coverage.intersection(a, b);
+    Coverage diff = Coverage.minus(b, a);
+    Coverage diff2 = Coverage.minus(a, b);
+    
+    // Check that a and b were not altered
+    Assert.assertEquals(hca, a.hashCode());
+    Assert.assertEquals(hcb, b.hashCode());
+    
+    // The result only contains the cells of b, nothing was split
+    Assert.assertEquals(b.getCellCount(), inter.getCellCount());
+    Assert.assertEquals(0, diff.getCellCount());
+    
+    // Splitting is limited to the path to the cells of b
+    Assert.assertTrue(diff2.getCellCount() < b.getCellCount() * 16);
+    
+    long[] ga = a.toGeoCells(32);
+    long[] gb = b.toGeoCells(32);
+    long[] ginter = inter.toGeoCells(32);
+    long[] gdiff2 = diff2.toGeoCells(32);
+    
+    Random rand = new Random(0L);
+    
+    for (int i = 0; i < 100000; i++) {
+      long hhcode = HHCodeHelper.getHHCodeValue(48.0 + (rand.nextDouble() - 0.5) / 10.0, -4.5 + (rand.nextDouble() - 0.5) / 10.0);
+      boolean ina = Coverage.contains(ga, hhcode);
+      boolean inb = Coverage.contains(gb, hhcode);
+      Assert.assertEquals(ina && inb, Coverage.contains(ginter, hhcode));
+      Assert.assertEquals(ina && !inb, Coverage.contains(gdiff2, hhcode));
+    }
+  }
+  
   @Test
   public void testDummy() {
     Coverage a = new Coverage();
@@ -553,6 +731,104 @@ public class CoverageTestCase extends TestCase {
     }
   }
   
+  @Test
+  public void testReduce_Budget() {
+    Random rand = new Random(0L);
+    
+    Coverage a = new Coverage();
+    
+    long base = HHCodeHelper.getHHCodeValue(48.0, -4.5) & Coverage.PREFIX_MASK[3];
+    
+    for (int i = 0; i < 5000; i++) {
+      int res = 12 + 2 * rand.nextInt(6);
+      a.addCell(res, base | (rand.nextLong() >>> 16));
+    }
+    
+    for (int count: new int[] { 4000, 1000, 100, 10, 1 }) {
+      Coverage reduced = a.deepCopy();
+      reduced.reduce(count);
+      
+      Assert.assertTrue(reduced.getCellCount() <= count);
+      // The reduced coverage must include the original one
+      Assert.assertEquals(0, Coverage.minus(a, reduced).getCellCount());
+    }
+  }
+  
+  @Test
+  public void testToGeoCells_Buffer() {
+    Random rand = new Random(0L);
+    
+    Coverage c = new Coverage();
+    
+    for (int i = 0; i < 10000; i++) {
+      c.addCell(2 + 2 * rand.nextInt(16), rand.nextLong());
+    }
+    
+    //
+    // Build the expected GeoCells by hand
+    //
+    
+    long[] expected = new long[c.getCellCount() - c.getCellCount(32)];
+    int idx = 0;
+    
+    for (int res = 2; res < 32; res += 2) {
+      for (long hhcode: c.getCells(res)) {
+        expected[idx++] = HHCodeHelper.toGeoCell(hhcode, res);
+      }
+    }
+    
+    Arrays.sort(expected);
+    
+    Assert.assertTrue(Arrays.equals(expected, c.toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(expected, c.freeze().toGeoCells(32)));
+    
+    long[] buffer = new long[expected.length + 3];
+    Assert.assertEquals(expected.length, c.toGeoCells(32, buffer, 2));
+    Assert.assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buffer, 2, 2 + expected.length)));
+    
+    LongBuffer lb = LongBuffer.allocate(expected.length + 1);
+    lb.put(42L);
+    Assert.assertEquals(expected.length, c.toGeoCells(30, lb));
+    Assert.assertTrue(Arrays.equals(expected, Arrays.copyOfRange(lb.array(), 1, 1 + expected.length)));
+    
+    // Finest resolution is honored
+    long[] coarse = c.toGeoCells(14);
+    Assert.assertEquals(c.getCellCount(2) + c.getCellCount(4) + c.getCellCount(6) + c.getCellCount(8) + c.getCellCount(10) + c.getCellCount(12) + c.getCellCount(14), coarse.length);
+    Assert.assertTrue(Arrays.equals(coarse, c.freeze().toGeoCells(14)));
+  }
+  
+  @Test
+  public void testBulkConstruction() {
+    Random rand = new Random(0L);
+    
+    long[] geocells = new long[10000];
+    
+    for (int i = 0; i < geocells.length; i++) {
+      if (i > 0 && 0 == i % 100) {
+        // Add some duplicates
+        geocells[i] = geocells[i - 1];
+      } else {
+        geocells[i] = HHCodeHelper.toGeoCell(rand.nextLong(), 2 + 2 * rand.nextInt(15));
+      }
+    }
+    
+    // Geocells with a resolution of 0 are ignored
+    geocells[42] = 0x0123456789abcdefL;
+    
+    Coverage expected = new Coverage();
+    
+    for (long geocell: geocells) {
+      expected.addCell((int) (geocell >>> 59), geocell << 4);
+    }
+    
+    long[] sorted = expected.toGeoCells(30);
+    
+    Assert.assertTrue(Arrays.equals(sorted, new Coverage(geocells).toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(sorted, new Coverage(geocells, true).toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(sorted, CoverageHelper.fromGeoCells(geocells, false).toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(sorted, new Coverage(sorted).toGeoCells(30)));
+  }
+  
   @Test
   public void testContains() throws Exception {
     
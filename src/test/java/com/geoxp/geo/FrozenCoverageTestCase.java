@@ -0,0 +1,207 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrozenCoverageTestCase {
+  
+  private static Coverage random(long seed, int count) {
+    Random rand = new Random(seed);
+    
+    Coverage c = new Coverage();
+    
+    long base = HHCodeHelper.getHHCodeValue(48.0, -4.5) & Coverage.PREFIX_MASK[3];
+    
+    for (int i = 0; i < count; i++) {
+      c.addCell(12 + 2 * rand.nextInt(6), base | (rand.nextLong() >>> 16));
+    }
+    
+    return c;
+  }
+  
+  @Test
+  public void testFreeze() {
+    Coverage c = random(0L, 1000);
+    
+    FrozenCoverage frozen = c.freeze();
+    
+    Assert.assertEquals(c.getCellCount(), frozen.getCellCount());
+    Assert.assertEquals(c.area(), frozen.area());
+    Assert.assertEquals(c.getResolutions(), frozen.getResolutions());
+    Assert.assertTrue(Arrays.equals(c.toGeoCells(30), frozen.toGeoCells(30)));
+    
+    for (int res = 2; res <= 32; res += 2) {
+      Assert.assertEquals(c.getCellCount(res), frozen.getCellCount(res));
+    }
+    
+    Random rand = new Random(1L);
+    
+    for (int i = 0; i < 10000; i++) {
+      long hhcode = HHCodeHelper.getHHCodeValue(48.0, -4.5) & Coverage.PREFIX_MASK[3] | (rand.nextLong() >>> 16);
+      int res = 2 + 2 * rand.nextInt(16);
+      Assert.assertEquals(c.contains(res, hhcode), frozen.contains(res, hhcode));
+      Assert.assertEquals(c.includes(hhcode), frozen.includes(hhcode));
+    }
+    
+    //
+    // Changes to the coverage are not visible in the snapshot
+    //
+    
+    long[] geocells = frozen.toGeoCells(30);
+    
+    c.optimize(0x0000000000aaaaaaL);
+    c.addCell(2, 0x0L);
+    
+    Assert.assertTrue(Arrays.equals(geocells, frozen.toGeoCells(30)));
+    
+    //
+    // Nor are changes to thawed copies or returned arrays
+    //
+    
+    Coverage thawed = frozen.thaw();
+    Assert.assertTrue(Arrays.equals(geocells, thawed.toGeoCells(30)));
+    thawed.addCell(2, 0x0L);
+    frozen.getCells(12)[0] = 0L;
+    
+    Assert.assertTrue(Arrays.equals(geocells, frozen.toGeoCells(30)));
+  }
+  
+  @Test
+  public void testDerive() {
+    Coverage a = random(0L, 1000);
+    Coverage b = random(1L, 1000);
+    b.addCell(2, 0x0L);
+    
+    FrozenCoverage fa = a.freeze();
+    FrozenCoverage fb = b.freeze();
+    
+    Coverage merged = a.deepCopy();
+    merged.merge(b);
+    Assert.assertTrue(Arrays.equals(merged.toGeoCells(30), fa.merge(fb).toGeoCells(30)));
+    
+    Assert.assertTrue(Arrays.equals(Coverage.minus(a, b).toGeoCells(30), fa.minus(fb).toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(Coverage.intersection(a, b).toGeoCells(30), fa.intersection(fb).toGeoCells(30)));
+    
+    Coverage optimized = a.deepCopy();
+    optimized.optimize(0x0000000000aaaaaaL);
+    Assert.assertTrue(Arrays.equals(optimized.toGeoCells(30), fa.optimize(0x0000000000aaaaaaL).toGeoCells(30)));
+    
+    Coverage reduced = a.deepCopy();
+    reduced.reduce(100);
+    Assert.assertTrue(Arrays.equals(reduced.toGeoCells(30), fa.reduce(100).toGeoCells(30)));
+    
+    // The source snapshots are left untouched
+    Assert.assertTrue(Arrays.equals(a.toGeoCells(30), fa.toGeoCells(30)));
+    Assert.assertTrue(Arrays.equals(b.toGeoCells(30), fb.toGeoCells(30)));
+  }
+  
+  @Test
+  public void testMinusIntersection_Nested() {
+    for (long seed = 0L; seed < 10L; seed++) {
+      Random rand = new Random(seed);
+      
+      Coverage a = random(seed, 200);
+      Coverage b = random(seed + 100L, 200);
+      
+      //
+      // Add to A and B ancestors and descendants of cells of the other, so cells
+      // get covered, split, and A contains nested cells
+      //
+      
+      long[] geocells = a.toGeoCells(30);
+      
+      for (int i = 0; i < 100; i++) {
+        long geocell = geocells[rand.nextInt(geocells.length)];
+        int res = (int) (geocell >>> 60) << 1;
+        long hhcode = geocell << 4;
+        
+        if (rand.nextBoolean() && res > 2) {
+          b.addCell(res - 2 * (1 + rand.nextInt(Math.min(3, res / 2 - 1))), hhcode);
+        } else if (res < 30) {
+          int finer = res + 2 * (1 + rand.nextInt(Math.min(3, (30 - res) / 2)));
+          long sub = hhcode | ((rand.nextLong() >>> res) & ~Coverage.PREFIX_MASK[(res >> 1) - 1]);
+          b.addCell(finer, sub);
+          a.addCell(finer, sub ^ (1L << (64 - 2 * finer)));
+        }
+      }
+      
+      FrozenCoverage fa = a.freeze();
+      FrozenCoverage fb = b.freeze();
+      
+      Assert.assertTrue(Arrays.equals(Coverage.minus(a, b).toGeoCells(30), fa.minus(fb).toGeoCells(30)));
+      Assert.assertTrue(Arrays.equals(Coverage.minus(b, a).toGeoCells(30), fb.minus(fa).toGeoCells(30)));
+      Assert.assertTrue(Arrays.equals(Coverage.intersection(a, b).toGeoCells(30), fa.intersection(fb).toGeoCells(30)));
+      
+      Assert.assertEquals(0, fa.minus(fa).getCellCount());
+      Assert.assertTrue(Arrays.equals(fa.toGeoCells(30), fa.intersection(fa).toGeoCells(30)));
+      Assert.assertEquals(0, fa.intersection(new FrozenCoverage(new long[16][])).getCellCount());
+    }
+  }
+  
+  @Test
+  public void testFromGeoCells() {
+    Random rand = new Random(0L);
+    
+    Coverage c = random(0L, 10000);
+    
+    for (int i = 0; i < 1000; i++) {
+      c.addCell(2 + 2 * rand.nextInt(15), rand.nextLong());
+    }
+    
+    long[] geocells = c.toGeoCells(30);
+    
+    Assert.assertTrue(Arrays.equals(geocells, FrozenCoverage.fromGeoCells(geocells).toGeoCells(30)));
+    Assert.assertEquals(c.getCellCount() - c.getCellCount(32), FrozenCoverage.fromGeoCells(geocells).getCellCount());
+    
+    //
+    // Shuffle the geocells and add duplicates
+    //
+    
+    long[] shuffled = Arrays.copyOf(geocells, geocells.length + 100);
+    
+    for (int i = geocells.length; i < shuffled.length; i++) {
+      shuffled[i] = geocells[rand.nextInt(geocells.length)];
+    }
+    
+    for (int i = shuffled.length - 1; i > 0; i--) {
+      int j = rand.nextInt(i + 1);
+      long tmp = shuffled[i];
+      shuffled[i] = shuffled[j];
+      shuffled[j] = tmp;
+    }
+    
+    FrozenCoverage frozen = FrozenCoverage.fromGeoCells(shuffled);
+    
+    Assert.assertTrue(Arrays.equals(geocells, frozen.toGeoCells(30)));
+    Assert.assertEquals(geocells.length, frozen.getCellCount());
+    
+    for (long geocell: geocells) {
+      Assert.assertTrue(frozen.contains((int) (geocell >>> 59), geocell << 4));
+    }
+  }
+}
@@ -0,0 +1,132 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.geoxp.geo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib;
+
+public class GeoCellCodecTestCase {
+  
+  private static long[] circle(int resolution) {
+    Coverage c = GeoParser.parseCircle("48.0:-4.5:5000", resolution);
+    c.optimize(0L);
+    return c.toGeoCells(30);
+  }
+  
+  @Test
+  public void testEncode() throws IOException {
+    Random rand = new Random(0L);
+    long[] geocells = new long[10000];
+    for (int i = 0; i < geocells.length; i++) {
+      geocells[i] = HHCodeHelper.toGeoCell(rand.nextLong(), 2 + (rand.nextInt(15) << 1));
+    }
+    
+    long[] sorted = Arrays.copyOf(geocells, geocells.length);
+    Arrays.sort(sorted);
+    
+    Assert.assertArrayEquals(sorted, GeoCellCodec.decode(GeoCellCodec.encode(geocells)));
+    
+    // Extreme cells
+    long[] extremes = new long[] { 0x1000000000000000L, 0x1f00000000000000L, 0xf000000000000000L, 0xffffffffffffffffL, 0x8fffffff00000000L };
+    Arrays.sort(extremes);
+    Assert.assertArrayEquals(extremes, GeoCellCodec.decode(GeoCellCodec.encode(extremes)));
+    
+    Assert.assertArrayEquals(new long[0], GeoCellCodec.decode(GeoCellCodec.encode(new long[0])));
+  }
+  
+  @Test
+  public void testDecoder_Stream() throws IOException {
+    long[] geocells = circle(22);
+    
+    //
+    // Return at most 3 bytes per read to exercise buffer refills
+    //
+    
+    InputStream in = new ByteArrayInputStream(GeoCellCodec.encode(geocells)) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(3, len));
+      }
+    };
+    
+    GeoCellCodec.Decoder decoder = new GeoCellCodec.Decoder(in);
+    Assert.assertEquals(geocells.length, decoder.getCount());
+    
+    int idx = 0;
+    while (decoder.hasNext()) {
+      Assert.assertEquals(geocells[idx++], decoder.next());
+    }
+    Assert.assertEquals(geocells.length, idx);
+  }
+  
+  @Test
+  public void testDecode_Truncated() {
+    byte[] encoded = GeoCellCodec.encode(circle(20));
+    
+    try {
+      GeoCellCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+    
+    encoded[0] = 0;
+    
+    try {
+      GeoCellCodec.decode(encoded);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+  
+  @Test
+  public void testDecode_CorruptCount() {
+    //
+    // Version followed by a count of Integer.MAX_VALUE and no cells
+    //
+    
+    byte[] encoded = new byte[1 + 5];
+    encoded[0] = GeoCellCodec.encode(new long[0])[0];
+    GeoCellCodec.putVarLong(encoded, 1, Integer.MAX_VALUE);
+    
+    try {
+      GeoCellCodec.decode(encoded);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+  
+  @Test
+  public void testCompressGeoXPShape() throws IOException {
+    long[] geocells = circle(22);
+    byte[] compressed = GeoXPLib.compressGeoXPShape(GeoXPLib.fromCells(geocells, false));
+    Assert.assertArrayEquals(geocells, GeoXPLib.getCells(GeoXPLib.decompressGeoXPShape(compressed)));
+  }
+}
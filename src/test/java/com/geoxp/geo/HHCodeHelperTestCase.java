@@ -21,11 +21,16 @@
 
 package com.geoxp.geo;
 
+import gnu.trove.list.array.TLongArrayList;
+
 import java.io.FileWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
@@ -720,6 +725,496 @@ public class HHCodeHelperTestCase extends TestCase {
     }
   }
   
+  @Test
+  public void testCoverCorridor() {
+    Random rand = new Random(42L);
+
+    //
+    // Random track of 500m legs around 48N
+    //
+
+    int nvertices = 50;
+
+    long[] lats = new long[nvertices];
+    long[] lons = new long[nvertices];
+
+    double lat = 48.0D;
+    double lon = -4.5D;
+
+    for (int i = 0; i < nvertices; i++) {
+      lats[i] = HHCodeHelper.toLongLat(lat);
+      lons[i] = HHCodeHelper.toLongLon(lon);
+      double heading = rand.nextDouble() * 2.0D * Math.PI;
+      lat += Math.cos(heading) * 500.0D / 1852.0D / 60.0D;
+      lon += Math.sin(heading) * 500.0D / 1852.0D / 60.0D / Math.cos(Math.toRadians(48.0D));
+    }
+
+    double distance = 100.0D;
+    int resolution = 20;
+
+    Coverage coverage = HHCodeHelper.coverCorridor(lats, lons, distance, resolution, new Coverage());
+
+    Assert.assertEquals(coverage.getCellCount(), coverage.getCells(resolution).size());
+
+    //
+    // All points within 'distance' of the track are covered
+    //
+
+    long minLat = Long.MAX_VALUE;
+    long minLon = Long.MAX_VALUE;
+    long maxLat = Long.MIN_VALUE;
+    long maxLon = Long.MIN_VALUE;
+
+    for (int i = 0; i < nvertices; i++) {
+      minLat = Math.min(minLat, lats[i]);
+      minLon = Math.min(minLon, lons[i]);
+      maxLat = Math.max(maxLat, lats[i]);
+      maxLon = Math.max(maxLon, lons[i]);
+    }
+
+    int inside = 0;
+
+    for (int i = 0; i < 100000; i++) {
+      long plat = minLat - 100000L + (long) (rand.nextDouble() * (maxLat - minLat + 200000L));
+      long plon = minLon - 100000L + (long) (rand.nextDouble() * (maxLon - minLon + 200000L));
+
+      if (trackDistance(lats, lons, plat, plon) < distance * 0.999D) {
+        inside++;
+        Assert.assertTrue(coverage.contains(resolution, HHCodeHelper.buildHHCode(plat, plon, HHCodeHelper.MAX_RESOLUTION)));
+      }
+    }
+
+    Assert.assertTrue(inside > 0);
+
+    //
+    // No cell is further than 'distance' plus the cell diagonal from the track
+    //
+
+    long cellsize = 1L << (HHCodeHelper.MAX_RESOLUTION - resolution);
+    double diagonal = Math.sqrt(Math.pow(cellsize * HHCodeHelper.metersPerLatUnit, 2.0D) + Math.pow(cellsize * HHCodeHelper.metersPerLonUnit * Math.cos(Math.toRadians(48.0D)), 2.0D));
+
+    for (long cell: coverage.getCells(resolution)) {
+      long[] coords = HHCodeHelper.splitHHCode(cell, HHCodeHelper.MAX_RESOLUTION);
+      Assert.assertTrue(trackDistance(lats, lons, coords[0] + cellsize / 2, coords[1] + cellsize / 2) <= distance + diagonal / 2.0D);
+    }
+
+    //
+    // Per segment distances, segments with a distance of 0 are ignored
+    //
+
+    double[] distances = new double[nvertices - 1];
+    distances[0] = distance;
+
+    coverage = HHCodeHelper.coverCorridor(lats, lons, distances, resolution, new Coverage());
+    Coverage segment = HHCodeHelper.coverCorridor(new long[] { lats[0], lats[1] }, new long[] { lons[0], lons[1] }, distance, resolution, new Coverage());
+
+    Assert.assertEquals(segment.getCells(resolution), coverage.getCells(resolution));
+  }
+
+  @Test
+  public void testCoverCorridorIDL() {
+    //
+    // Track along the antimeridian and the same track shifted by 180 degrees
+    //
+
+    long[] lats = new long[] { HHCodeHelper.toLongLat(10.0D), HHCodeHelper.toLongLat(10.1D), HHCodeHelper.toLongLat(10.2D) };
+    long[] lons = new long[] { HHCodeHelper.toLongLon(179.99D), HHCodeHelper.toLongLon(179.995D), HHCodeHelper.toLongLon(179.99D) };
+    long[] shifted = new long[lons.length];
+
+    for (int i = 0; i < lons.length; i++) {
+      shifted[i] = lons[i] - (1L << 31);
+    }
+
+    int resolution = 20;
+
+    Coverage coverage = HHCodeHelper.coverCorridor(lats, lons, 5000.0D, resolution, new Coverage());
+    Coverage reference = HHCodeHelper.coverCorridor(lats, shifted, 5000.0D, resolution, new Coverage());
+
+    Assert.assertEquals(reference.getCellCount(), coverage.getCellCount());
+
+    // The part of the corridor past the antimeridian is covered
+    Assert.assertTrue(coverage.contains(resolution, HHCodeHelper.getHHCodeValue(10.1D, -179.99D)));
+
+    for (long cell: reference.getCells(resolution)) {
+      long[] coords = HHCodeHelper.splitHHCode(cell, HHCodeHelper.MAX_RESOLUTION);
+      Assert.assertTrue(coverage.contains(resolution, HHCodeHelper.buildHHCode(coords[0], (coords[1] + (1L << 31)) & 0xffffffffL, HHCodeHelper.MAX_RESOLUTION)));
+    }
+  }
+
+  @Test
+  public void testArrayVertices() {
+    Random rand = new Random(0L);
+
+    int n = 40;
+
+    List<Long> lats = new ArrayList<Long>();
+    List<Long> lons = new ArrayList<Long>();
+
+    // Pad the arrays on both sides to exercise 'offset'
+    long[] latArray = new long[n + 5];
+    long[] lonArray = new long[n + 5];
+
+    for (int i = 0; i < n; i++) {
+      double angle = 2.0D * Math.PI * i / n;
+      double radius = 0.5D + rand.nextDouble();
+      lats.add(HHCodeHelper.toLongLat(48.0D + radius * Math.sin(angle)));
+      lons.add(HHCodeHelper.toLongLon(-4.5D + radius * Math.cos(angle)));
+      latArray[i + 2] = lats.get(i);
+      lonArray[i + 2] = lons.get(i);
+    }
+
+    Assert.assertArrayEquals(HHCodeHelper.getBoundingBox(lats, lons), HHCodeHelper.getBoundingBox(latArray, lonArray, 2, n));
+
+    for (int resolution: new int[] { 0, -2, 14, 18 }) {
+      Coverage expected = HHCodeHelper.coverPolygon(lats, lons, resolution);
+      Coverage actual = HHCodeHelper.coverPolygon(latArray, lonArray, 2, n, resolution, new Coverage(), null, false);
+      Assert.assertEquals(expected.getCellCount(), actual.getCellCount());
+      Assert.assertEquals(0, Coverage.minus(expected, actual).getCellCount());
+
+      expected = HHCodeHelper.coverPolyline(lats, lons, resolution, false, false);
+      actual = HHCodeHelper.coverPolyline(latArray, lonArray, 2, n, resolution, false, false, new Coverage(), null, false);
+      Assert.assertEquals(expected.getCellCount(), actual.getCellCount());
+      Assert.assertEquals(0, Coverage.minus(expected, actual).getCellCount());
+    }
+
+    //
+    // Resampling
+    //
+
+    List<Long> nodes = new ArrayList<Long>();
+    long[] nodeArray = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      nodeArray[i] = HHCodeHelper.buildHHCode(lats.get(i / 4), lons.get(i / 4), HHCodeHelper.MAX_RESOLUTION);
+      nodes.add(nodeArray[i]);
+    }
+
+    List<Long> resampled = HHCodeHelper.resamplePolyline(nodes, 20);
+    long[] resampledArray = HHCodeHelper.resamplePolyline(nodeArray, 0, n, 20);
+
+    Assert.assertEquals(n / 4, resampledArray.length);
+    Assert.assertEquals(resampled.size(), resampledArray.length);
+
+    for (int i = 0; i < resampledArray.length; i++) {
+      Assert.assertEquals(resampled.get(i).longValue(), resampledArray[i]);
+    }
+
+    //
+    // Orthodromization appends to the given list
+    //
+
+    long fromLat = HHCodeHelper.toLongLat(48.0D);
+    long fromLon = HHCodeHelper.toLongLon(-4.5D);
+    long toLat = HHCodeHelper.toLongLat(40.7D);
+    long toLon = HHCodeHelper.toLongLon(-74.0D);
+
+    List<Long> orthodromy = HHCodeHelper.orthodromize(fromLat, fromLon, toLat, toLon, 1.0001D);
+
+    TLongArrayList coords = new TLongArrayList();
+    coords.add(42L);
+    HHCodeHelper.orthodromize(fromLat, fromLon, toLat, toLon, 1.0001D, coords);
+
+    Assert.assertTrue(orthodromy.size() > 4);
+    Assert.assertEquals(orthodromy.size() + 1, coords.size());
+    Assert.assertEquals(42L, coords.get(0));
+
+    for (int i = 0; i < orthodromy.size(); i++) {
+      Assert.assertEquals(orthodromy.get(i).longValue(), coords.get(i + 1));
+    }
+  }
+
+  @Test
+  public void testCellSink() {
+    final Set<Long> cells = new HashSet<Long>();
+    final int[] count = new int[1];
+
+    CellSink sink = new CellSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        Assert.assertEquals(18, resolution);
+        cells.add(hhcode);
+        count[0]++;
+      }
+    };
+
+    long[] lats = new long[] { HHCodeHelper.toLongLat(47.5D), HHCodeHelper.toLongLat(48.5D), HHCodeHelper.toLongLat(48.0D) };
+    long[] lons = new long[] { HHCodeHelper.toLongLon(-5.0D), HHCodeHelper.toLongLon(-4.5D), HHCodeHelper.toLongLon(-3.5D) };
+
+    Assert.assertSame(sink, HHCodeHelper.coverPolygon(lats, lons, 18, sink));
+
+    Coverage coverage = HHCodeHelper.coverPolygon(lats, lons, 18, new Coverage());
+
+    Assert.assertTrue(count[0] >= cells.size());
+    Assert.assertEquals(coverage.getCells(18), cells);
+
+    //
+    // Cells are filtered by 'geocells' before reaching the sink
+    //
+
+    long[] geocells = new long[] { HHCodeHelper.toGeoCell(HHCodeHelper.buildHHCode(lats[0], lons[0], HHCodeHelper.MAX_RESOLUTION), 10) };
+
+    cells.clear();
+    HHCodeHelper.coverPolyline(lats, lons, 0, lats.length, 18, false, false, sink, geocells, false);
+    coverage = HHCodeHelper.coverPolyline(lats, lons, 0, lats.length, 18, false, false, new Coverage(), geocells, false);
+
+    Assert.assertFalse(cells.isEmpty());
+    Assert.assertEquals(coverage.getCells(18), cells);
+
+    for (long cell: cells) {
+      Assert.assertTrue(Coverage.contains(geocells, cell));
+    }
+
+    cells.clear();
+    HHCodeHelper.coverCorridor(lats, lons, 1000.0D, 18, sink);
+    Assert.assertEquals(HHCodeHelper.coverCorridor(lats, lons, 1000.0D, 18, new Coverage()).getCells(18), cells);
+  }
+
+  @Test
+  public void testCellRunSink() {
+    final Set<Long> cells = new HashSet<Long>();
+    final long[] runs = new long[1];
+
+    CellRunSink sink = new CellRunSink() {
+      @Override
+      public void accept(int resolution, long hhcode) {
+        cells.add(hhcode);
+      }
+      @Override
+      public void acceptRun(int resolution, long lat, long fromLon, long toLon) {
+        Assert.assertTrue(lat >= 0 && lat < (1L << 32));
+        Assert.assertTrue(fromLon >= 0 && fromLon <= toLon && toLon < (1L << 32));
+        runs[0]++;
+        for (long lon = fromLon; lon <= toLon; lon += 1L << (32 - resolution)) {
+          cells.add(HHCodeHelper.buildHHCode(lat, lon, 32) & Coverage.PREFIX_MASK[(resolution >> 1) - 1]);
+        }
+      }
+    };
+
+    //
+    // Polygon crossing the IDL
+    //
+
+    long[] lats = new long[] { HHCodeHelper.toLongLat(10.0D), HHCodeHelper.toLongLat(12.0D), HHCodeHelper.toLongLat(11.0D), HHCodeHelper.toLongLat(9.0D) };
+    long[] lons = new long[] { HHCodeHelper.toLongLon(178.0D), HHCodeHelper.toLongLon(179.0D), HHCodeHelper.toLongLon(181.5D), HHCodeHelper.toLongLon(180.5D) };
+    lons[2] += 1L << 32;
+    lons[3] += 1L << 32;
+
+    HHCodeHelper.coverPolygon(lats, lons, 14, sink);
+    Coverage coverage = HHCodeHelper.coverPolygon(lats, lons, 14, new Coverage());
+
+    Assert.assertTrue(runs[0] > 0);
+    Assert.assertTrue(runs[0] < cells.size());
+    Assert.assertEquals(coverage.getCells(14), cells);
+
+    //
+    // Corridor rows are emitted as runs too
+    //
+
+    cells.clear();
+    runs[0] = 0;
+
+    HHCodeHelper.coverCorridor(lats, lons, 5000.0D, 16, sink);
+    Assert.assertTrue(runs[0] > 0);
+    Assert.assertEquals(HHCodeHelper.coverCorridor(lats, lons, 5000.0D, 16, new Coverage()).getCells(16), cells);
+
+    //
+    // No runs when filtering by geocells
+    //
+
+    cells.clear();
+    runs[0] = 0;
+
+    long[] geocells = new long[] { HHCodeHelper.toGeoCell(HHCodeHelper.buildHHCode(lats[0], lons[0], 32), 8) };
+    HHCodeHelper.coverPolygon(lats, lons, 0, lats.length, 14, sink, geocells, false);
+    Assert.assertEquals(0L, runs[0]);
+    Assert.assertEquals(HHCodeHelper.coverPolygon(lats, lons, 0, lats.length, 14, new Coverage(), geocells, false).getCells(14), cells);
+  }
+
+  @Test
+  public void testCoverCircle() {
+    Random rand = new Random(42L);
+
+    checkCircle(48.0D, -4.5D, 1000.0D, 22, 47.98D, -4.53D, 48.02D, -4.47D, rand);
+
+    // Circle containing the north pole
+    checkCircle(89.9D, 10.0D, 50000.0D, 14, 89.0D, -180.0D, 90.0D, 180.0D, rand);
+
+    // Circle crossing the IDL
+    checkCircle(-10.0D, 179.99D, 5000.0D, 18, -10.1D, 179.8D, -9.9D, 180.2D, rand);
+
+    // Huge circle, rows are clamped at the poles
+    checkCircle(48.0D, -4.5D, 5000000.0D, 8, -90.0D, -180.0D, 90.0D, 180.0D, rand);
+
+    //
+    // Optimal resolution
+    //
+
+    Coverage coverage = HHCodeHelper.coverCircle(HHCodeHelper.toLongLat(48.0D), HHCodeHelper.toLongLon(-4.5D), 1000.0D, 0, new Coverage());
+    Assert.assertTrue(coverage.getCellCount() > 0);
+    Assert.assertEquals(coverage.getCells(coverage.getFinestResolution()), GeoParser.parseCircle("48.0:-4.5:1000", 0).getCells(coverage.getFinestResolution()));
+  }
+
+  /**
+   * Check that the cover of a circle contains all the points within 'radius' of its center
+   * and that none of its cells is further away than 'radius' plus half the cell diagonal.
+   */
+  private static void checkCircle(double lat, double lon, double radius, int resolution, double swlat, double swlon, double nelat, double nelon, Random rand) {
+    long clat = HHCodeHelper.toLongLat(lat);
+    long clon = HHCodeHelper.toLongLon(lon);
+
+    Coverage coverage = HHCodeHelper.coverCircle(clat, clon, radius, resolution, new Coverage());
+
+    Assert.assertEquals(coverage.getCellCount(), coverage.getCells(resolution).size());
+
+    int inside = 0;
+
+    for (int i = 0; i < 100000; i++) {
+      double plat = swlat + rand.nextDouble() * (nelat - swlat);
+      double plon = swlon + rand.nextDouble() * (nelon - swlon);
+
+      long hhcode = HHCodeHelper.getHHCodeValue(plat, plon > 180.0D ? plon - 360.0D : plon);
+      long[] coords = HHCodeHelper.splitHHCode(hhcode, HHCodeHelper.MAX_RESOLUTION);
+
+      if (HHCodeHelper.orthodromicDistance(clat, clon, coords[0], coords[1]) < radius * 0.999D) {
+        inside++;
+        Assert.assertTrue(coverage.contains(resolution, hhcode));
+      }
+    }
+
+    Assert.assertTrue(inside > 0);
+
+    long cellsize = 1L << (HHCodeHelper.MAX_RESOLUTION - resolution);
+
+    for (long cell: coverage.getCells(resolution)) {
+      long[] coords = HHCodeHelper.splitHHCode(cell, HHCodeHelper.MAX_RESOLUTION);
+      long centerLat = coords[0] + cellsize / 2;
+      long centerLon = coords[1] + cellsize / 2;
+
+      double halfdiagonal = 0.0D;
+
+      for (int corner = 0; corner < 4; corner++) {
+        long cornerLat = Math.min(coords[0] + (corner & 1) * cellsize, (1L << 32) - 1);
+        long cornerLon = coords[1] + (corner >> 1) * cellsize;
+        halfdiagonal = Math.max(halfdiagonal, HHCodeHelper.orthodromicDistance(centerLat, centerLon, cornerLat, cornerLon));
+      }
+
+      Assert.assertTrue(HHCodeHelper.orthodromicDistance(clat, clon, centerLat, centerLon) <= radius + halfdiagonal + 1.0D);
+    }
+  }
+
+  @Test
+  public void testGeocellsToRanges() {
+    Coverage coverage = GeoParser.parseCircle("48.0:-4.5:5000", 0);
+    coverage.optimize(0L);
+    long[] geocells = coverage.toGeoCells(30);
+    long[] copy = Arrays.copyOf(geocells, geocells.length);
+
+    long[] ranges = HHCodeHelper.geocellsToRanges(geocells, Integer.MAX_VALUE);
+
+    Assert.assertTrue(Arrays.equals(copy, geocells));
+    Assert.assertTrue(ranges.length > 0 && ranges.length <= 2 * geocells.length);
+
+    // Ranges are sorted (unsigned) and neither overlap nor touch
+    for (int i = 0; i < ranges.length; i += 2) {
+      Assert.assertTrue((ranges[i] ^ Long.MIN_VALUE) < (ranges[i + 1] ^ Long.MIN_VALUE));
+      if (i > 0) {
+        Assert.assertTrue((ranges[i - 1] ^ Long.MIN_VALUE) < (ranges[i] ^ Long.MIN_VALUE));
+      }
+    }
+
+    //
+    // Exact ranges contain the points of the cells and only those
+    //
+
+    Random rand = new Random(0L);
+
+    for (int i = 0; i < 10000; i++) {
+      long hhcode = HHCodeHelper.getHHCodeValue(47.9D + rand.nextDouble() * 0.2D, -4.65D + rand.nextDouble() * 0.3D);
+      Assert.assertEquals(inCells(geocells, hhcode), inRanges(ranges, hhcode));
+    }
+
+    //
+    // With a budget, ranges contain the exact ones
+    //
+
+    long[] budget = HHCodeHelper.geocellsToRanges(geocells, 5);
+
+    Assert.assertTrue(budget.length <= 10);
+
+    for (int i = 0; i < ranges.length; i += 2) {
+      Assert.assertTrue(inRanges(budget, ranges[i]));
+      Assert.assertTrue(inRanges(budget, ranges[i + 1] - 1));
+    }
+
+    Assert.assertEquals(2, HHCodeHelper.geocellsToRanges(geocells, 0).length);
+
+    //
+    // Nested and adjacent cells are merged, the whole world is a single range
+    //
+
+    long hhcode = HHCodeHelper.getHHCodeValue(48.0D, -4.5D);
+    long[] nested = new long[] { HHCodeHelper.toGeoCell(hhcode, 10), HHCodeHelper.toGeoCell(hhcode, 20), HHCodeHelper.toGeoCell(hhcode, 12) };
+    ranges = HHCodeHelper.geocellsToRanges(nested, Integer.MAX_VALUE);
+    Assert.assertEquals(2, ranges.length);
+    Assert.assertEquals(hhcode & Coverage.PREFIX_MASK[4], ranges[0]);
+    Assert.assertEquals((hhcode & Coverage.PREFIX_MASK[4]) + (1L << 44), ranges[1]);
+
+    long[] world = new long[16];
+    for (int i = 0; i < 16; i++) {
+      world[i] = HHCodeHelper.toGeoCell(((long) i) << 60, 2);
+    }
+    Assert.assertTrue(Arrays.equals(new long[] { 0L, 0L }, HHCodeHelper.geocellsToRanges(world, Integer.MAX_VALUE)));
+
+    Assert.assertEquals(0, HHCodeHelper.geocellsToRanges(new long[0], 10).length);
+  }
+
+  private static boolean inCells(long[] geocells, long hhcode) {
+    for (long geocell: geocells) {
+      int resolution = (int) (geocell >>> 60) << 1;
+      if ((hhcode & Coverage.PREFIX_MASK[(resolution >> 1) - 1]) == geocell << 4) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean inRanges(long[] ranges, long hhcode) {
+    for (int i = 0; i < ranges.length; i += 2) {
+      long start = ranges[i] ^ Long.MIN_VALUE;
+      long end = ranges[i + 1] ^ Long.MIN_VALUE;
+      long key = hhcode ^ Long.MIN_VALUE;
+      if (key >= start && (key < end || 0L == ranges[i + 1])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the distance in meters from a point to a track, in a local equirectangular frame.
+   */
+  private static double trackDistance(long[] lats, long[] lons, long lat, long lon) {
+    double scale = Math.cos(Math.toRadians(HHCodeHelper.toLat(lat)));
+    double px = lon * HHCodeHelper.metersPerLonUnit * scale;
+    double py = lat * HHCodeHelper.metersPerLatUnit;
+
+    double min = Double.POSITIVE_INFINITY;
+
+    for (int i = 0; i < lats.length - 1; i++) {
+      double ax = lons[i] * HHCodeHelper.metersPerLonUnit * scale;
+      double ay = lats[i] * HHCodeHelper.metersPerLatUnit;
+      double bx = lons[i + 1] * HHCodeHelper.metersPerLonUnit * scale;
+      double by = lats[i + 1] * HHCodeHelper.metersPerLatUnit;
+
+      double len2 = (bx - ax) * (bx - ax) + (by - ay) * (by - ay);
+      double t = len2 > 0.0D ? Math.max(0.0D, Math.min(1.0D, ((px - ax) * (bx - ax) + (py - ay) * (by - ay)) / len2)) : 0.0D;
+
+      min = Math.min(min, Math.hypot(px - ax - t * (bx - ax), py - ay - t * (by - ay)));
+    }
+
+    return min;
+  }
+
   public static void main(String[] args) {
     HHCodeHelperTestCase tc = new HHCodeHelperTestCase();
     tc.testCoverPolygonIDL();
@@ -0,0 +1,132 @@
+//
+//  GeoXP Lib, library for efficient geo data manipulation
+//
+//  Copyright (C) 1999-2016  Mathias Herberts
+//
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Affero General Public License as
+//  published by the Free Software Foundation, either version 3 of the
+//  License, or (at your option) any later version and under the terms
+//  of the GeoXP License Exception.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU Affero General Public License for more details.
+//
+//  You should have received a copy of the GNU Affero General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.geoxp.geo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NearestNeighbourIndexTestCase {
+  
+  /**
+   * Return the squared distances from 'hhcode' of the 'k' nearest points, computed by brute force.
+   */
+  private static double[] bruteForce(long[] points, long hhcode, int k) {
+    double[] distances = new double[points.length];
+    
+    for (int i = 0; i < points.length; i++) {
+      distances[i] = distance(hhcode, points[i]);
+    }
+    
+    Arrays.sort(distances);
+    
+    return Arrays.copyOf(distances, Math.min(k, points.length));
+  }
+  
+  private static double distance(long from, long to) {
+    long[] f = HHCodeHelper.splitHHCode(from, HHCodeHelper.MAX_RESOLUTION);
+    long[] t = HHCodeHelper.splitHHCode(to, HHCodeHelper.MAX_RESOLUTION);
+    
+    // Shortest way in longitude
+    long dlon = t[1] - f[1];
+    if (dlon > (1L << 31)) {
+      t[1] -= 1L << 32;
+    } else if (dlon < -(1L << 31)) {
+      t[1] += 1L << 32;
+    }
+    
+    return HHCodeHelper.getSquaredDistance(f, t, HHCodeHelper.getScale(from));
+  }
+  
+  private static void check(NearestNeighbourIndex index, long[] points, long hhcode, int k) {
+    long[] nearest = index.nearest(hhcode, k);
+    double[] expected = bruteForce(points, hhcode, k);
+    
+    Assert.assertEquals(expected.length, nearest.length);
+    
+    for (int i = 0; i < nearest.length; i++) {
+      Assert.assertEquals(expected[i], distance(hhcode, nearest[i]), 0.0D);
+    }
+  }
+  
+  @Test
+  public void testNearest() {
+    Random rand = new Random(0L);
+    
+    //
+    // Clustered points around Brest and uniform points over the world
+    //
+    
+    long[] points = new long[20000];
+    
+    for (int i = 0; i < points.length; i++) {
+      if (i % 2 == 0) {
+        points[i] = HHCodeHelper.getHHCodeValue(48.0D + rand.nextGaussian() * 0.1D, -4.5D + rand.nextGaussian() * 0.1D);
+      } else {
+        points[i] = HHCodeHelper.getHHCodeValue(-80.0D + rand.nextDouble() * 160.0D, -180.0D + rand.nextDouble() * 360.0D);
+      }
+    }
+    
+    NearestNeighbourIndex index = new NearestNeighbourIndex(points.clone());
+    
+    Assert.assertEquals(points.length, index.size());
+    
+    for (int i = 0; i < 200; i++) {
+      long query;
+      if (i % 2 == 0) {
+        query = HHCodeHelper.getHHCodeValue(48.0D + rand.nextGaussian() * 0.2D, -4.5D + rand.nextGaussian() * 0.2D);
+      } else {
+        query = HHCodeHelper.getHHCodeValue(-80.0D + rand.nextDouble() * 160.0D, -180.0D + rand.nextDouble() * 360.0D);
+      }
+      check(index, points, query, 1 + rand.nextInt(50));
+    }
+    
+    // Near the IDL
+    check(index, points, HHCodeHelper.getHHCodeValue(0.0D, 179.999D), 20);
+    check(index, points, HHCodeHelper.getHHCodeValue(0.0D, -179.999D), 20);
+  }
+  
+  @Test
+  public void testEdgeCases() {
+    long[] points = new long[] { HHCodeHelper.getHHCodeValue(48.0D, -4.5D), HHCodeHelper.getHHCodeValue(48.0D, -4.5D), HHCodeHelper.getHHCodeValue(10.0D, 10.0D) };
+    
+    NearestNeighbourIndex index = new NearestNeighbourIndex(points.clone());
+    
+    // Duplicates are returned, k larger than the number of points
+    long[] nearest = index.nearest(48.1D, -4.5D, 10);
+    Assert.assertEquals(3, nearest.length);
+    Assert.assertEquals(points[0], nearest[0]);
+    Assert.assertEquals(points[0], nearest[1]);
+    Assert.assertEquals(points[2], nearest[2]);
+    
+    // Maximum distance
+    nearest = index.nearest(HHCodeHelper.getHHCodeValue(48.1D, -4.5D), 10, 20000.0D);
+    Assert.assertEquals(2, nearest.length);
+    nearest = index.nearest(HHCodeHelper.getHHCodeValue(48.1D, -4.5D), 10, 1000.0D);
+    Assert.assertEquals(0, nearest.length);
+    
+    Assert.assertEquals(0, index.nearest(48.0D, -4.5D, 0).length);
+    Assert.assertEquals(0, new NearestNeighbourIndex(new long[0]).nearest(48.0D, -4.5D, 3).length);
+  }
+}
@@ -22,13 +22,16 @@
 package com.geoxp.geo;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class OutputStreamCoverageTestCase {
@@ -39,6 +42,66 @@ public class OutputStreamCoverageTestCase {
     GeoParser.parseCircle("48.0:-4.5:5000", 24, c);    
   }
   
+  @Test
+  public void testAddCell() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    
+    // Use a tiny buffer so we exercise the flushing logic
+    OutputStreamCoverage c = new OutputStreamCoverage(baos, ":x", 8);
+    
+    c.addCell(2, 0xa000000000000000L);
+    // Consecutive duplicates are suppressed
+    c.addCell(2, 0xa123000000000000L);
+    c.addCell(8, 0x0123456789abcdefL);
+    c.addCell(32, 0xfedcba9876543210L);
+    // Out of range resolution is ignored
+    c.addCell(34, 0xfedcba9876543210L);
+    c.close();
+    
+    Assert.assertEquals("a:x\n0123:x\nfedcba9876543210:x\n", baos.toString());
+    
+    //
+    // Check that the output matches that of HHCodeHelper.toString
+    //
+    
+    baos.reset();
+    c = new OutputStreamCoverage(baos);
+    StringBuilder sb = new StringBuilder();
+    
+    for (int res = 2; res <= 32; res += 2) {
+      long hhcode = 0x13579bdf2468ace0L + res;
+      c.addCell(res, hhcode);
+      sb.append(HHCodeHelper.toString(hhcode, res));
+      sb.append("\n");
+    }
+    
+    c.flush();
+    Assert.assertEquals(sb.toString(), baos.toString());
+  }
+  
+  @Test
+  public void testAddCell_Error() throws Exception {
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("write failed");
+      }
+    };
+    
+    OutputStreamCoverage c = new OutputStreamCoverage(failing, null, 32);
+    
+    for (int i = 0; i < 64; i++) {
+      c.addCell(8, ((long) i) << 48);
+    }
+    
+    try {
+      c.close();
+      Assert.fail("IOException was not reported");
+    } catch (IOException ioe) {
+      Assert.assertEquals("write failed", ioe.getMessage());
+    }
+  }
+  
   @Test
   public void testOptimize() throws Exception {
     StringBuilder sb = new StringBuilder();